@@ -0,0 +1,128 @@
+package com.lcjian.lib.download;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.WeakHashMap;
+
+/**
+ * Starts a download with one or two connections, then keeps adding ranged connections while the
+ * measured total throughput keeps growing, until it levels off or the host has as many connections as the cap.
+ * The measuring starts over when the download resumes.
+ */
+public class AdaptiveSplitter implements DynamicSplitter {
+
+    private static final long MB = 1024 * 1024;
+
+    private final int initialConnections;
+    private final int maxConnections;
+    private final long minSplitBytes;
+    private final float minGain;
+    private final long interval;
+    private final Map<Download, State> states = new WeakHashMap<>();
+
+    public AdaptiveSplitter() {
+        this(2, 8, MB, 0.1f, 2000);
+    }
+
+    /**
+     * @param initialConnections connections a range-supporting download starts with
+     * @param maxConnections     the cap of connections all downloads together have to a host, open or waiting for one,
+     *                           see {@link DownloadManager.Builder#maxConnectionsPerHost(int)}
+     * @param minSplitBytes      the smallest remaining range that is split for a new connection
+     * @param minGain            the relative throughput growth the last added connection must bring to add another one
+     * @param interval           milliseconds to measure the throughput after a change before deciding again
+     */
+    public AdaptiveSplitter(int initialConnections, int maxConnections, long minSplitBytes, float minGain, long interval) {
+        if (initialConnections < 1 || maxConnections < initialConnections) {
+            throw new IllegalArgumentException("Invalid connection count.");
+        }
+        this.initialConnections = initialConnections;
+        this.maxConnections = maxConnections;
+        this.minSplitBytes = minSplitBytes;
+        this.minGain = minGain;
+        this.interval = interval;
+    }
+
+    @Override
+    public List<Chunk> split(String file, long fileLength, boolean rangeSupportable) {
+        List<Chunk> chunks = new ArrayList<>(initialConnections);
+        if (rangeSupportable && fileLength > 0) {
+            int chunkCount = (int) Math.max(1, Math.min(initialConnections, fileLength / minSplitBytes));
+            long chunkSize = fileLength / chunkCount;
+            for (int i = 0; i < chunkCount; i++) {
+                long start = i * chunkSize;
+                long end = i == chunkCount - 1 ? fileLength - 1 : start + chunkSize - 1;
+                chunks.add(new Chunk.Builder().start(start).end(end).file(file + ".download.part" + (i + 1)).build());
+            }
+        } else {
+            chunks.add(new Chunk.Builder().start(0).end(-1).file(file + ".download.part" + 1).build());
+        }
+        return chunks;
+    }
+
+    @Override
+    public int resplit(Download download) {
+        int connections = 0;
+        long throughput = 0;
+        for (ChunkDownload chunkDownload : download.getChunkDownloads()) {
+            int st = chunkDownload.getChunkDownloadStatus().getStatus();
+            if (st == ChunkDownloadStatus.PENDING || st == ChunkDownloadStatus.DOWNLOADING) {
+                connections++;
+                throughput += chunkDownload.getThroughput();
+            }
+        }
+        long now = System.currentTimeMillis();
+        synchronized (states) {
+            State state = states.get(download);
+            if (state == null) {
+                state = new State();
+                states.put(download, state);
+            }
+            if (state.time == 0) {
+                // measure the initial connections first
+                state.connections = connections;
+                state.throughput = throughput;
+                state.time = now;
+                return 0;
+            }
+            if (state.saturated
+                    || connections == 0
+                    || now - state.time < interval
+                    || download.getHostConnectionCount() >= maxConnections) {
+                return 0;
+            }
+            if (connections > state.connections
+                    && state.throughput > 0
+                    && throughput < state.throughput * (1 + minGain)) {
+                // the last added connection did not help, the link is saturated
+                state.saturated = true;
+                return 0;
+            }
+            state.connections = connections;
+            state.throughput = throughput;
+            state.time = now;
+            return 1;
+        }
+    }
+
+    @Override
+    public void reset(Download download) {
+        synchronized (states) {
+            states.remove(download);
+        }
+    }
+
+    @Override
+    public long minSplitBytes() {
+        return minSplitBytes;
+    }
+
+    private static class State {
+
+        int connections;
+        long throughput;
+        long time;
+        boolean saturated;
+    }
+}
@@ -0,0 +1,256 @@
+package com.lcjian.lib.download;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Decides which downloads may run, at most {@link #getMaxRunningCount()} at once. Waiting downloads are admitted
+ * by priority, the smaller {@link Download#getPriority()} the earlier, and in the order they arrived otherwise.
+ * <p>
+ * If it is preemptive, a download more urgent than the least urgent running one pauses that one, which resumes
+ * with its progress kept as soon as it is admitted again.
+ */
+public final class AdmissionQueue {
+
+    private final int maxRunningCount;
+    private final boolean preemptive;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition changed = lock.newCondition();
+    private final PriorityQueue<Ticket> waiting = new PriorityQueue<>();
+    private final Set<Download> running = new LinkedHashSet<>();
+    /**
+     * Running downloads that are pausing to make room, they still count as running.
+     */
+    private final Set<Download> preempting = new LinkedHashSet<>();
+    private long sequence;
+    private long admittedCount;
+    private long preemptedCount;
+    private long totalWaitNanos;
+    private long maxWaitNanos;
+
+    AdmissionQueue(int maxRunningCount, boolean preemptive) {
+        this.maxRunningCount = maxRunningCount;
+        this.preemptive = preemptive;
+    }
+
+    /**
+     * Block until the download may run.
+     *
+     * @return nanoseconds the download waited.
+     */
+    long acquire(Download download) throws InterruptedException {
+        Download victim;
+        Ticket ticket;
+        lock.lock();
+        try {
+            ticket = new Ticket(download, download.getPriority(), sequence++, System.nanoTime());
+            waiting.add(ticket);
+            victim = victim();
+        } finally {
+            lock.unlock();
+        }
+        if (victim != null) {
+            victim.preemptAsync();
+        }
+        // not interruptibly, an interrupt before the lock would leave the ticket at the head of the queue for good
+        lock.lock();
+        boolean admitted = false;
+        try {
+            while (waiting.peek() != ticket || running.size() >= maxRunningCount) {
+                changed.await();
+            }
+            waiting.poll();
+            running.add(download);
+            admitted = true;
+            long wait = System.nanoTime() - ticket.time;
+            admittedCount++;
+            totalWaitNanos += wait;
+            maxWaitNanos = Math.max(maxWaitNanos, wait);
+            // the next one may fit as well
+            changed.signalAll();
+            return wait;
+        } finally {
+            if (!admitted) {
+                waiting.remove(ticket);
+                changed.signalAll();
+            }
+            lock.unlock();
+        }
+    }
+
+    void release(Download download) {
+        lock.lock();
+        try {
+            if (running.remove(download)) {
+                preempting.remove(download);
+                changed.signalAll();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Move a waiting download to its new place, it may preempt a running download now.
+     */
+    void reprioritize(Download download) {
+        Download victim = null;
+        lock.lock();
+        try {
+            for (Ticket ticket : waiting) {
+                if (ticket.download == download) {
+                    // the same ticket is put back, the blocked acquire waits for it by reference
+                    waiting.remove(ticket);
+                    ticket.priority = download.getPriority();
+                    waiting.add(ticket);
+                    victim = victim();
+                    changed.signalAll();
+                    break;
+                }
+            }
+        } finally {
+            lock.unlock();
+        }
+        if (victim != null) {
+            victim.preemptAsync();
+        }
+    }
+
+    /**
+     * Pick the least urgent running download to pause if the most urgent waiting one is more urgent than it,
+     * and no other download is pausing for it already.
+     */
+    private Download victim() {
+        Ticket first = waiting.peek();
+        if (!preemptive || first == null || running.size() - preempting.size() < maxRunningCount) {
+            return null;
+        }
+        Download victim = null;
+        for (Download download : running) {
+            if (!preempting.contains(download)
+                    && download.getPriority() > first.priority
+                    && (victim == null || download.getPriority() >= victim.getPriority())) {
+                victim = download;
+            }
+        }
+        if (victim != null) {
+            preempting.add(victim);
+            preemptedCount++;
+        }
+        return victim;
+    }
+
+    public int getMaxRunningCount() {
+        return maxRunningCount;
+    }
+
+    public boolean isPreemptive() {
+        return preemptive;
+    }
+
+    public int getRunningCount() {
+        lock.lock();
+        try {
+            return running.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public int getWaitingCount() {
+        lock.lock();
+        try {
+            return waiting.size();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return the waiting downloads, the next one to be admitted first.
+     */
+    public List<Download> getWaitingDownloads() {
+        List<Ticket> tickets;
+        lock.lock();
+        try {
+            tickets = new ArrayList<>(waiting);
+        } finally {
+            lock.unlock();
+        }
+        Collections.sort(tickets);
+        List<Download> downloads = new ArrayList<>(tickets.size());
+        for (Ticket ticket : tickets) {
+            downloads.add(ticket.download);
+        }
+        return downloads;
+    }
+
+    public long getAdmittedCount() {
+        lock.lock();
+        try {
+            return admittedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getPreemptedCount() {
+        lock.lock();
+        try {
+            return preemptedCount;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getAverageWaitTime(TimeUnit unit) {
+        lock.lock();
+        try {
+            return admittedCount == 0 ? 0 : unit.convert(totalWaitNanos / admittedCount, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    public long getMaxWaitTime(TimeUnit unit) {
+        lock.lock();
+        try {
+            return unit.convert(maxWaitNanos, TimeUnit.NANOSECONDS);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private static final class Ticket implements Comparable<Ticket> {
+
+        private final Download download;
+        /**
+         * Only changed while the ticket is out of the queue.
+         */
+        private int priority;
+        private final long sequence;
+        private final long time;
+
+        private Ticket(Download download, int priority, long sequence, long time) {
+            this.download = download;
+            this.priority = priority;
+            this.sequence = sequence;
+            this.time = time;
+        }
+
+        @Override
+        public int compareTo(Ticket o) {
+            if (priority != o.priority) {
+                return priority < o.priority ? -1 : 1;
+            }
+            return sequence < o.sequence ? -1 : (sequence == o.sequence ? 0 : 1);
+        }
+    }
+}
@@ -0,0 +1,102 @@
+package com.lcjian.lib.download;
+
+import java.nio.ByteBuffer;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Reusable direct buffers of one size class shared by all chunk downloads of a {@link DownloadManager}.
+ * The direct memory it allocates never exceeds its cap, when all of it is borrowed a heap buffer is handed out
+ * instead and counted as an overflow. Heap buffers are reused as well, so once the pool has seen the most transfers
+ * running at once it allocates nothing more. It then keeps a buffer for each of them, direct ones up to the cap.
+ */
+public class BufferPool {
+
+    private final int bufferSize;
+    private final long maxPoolBytes;
+    private final ConcurrentLinkedQueue<ByteBuffer> buffers;
+    private final ConcurrentLinkedQueue<ByteBuffer> heapBuffers;
+    private final AtomicLong pooledBytes;
+    private final AtomicLong allocations;
+    private final AtomicLong overflows;
+
+    /**
+     * @param bufferSize   the capacity of every buffer, also the most bytes a chunk download reads at once
+     * @param maxPoolBytes the cap of direct memory this pool allocates
+     */
+    public BufferPool(int bufferSize, long maxPoolBytes) {
+        if (bufferSize < 1 || maxPoolBytes < bufferSize) {
+            throw new IllegalArgumentException("Invalid buffer pool size.");
+        }
+        this.bufferSize = bufferSize;
+        this.maxPoolBytes = maxPoolBytes;
+        this.buffers = new ConcurrentLinkedQueue<>();
+        this.heapBuffers = new ConcurrentLinkedQueue<>();
+        this.pooledBytes = new AtomicLong();
+        this.allocations = new AtomicLong();
+        this.overflows = new AtomicLong();
+    }
+
+    /**
+     * @return a cleared buffer of {@link #getBufferSize()} bytes, give it back with {@link #release(ByteBuffer)}.
+     */
+    public ByteBuffer acquire() {
+        ByteBuffer buffer = buffers.poll();
+        if (buffer != null) {
+            buffer.clear();
+            return buffer;
+        }
+        while (true) {
+            long bytes = pooledBytes.get();
+            if (bytes + bufferSize > maxPoolBytes) {
+                buffer = heapBuffers.poll();
+                if (buffer != null) {
+                    buffer.clear();
+                    return buffer;
+                }
+                overflows.incrementAndGet();
+                return ByteBuffer.allocate(bufferSize);
+            }
+            if (pooledBytes.compareAndSet(bytes, bytes + bufferSize)) {
+                allocations.incrementAndGet();
+                return ByteBuffer.allocateDirect(bufferSize);
+            }
+        }
+    }
+
+    public void release(ByteBuffer buffer) {
+        if (buffer != null && buffer.capacity() == bufferSize) {
+            buffer.clear();
+            (buffer.isDirect() ? buffers : heapBuffers).offer(buffer);
+        }
+    }
+
+    public int getBufferSize() {
+        return bufferSize;
+    }
+
+    public long getMaxPoolBytes() {
+        return maxPoolBytes;
+    }
+
+    /**
+     * @return direct memory allocated by this pool, borrowed or idle.
+     */
+    public long getPooledBytes() {
+        return pooledBytes.get();
+    }
+
+    /**
+     * @return how many direct buffers have been allocated, it stops growing once the pool is warm.
+     */
+    public long getAllocationCount() {
+        return allocations.get();
+    }
+
+    /**
+     * @return how many heap buffers have been allocated because the cap was reached, it stops growing as well.
+     */
+    public long getOverflowCount() {
+        return overflows.get();
+    }
+}
@@ -1,20 +1,55 @@
 package com.lcjian.lib.download;
 
 import com.lcjian.lib.download.exception.ConnectException;
+import com.lcjian.lib.download.exception.ServerFileChangedException;
 
 import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
 import java.io.File;
-import java.io.FileOutputStream;
+import java.io.FileInputStream;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
 import java.util.logging.Logger;
 
 public final class ChunkDownload {
 
+    /**
+     * How many bytes a chunk writes between two persisted checkpoints.
+     */
+    private static final long CHECKPOINT_BYTES = 8 * 1024 * 1024;
+
+    /**
+     * Nanoseconds over which the throughput of a chunk download is measured.
+     */
+    private static final long SAMPLE_NANOS = 1000 * 1000 * 1000;
+
+    /**
+     * The longest a rate limited chunk download sleeps before it checks whether its download is paused.
+     */
+    private static final long PAUSE_CHECK_NANOS = 100 * 1000 * 1000;
+
+    /**
+     * Size of the buffer the written bytes a digest does not cover yet are read back with.
+     */
+    private static final int READ_BACK_BYTES = 64 * 1024;
+
+    /**
+     * A part file keeps the CRC-32C of every block of this size in a block map next to it, so that a resume after
+     * a crash rechecks the blocks written after the last sync and goes on from the last good one.
+     */
+    private static final int BLOCK_BYTES = 1024 * 1024;
+
     private final Request request;
-    private final Chunk chunk;
     private final DownloadAPI downloadAPI;
     private final PersistenceAdapter persistenceAdapter;
     private final CopyOnWriteArrayList<ChunkDownloadListener> listeners;
@@ -22,7 +57,50 @@ public final class ChunkDownload {
     private final Logger logger;
     private Download download;
     private ChunkDownloadStatus chunkDownloadStatus;
-    private long downloadedBytes;
+    /**
+     * The end of the chunk may shrink when another chunk download takes over the rest of its range.
+     */
+    private volatile Chunk chunk;
+    /**
+     * Only written by the running {@link ChunkDownloader}, volatile so that the monitor and other threads read it safely.
+     */
+    private volatile long downloadedBytes;
+    private volatile long throughput;
+    private long notifiedBytes;
+    /**
+     * The host connection this chunk download holds while it runs.
+     */
+    private volatile HostScheduler.Slot slot;
+    /**
+     * The body of a response from the first byte of the file on, read instead of opening another connection.
+     */
+    private final AtomicReference<ReadableByteChannel> body = new AtomicReference<>();
+    /**
+     * The CRC-32C of every chunk is kept to be combined, a SHA-256 or MD5 can not be combined and is only kept by
+     * the chunk at the start of the file. Only changed by the running transfer or once all chunks are complete.
+     */
+    private final boolean crc32c;
+    private final boolean messageDigestTracked;
+    private int checksum;
+    private MessageDigest messageDigest;
+    /**
+     * How many bytes from the start of the chunk the digest covers.
+     */
+    private long digestBytes;
+    /**
+     * Whether the part file was checked against its block map in this process.
+     */
+    private boolean blocksChecked;
+    /**
+     * False for a part file written before block maps, which is trusted as it is.
+     */
+    private boolean blockMapped = true;
+    private int blockCrc;
+    /**
+     * How many bytes from the start of the chunk the block map and {@link #blockCrc} cover.
+     */
+    private long blockedBytes;
+    private long syncedBytes;
 
     ChunkDownload(Request request, Chunk chunk, ChunkDownloadStatus chunkDownloadStatus, DownloadAPI downloadAPI,
                   PersistenceAdapter persistenceAdapter, Logger logger) {
@@ -34,21 +112,41 @@ public final class ChunkDownload {
         this.chunkDownloadStatus = chunkDownloadStatus;
         this.listeners = new CopyOnWriteArrayList<>();
         this.chunkDownloader = new ChunkDownloader();
+        this.crc32c = Request.CRC32C.equals(request.digestAlgorithm());
+        this.messageDigestTracked = request.digestAlgorithm() != null && !crc32c && chunk.start() == 0;
+        if (chunkDownloadStatus != null) {
+            this.syncedBytes = chunkDownloadStatus.getSyncedBytes();
+        }
+        if (crc32c && chunkDownloadStatus != null) {
+            this.checksum = chunkDownloadStatus.getChecksum();
+            this.digestBytes = chunkDownloadStatus.getChecksumBytes();
+        }
 
         int status = this.chunkDownloadStatus == null ? ChunkDownloadStatus.IDLE : this.chunkDownloadStatus.getStatus();
         if (status == ChunkDownloadStatus.IDLE
                 || status == ChunkDownloadStatus.PENDING
                 || status == ChunkDownloadStatus.DOWNLOADING) {
-            this.chunkDownloadStatus = new ChunkDownloadStatus(ChunkDownloadStatus.IDLE);
+            ChunkDownloadStatus idle = new ChunkDownloadStatus(ChunkDownloadStatus.IDLE);
+            idle.setDownloadedBytes(this.chunkDownloadStatus == null ? 0 : this.chunkDownloadStatus.getDownloadedBytes());
+            idle.setChecksum(checksum, digestBytes);
+            idle.setSyncedBytes(syncedBytes);
+            this.chunkDownloadStatus = idle;
         }
     }
 
     void attach(Download download) {
         this.download = download;
-        File file = new File(chunk.file());
-        if (file.exists()) {
-            notifyDownloadProgress(file.length());
+        if (download.getDownloadInfo().singleFile()
+                || download.getDownloadStatus() != null && download.getDownloadStatus().getStatus() == DownloadStatus.COMPLETE) {
+            // the temp file is preallocated, or the parts are merged and gone, so only the persisted progress tells
+            // how much of this chunk is written
+            downloadedBytes = chunkDownloadStatus.getDownloadedBytes();
+        } else {
+            File file = new File(chunk.file());
+            downloadedBytes = file.exists() ? file.length() : 0;
         }
+        notifiedBytes = downloadedBytes;
+        download.addDownloadedBytes(downloadedBytes);
     }
 
     ChunkDownloader getChunkDownloader() {
@@ -71,6 +169,13 @@ public final class ChunkDownload {
         return downloadedBytes;
     }
 
+    /**
+     * @return bytes per second measured over the last sample window, 0 if this chunk is not downloading.
+     */
+    public long getThroughput() {
+        return throughput;
+    }
+
     public void addChunkDownloadListener(ChunkDownloadListener chunkDownloadListener) {
         listeners.add(chunkDownloadListener);
     }
@@ -81,14 +186,56 @@ public final class ChunkDownload {
 
     private void notifyDownloadProgress(long delta) {
         this.downloadedBytes += delta;
-        for (ChunkDownloadListener chunkDownloadListener : listeners) {
-            chunkDownloadListener.onProgress(this, downloadedBytes);
-        }
         download.notifyDownloadProgress(delta);
     }
 
+    /**
+     * Notify the listeners if any bytes arrived since they were notified last time.
+     */
+    synchronized void dispatchProgress() {
+        long bytes = downloadedBytes;
+        if (bytes != notifiedBytes) {
+            notifiedBytes = bytes;
+            for (ChunkDownloadListener chunkDownloadListener : listeners) {
+                chunkDownloadListener.onProgress(this, bytes);
+            }
+        }
+    }
+
+    void setSlot(HostScheduler.Slot slot) {
+        this.slot = slot;
+    }
+
+    void setBody(ReadableByteChannel body) {
+        closeQuietly(this.body.getAndSet(body));
+    }
+
+    boolean hasBody() {
+        return body.get() != null;
+    }
+
+    private static void closeQuietly(ReadableByteChannel channel) {
+        if (channel != null) {
+            try {
+                channel.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
     void notifyChunkDownloadStatus(ChunkDownloadStatus status) {
+        status.setDownloadedBytes(downloadedBytes);
+        status.setChecksum(checksum, crc32c ? digestBytes : 0);
+        status.setSyncedBytes(syncedBytes);
         chunkDownloadStatus = status;
+        int st = status.getStatus();
+        HostScheduler.Slot current = slot;
+        if (current != null && (st == ChunkDownloadStatus.IDLE || st == ChunkDownloadStatus.ERROR || st == ChunkDownloadStatus.COMPLETE)) {
+            // the run is over, let the next chunk download of this host start
+            slot = null;
+            download.releaseSlot(current);
+        }
         persistenceAdapter.saveChunkDownloadStatus(request, chunk, chunkDownloadStatus);
         for (ChunkDownloadListener chunkDownloadListener : listeners) {
             chunkDownloadListener.onDownloadStatusChanged(ChunkDownload.this, chunkDownloadStatus);
@@ -98,76 +245,638 @@ public final class ChunkDownload {
                 request.simplifiedId(), chunk.file(), chunkDownloadStatus.getStatus()));
     }
 
-    class ChunkDownloader implements Runnable {
+    /**
+     * Bytes of this chunk's range that are not written yet, or -1 if the range is unknown.
+     */
+    long getRemainingBytes() {
+        Chunk current = chunk;
+        return current.end() == -1 ? -1 : current.end() - (current.start() + downloadedBytes) + 1;
+    }
 
-        @SuppressWarnings("all")
-        @Override
-        public void run() {
-            boolean rangeSupportable = download.getDownloadInfo().rangeInfo().rangeSupportable();
-            boolean serverFileChanged = download.getDownloadInfo().serverFileChanged();
+    /**
+     * Shrink this chunk to the front half of its remaining range and return a chunk for the back half,
+     * or null if less than {@code minBytes} remain. The back half is always far bigger than a single read,
+     * so the running {@link ChunkDownloader} sees the new end before it could write past it.
+     */
+    Chunk split(String file, long minBytes) {
+        long remaining = getRemainingBytes();
+        if (remaining < minBytes) {
+            return null;
+        }
+        Chunk current = chunk;
+        long middle = current.start() + downloadedBytes + remaining / 2;
+        chunk = current.newBuilder().end(middle - 1).build();
+        return new Chunk.Builder().start(middle).end(current.end()).file(file).build();
+    }
 
-            File file = new File(chunk.file());
-            long start = file.exists() ? chunk.start() + file.length() : chunk.start();
-            long end = chunk.end();
+    /**
+     * @return the CRC-32C of the chunk, or null if this chunk keeps no digest.
+     */
+    String digestHex() {
+        if (crc32c) {
+            return Crc32c.toHex(checksum);
+        }
+        if (messageDigest == null) {
+            return null;
+        }
+        try {
+            // digest() resets the state, keep it for another verification
+            return Utils.toHex(((MessageDigest) messageDigest.clone()).digest());
+        } catch (CloneNotSupportedException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    int getChecksum() {
+        return checksum;
+    }
+
+    boolean isDigestTracked() {
+        return crc32c || messageDigestTracked;
+    }
+
+    /**
+     * Bring the digest up to {@code length} bytes from the start of the chunk, reading the bytes it does not cover
+     * yet back from the file. A digest covering more than that is started over.
+     *
+     * @param base the position of the start of the chunk in the file.
+     */
+    void completeDigest(FileChannel fileChannel, long base, long length) throws IOException {
+        if (!isDigestTracked()) {
+            return;
+        }
+        if (digestBytes > length) {
+            resetDigest();
+        }
+        continueDigest(fileChannel, base + digestBytes, length - digestBytes);
+    }
+
+    /**
+     * Add {@code count} bytes read from the file at {@code position} to the digest. The chunk at the start of the
+     * file also goes on with the chunks after it this way once it is complete.
+     */
+    void continueDigest(FileChannel fileChannel, long position, long count) throws IOException {
+        ByteBuffer buffer = null;
+        long read = 0;
+        while (read < count) {
+            if (buffer == null) {
+                buffer = ByteBuffer.allocate(READ_BACK_BYTES);
+            }
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), count - read));
+            int n = fileChannel.read(buffer, position + read);
+            if (n <= 0) {
+                throw new EOFException("Can not read back at " + (position + read));
+            }
+            buffer.flip();
+            updateDigest(buffer);
+            read += n;
+        }
+    }
+
+    /**
+     * @return how many bytes from the start of the chunk the digest covers, past its end once it goes on with the
+     * chunks after it.
+     */
+    long getDigestBytes() {
+        return digestBytes;
+    }
+
+    private void resetDigest() {
+        checksum = 0;
+        messageDigest = null;
+        digestBytes = 0;
+    }
+
+    /**
+     * Add the remaining bytes of the buffer to the digest, the buffer's position is not changed.
+     */
+    private void updateDigest(ByteBuffer buffer) {
+        if (crc32c) {
+            checksum = Crc32c.update(checksum, buffer);
+        } else {
+            if (messageDigest == null) {
+                try {
+                    messageDigest = MessageDigest.getInstance(request.digestAlgorithm());
+                } catch (NoSuchAlgorithmException e) {
+                    // every Java platform has SHA-256 and MD5
+                    throw new IllegalStateException(e);
+                }
+            }
+            messageDigest.update(buffer.duplicate());
+        }
+        digestBytes += buffer.remaining();
+    }
+
+    File getBlockMapFile() {
+        return new File(chunk.file() + ".blocks");
+    }
+
+    void deleteBlockMap() {
+        File file = getBlockMapFile();
+        if (file.exists() && !file.delete()) {
+            logger.warning(Utils.formatString("Can not delete download(%s)'s block map(%s).", request.simplifiedId(), file.getName()));
+        }
+    }
+
+    /**
+     * Check the blocks of the part file after the last sync against the block map, and cut the part file and the
+     * block map after the last good block. The bytes up to the last sync are trusted.
+     *
+     * @return how many bytes of the part file are good.
+     */
+    private long checkBlocks(File file) throws IOException {
+        File blockMapFile = getBlockMapFile();
+        long length = file.exists() ? file.length() : 0;
+        if (!blockMapFile.exists() && length > 0) {
+            blockMapped = false;
+            return length;
+        }
+        int[] crcs = readBlockMap(blockMapFile);
+        int blocks = (int) Math.min(Math.min(syncedBytes, length) / BLOCK_BYTES, crcs.length);
+        long good = (long) blocks * BLOCK_BYTES;
+        if (blocks < crcs.length && good < length) {
+            RandomAccessFile randomAccessFile = new RandomAccessFile(file, "r");
+            try {
+                FileChannel fileChannel = randomAccessFile.getChannel();
+                ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_BYTES);
+                while (blocks < crcs.length && good < length) {
+                    long blockLength = Math.min(BLOCK_BYTES, length - good);
+                    if (readBack(fileChannel, buffer, good, blockLength, 0) != crcs[blocks]) {
+                        break;
+                    }
+                    good += blockLength;
+                    blocks++;
+                }
+            } catch (EOFException e) {
+                // shorter than it was a moment ago, the blocks read so far are good
+            } finally {
+                randomAccessFile.close();
+            }
+        }
+        // the block the last sync is in has no value in the block map yet, it is read back when the transfer opens
+        good = Math.max(good, Math.min(syncedBytes, length));
+        if (length > good) {
+            truncate(file, good);
+            logger.warning(Utils.formatString("Download(%s)'s chunk file(%s) is cut from %d to %d bytes, the rest did not match its block map.",
+                    request.simplifiedId(), file.getName(), length, good));
+        }
+        if (crcs.length > blocks) {
+            truncate(blockMapFile, blocks * 4L);
+        }
+        return good;
+    }
+
+    private static int[] readBlockMap(File file) throws IOException {
+        if (!file.exists()) {
+            return new int[0];
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            // a torn last value is dropped
+            int[] crcs = new int[(int) (file.length() / 4)];
+            for (int i = 0; i < crcs.length; i++) {
+                crcs[i] = in.readInt();
+            }
+            return crcs;
+        } finally {
+            in.close();
+        }
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            randomAccessFile.setLength(length);
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
+    /**
+     * Go on from {@code crc} with {@code length} bytes of the file at {@code position}.
+     */
+    private static int readBack(FileChannel fileChannel, ByteBuffer buffer, long position, long length, int crc) throws IOException {
+        long read = 0;
+        while (read < length) {
+            buffer.clear();
+            buffer.limit((int) Math.min(buffer.capacity(), length - read));
+            int count = fileChannel.read(buffer, position + read);
+            if (count <= 0) {
+                throw new EOFException("Can not read back at " + (position + read));
+            }
+            buffer.flip();
+            crc = Crc32c.update(crc, buffer);
+            read += count;
+        }
+        return crc;
+    }
+
+    private void saveCheckpoint() {
+        ChunkDownloadStatus checkpoint = new ChunkDownloadStatus(ChunkDownloadStatus.DOWNLOADING);
+        checkpoint.setDownloadedBytes(downloadedBytes);
+        checkpoint.setChecksum(checksum, crc32c ? digestBytes : 0);
+        checkpoint.setSyncedBytes(syncedBytes);
+        persistenceAdapter.saveChunkDownloadStatus(request, chunk, checkpoint);
+    }
+
+    /**
+     * Prepare a transfer of the rest of this chunk, or return null if there is nothing to transfer,
+     * in which case the chunk download is already marked as complete or idle.
+     */
+    ChunkTransfer prepare() {
+        boolean rangeSupportable = download.getDownloadInfo().rangeInfo().rangeSupportable();
+        boolean serverFileChanged = download.getDownloadInfo().serverFileChanged();
+        boolean singleFile = download.getDownloadInfo().singleFile();
+
+        File file = new File(chunk.file());
+        long start;
+        long end = chunk.end();
+        if (singleFile) {
+            if (!rangeSupportable && downloadedBytes > 0) {
+                // can not continue from the middle, start over
+                notifyDownloadProgress(-downloadedBytes);
+            }
+            start = chunk.start() + downloadedBytes;
+            if (end != -1 && start - 1 == end) {
+                notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.COMPLETE));
+                download.stealWorkAsync();
+                return null;
+            }
+        } else {
+            if (!blocksChecked && rangeSupportable && !serverFileChanged) {
+                try {
+                    long good = checkBlocks(file);
+                    if (good != downloadedBytes) {
+                        notifyDownloadProgress(good - downloadedBytes);
+                    }
+                } catch (IOException e) {
+                    notifyChunkDownloadStatus(new ChunkDownloadStatus(e));
+                    return null;
+                }
+                blocksChecked = true;
+            }
+            start = file.exists() ? chunk.start() + file.length() : chunk.start();
             if (file.exists()) {
                 if (start - 1 == end) {
                     notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.COMPLETE));
-                    return;
+                    download.stealWorkAsync();
+                    return null;
                 }
+            }
+        }
+        if (!file.exists()) {
+            File folder = file.getParentFile();
+            if (!folder.exists()) {
+                folder.mkdirs();
+            }
+        }
+        if (download.getPauseFlag()) {
+            notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.IDLE));
+            return null;
+        }
+        return new ChunkTransfer(file, start, end, rangeSupportable, serverFileChanged, singleFile);
+    }
+
+    /**
+     * Writes the bytes of one connection into the chunk's file, whoever reads them from the connection.
+     */
+    final class ChunkTransfer {
+
+        private final File file;
+        private final long start;
+        private final long end;
+        private final boolean rangeSupportable;
+        private final boolean serverFileChanged;
+        private final boolean singleFile;
+        private RandomAccessFile randomAccessFile;
+        private FileChannel fileChannel;
+        private RandomAccessFile blockMapFile;
+        private FileChannel blockMap;
+        private final ByteBuffer blockValue = ByteBuffer.allocate(4);
+        private long position;
+        private long checkpoint;
+        private long sampleTime;
+        private long sampleBytes;
+        /**
+         * Bytes this transfer took from the rate limiters and has not read yet.
+         */
+        private long tokens;
+        /**
+         * When the last batch of tokens may be used.
+         */
+        private long tokenTime = System.nanoTime();
+        /**
+         * Whether a pause stopped this transfer, a resume may clear the pause flag again before it finishes.
+         */
+        private boolean paused;
+
+        private ChunkTransfer(File file, long start, long end, boolean rangeSupportable, boolean serverFileChanged, boolean singleFile) {
+            this.file = file;
+            this.start = start;
+            this.end = end;
+            this.rangeSupportable = rangeSupportable;
+            this.serverFileChanged = serverFileChanged;
+            this.singleFile = singleFile;
+        }
+
+        ChunkDownload getChunkDownload() {
+            return ChunkDownload.this;
+        }
+
+        /**
+         * @return the first byte to request, only meaningful if {@link #isRangeSupportable()}.
+         */
+        long getStart() {
+            return start;
+        }
+
+        long getEnd() {
+            return end;
+        }
+
+        boolean isRangeSupportable() {
+            return rangeSupportable;
+        }
+
+        /**
+         * The headers of the data request, with an If-Range for a range.
+         */
+        Map<String, String> getHeaders() {
+            return rangeSupportable ? download.getDataHeaders() : request.headers();
+        }
+
+        /**
+         * Called once the connection delivers the body.
+         */
+        void open() throws IOException {
+            notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.DOWNLOADING));
+            randomAccessFile = new RandomAccessFile(file, "rw");
+            fileChannel = randomAccessFile.getChannel();
+            if (singleFile) {
+                position = start;
+                if (!rangeSupportable) {
+                    fileChannel.truncate(0);
+                }
+            } else if (rangeSupportable && !serverFileChanged) {
+                position = fileChannel.size();
             } else {
-                File folder = file.getParentFile();
-                if (!folder.exists()) {
-                    folder.mkdirs();
+                position = 0;
+                fileChannel.truncate(0);
+            }
+            // the digest goes on from what it covers, only the bytes written after that are read back
+            completeDigest(fileChannel, singleFile ? chunk.start() : 0, singleFile ? position - chunk.start() : position);
+            if (!singleFile && blockMapped) {
+                openBlockMap();
+            }
+            checkpoint = downloadedBytes + CHECKPOINT_BYTES;
+            sampleTime = System.nanoTime();
+            sampleBytes = downloadedBytes;
+        }
+
+        /**
+         * Go on with the block map from the position the part file is written at.
+         */
+        private void openBlockMap() throws IOException {
+            blockMapFile = new RandomAccessFile(getBlockMapFile(), "rw");
+            blockMap = blockMapFile.getChannel();
+            if (blockedBytes == position) {
+                blockMap.position(blockMap.size());
+                return;
+            }
+            // the values of the whole blocks are in the block map, the rest is read back
+            long blocks = Math.min(position / BLOCK_BYTES, blockMap.size() / 4);
+            blockMap.truncate(blocks * 4);
+            blockMap.position(blocks * 4);
+            blockedBytes = blocks * BLOCK_BYTES;
+            blockCrc = 0;
+            ByteBuffer buffer = ByteBuffer.allocate(READ_BACK_BYTES);
+            while (blockedBytes < position) {
+                long count = Math.min(BLOCK_BYTES - blockedBytes % BLOCK_BYTES, position - blockedBytes);
+                blockCrc = readBack(fileChannel, buffer, blockedBytes, count, blockCrc);
+                blockedBytes += count;
+                if (blockedBytes % BLOCK_BYTES == 0) {
+                    appendBlock();
                 }
             }
+        }
+
+        /**
+         * Add the remaining bytes of the buffer to the block values, the buffer's position is not changed.
+         */
+        private void updateBlocks(ByteBuffer buffer) throws IOException {
+            ByteBuffer slice = buffer.duplicate();
+            while (slice.hasRemaining()) {
+                int count = (int) Math.min(slice.remaining(), BLOCK_BYTES - blockedBytes % BLOCK_BYTES);
+                int limit = slice.limit();
+                slice.limit(slice.position() + count);
+                blockCrc = Crc32c.update(blockCrc, slice);
+                slice.position(slice.limit()).limit(limit);
+                blockedBytes += count;
+                if (blockedBytes % BLOCK_BYTES == 0) {
+                    appendBlock();
+                }
+            }
+        }
+
+        private void appendBlock() throws IOException {
+            blockValue.clear();
+            blockValue.putInt(blockCrc).flip();
+            while (blockValue.hasRemaining()) {
+                blockMap.write(blockValue);
+            }
+            blockCrc = 0;
+        }
+
+        /**
+         * Everything written so far is on the disk.
+         */
+        private void sync() throws IOException {
+            fileChannel.force(false);
+            if (blockMap != null) {
+                blockMap.force(false);
+            }
+            syncedBytes = downloadedBytes;
+        }
+
+        /**
+         * @return how many bytes may be read next, never past the end of the chunk as it may have shrunk
+         * since the last read, 0 if the transfer should stop.
+         */
+        long remaining(long max) {
             if (download.getPauseFlag()) {
+                paused = true;
+                return 0;
+            }
+            return rangeSupportable ? Math.min(max, getRemainingBytes()) : max;
+        }
+
+        /**
+         * Take the next batch of tokens from the rate limiters if this transfer used up its last one.
+         *
+         * @return nanoseconds to wait before reading.
+         */
+        long reserve() {
+            if (!download.isRateLimited()) {
+                return 0;
+            }
+            long now = System.nanoTime();
+            if (tokens <= 0) {
+                long bytes = download.bandwidthBatch() - tokens;
+                tokens += bytes;
+                tokenTime = now + download.reserveBandwidth(bytes);
+            }
+            return Math.max(0, tokenTime - now);
+        }
+
+        /**
+         * @return how many of {@code max} bytes the tokens of this transfer allow to read now.
+         */
+        long permitted(long max) {
+            return download.isRateLimited() ? Math.min(max, tokens) : max;
+        }
+
+        void write(ByteBuffer buffer) throws IOException {
+            int length = buffer.remaining();
+            tokens -= length;
+            if (isDigestTracked()) {
+                updateDigest(buffer);
+            }
+            if (blockMap != null) {
+                updateBlocks(buffer);
+            }
+            while (buffer.hasRemaining()) {
+                position += fileChannel.write(buffer, position);
+            }
+            notifyDownloadProgress(length);
+            if (downloadedBytes >= checkpoint) {
+                sync();
+                saveCheckpoint();
+                checkpoint = downloadedBytes + CHECKPOINT_BYTES;
+            }
+            long now = System.nanoTime();
+            if (now - sampleTime >= SAMPLE_NANOS) {
+                throughput = (downloadedBytes - sampleBytes) * SAMPLE_NANOS / (now - sampleTime);
+                sampleTime = now;
+                sampleBytes = downloadedBytes;
+                download.resplitAsync();
+            }
+        }
+
+        /**
+         * The connection reached its end or the download is paused.
+         */
+        void finish() {
+            throughput = 0;
+            paused |= download.getPauseFlag();
+            try {
+                if (blockMap != null && !paused && blockedBytes % BLOCK_BYTES != 0) {
+                    // the last block of the chunk is shorter
+                    appendBlock();
+                }
+                if (fileChannel != null) {
+                    sync();
+                }
+            } catch (IOException e) {
+                fail(e);
+                return;
+            }
+            dispatchProgress();
+            download.flushProgressAsync();
+            if (paused) {
                 notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.IDLE));
+            } else {
+                notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.COMPLETE));
+                download.stealWorkAsync();
+            }
+        }
+
+        void fail(Exception e) {
+            if (e instanceof ServerFileChangedException) {
+                download.notifyServerFileChanged();
+            }
+            throughput = 0;
+            dispatchProgress();
+            download.flushProgressAsync();
+            notifyChunkDownloadStatus(new ChunkDownloadStatus(e));
+        }
+
+        void close() {
+            close(randomAccessFile);
+            close(blockMapFile);
+        }
+
+        private void close(RandomAccessFile file) {
+            if (file != null) {
+                try {
+                    file.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
+        }
+    }
+
+    class ChunkDownloader implements Runnable {
+
+        @Override
+        public void run() {
+            ReadableByteChannel handed = body.getAndSet(null);
+            ChunkTransfer transfer = prepare();
+            if (transfer == null) {
+                closeQuietly(handed);
                 return;
             }
-            InputStream inputStream;
+            ReadableByteChannel channel;
             try {
-                if (rangeSupportable) {
-                    inputStream = downloadAPI.getInputStream(
+                if (handed != null && transfer.getStart() == 0) {
+                    channel = handed;
+                } else if (transfer.isRangeSupportable()) {
+                    closeQuietly(handed);
+                    channel = downloadAPI.getChannel(
                             request.url(),
-                            request.headers(),
-                            start,
-                            end);
+                            transfer.getHeaders(),
+                            transfer.getStart(),
+                            transfer.getEnd());
                 } else {
-                    inputStream = downloadAPI.getInputStream(request.url(), request.headers());
+                    closeQuietly(handed);
+                    channel = downloadAPI.getChannel(request.url(), request.headers());
                 }
             } catch (ConnectException e) {
-                notifyChunkDownloadStatus(new ChunkDownloadStatus(e));
+                transfer.fail(e);
                 return;
             }
-            inputStream = new BufferedInputStream(inputStream);
-            OutputStream outputStream = null;
+            BufferPool bufferPool = download.getBufferPool();
+            ByteBuffer buffer = bufferPool.acquire();
             try {
-                notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.DOWNLOADING));
-                outputStream = new FileOutputStream(file, rangeSupportable && !serverFileChanged);
-                byte data[] = new byte[8192];
-                int length;
-                while (!download.getPauseFlag()
-                        && (length = inputStream.read(data)) != -1) {
-                    outputStream.write(data, 0, length);
-                    notifyDownloadProgress(length);
-                }
-                outputStream.flush();
-                if (download.getPauseFlag()) {
-                    notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.IDLE));
-                } else {
-                    notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.COMPLETE));
-                }
-            } catch (IOException e) {
-                notifyChunkDownloadStatus(new ChunkDownloadStatus(e));
-            } finally {
-                if (outputStream != null) {
-                    try {
-                        outputStream.close();
-                        inputStream.close();
-                    } catch (IOException e) {
-                        e.printStackTrace();
+                transfer.open();
+                long remaining;
+                while ((remaining = transfer.remaining(buffer.capacity())) > 0) {
+                    long wait = transfer.reserve();
+                    if (wait > 0) {
+                        // wait in slices to notice a pause
+                        LockSupport.parkNanos(Math.min(wait, PAUSE_CHECK_NANOS));
+                        continue;
                     }
+                    buffer.clear();
+                    buffer.limit((int) transfer.permitted(remaining));
+                    if (channel.read(buffer) == -1) {
+                        if (getRemainingBytes() > 0) {
+                            // a hole left in the file would pass as a complete download
+                            throw new EOFException("Connection closed before the end of the body.");
+                        }
+                        break;
+                    }
+                    buffer.flip();
+                    transfer.write(buffer);
                 }
+                transfer.finish();
+            } catch (IOException | RuntimeException e) {
+                transfer.fail(e);
+            } finally {
+                bufferPool.release(buffer);
+                transfer.close();
+                closeQuietly(channel);
             }
         }
     }
@@ -8,7 +8,8 @@ public interface ChunkDownloadListener {
     void onDownloadStatusChanged(ChunkDownload chunkDownload, ChunkDownloadStatus chunkDownloadStatus);
 
     /**
-     * Pay attention to that this method will be called in every {@link ChunkDownload} runnable.
+     * Pay attention to that this method will be called in every {@link Download}'s action thread pool
+     * at most once per progress interval, and in the {@link ChunkDownload} runnable with the exact bytes when it stops.
      */
     void onProgress(ChunkDownload chunkDownload, long downloadedBytes);
 }
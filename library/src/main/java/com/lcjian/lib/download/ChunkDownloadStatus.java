@@ -17,6 +17,23 @@ public class ChunkDownloadStatus implements Serializable {
 
     private Throwable throwable;
 
+    /**
+     * Bytes of the chunk that have been written when this status was saved, used to resume a single file download.
+     */
+    private long downloadedBytes;
+
+    /**
+     * CRC-32C of the first {@link #checksumBytes} bytes of the chunk, used to go on verifying a download after resume.
+     */
+    private int checksum;
+
+    private long checksumBytes;
+
+    /**
+     * Bytes of the chunk that were synced to the disk when this status was saved, a part file is only rechecked after.
+     */
+    private long syncedBytes;
+
     ChunkDownloadStatus(int status) {
         if (status == ERROR) {
             throw new IllegalArgumentException("You should call ChunkDownloadStatus(Throwable throwable).");
@@ -36,4 +53,33 @@ public class ChunkDownloadStatus implements Serializable {
     public Throwable getThrowable() {
         return throwable;
     }
-}
\ No newline at end of file
+
+    public long getDownloadedBytes() {
+        return downloadedBytes;
+    }
+
+    void setDownloadedBytes(long downloadedBytes) {
+        this.downloadedBytes = downloadedBytes;
+    }
+
+    public int getChecksum() {
+        return checksum;
+    }
+
+    public long getChecksumBytes() {
+        return checksumBytes;
+    }
+
+    void setChecksum(int checksum, long checksumBytes) {
+        this.checksum = checksum;
+        this.checksumBytes = checksumBytes;
+    }
+
+    public long getSyncedBytes() {
+        return syncedBytes;
+    }
+
+    void setSyncedBytes(long syncedBytes) {
+        this.syncedBytes = syncedBytes;
+    }
+}
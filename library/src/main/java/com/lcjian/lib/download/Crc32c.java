@@ -0,0 +1,136 @@
+package com.lcjian.lib.download;
+
+import java.nio.ByteBuffer;
+
+/**
+ * CRC-32C (Castagnoli) that can go on from a saved value and combine the values of two adjacent ranges,
+ * so every chunk keeps its own value while it downloads and the file's value is put together from them.
+ */
+final class Crc32c {
+
+    private static final int POLY = 0x82F63B78;
+    private static final int[][] TABLE = new int[8][256];
+
+    static {
+        for (int n = 0; n < 256; n++) {
+            int crc = n;
+            for (int k = 0; k < 8; k++) {
+                crc = (crc & 1) != 0 ? (crc >>> 1) ^ POLY : crc >>> 1;
+            }
+            TABLE[0][n] = crc;
+        }
+        for (int n = 0; n < 256; n++) {
+            int crc = TABLE[0][n];
+            for (int k = 1; k < 8; k++) {
+                crc = TABLE[0][crc & 0xff] ^ (crc >>> 8);
+                TABLE[k][n] = crc;
+            }
+        }
+    }
+
+    private Crc32c() {
+    }
+
+    /**
+     * Go on from {@code crc} with the remaining bytes of the buffer, its position is not changed.
+     */
+    static int update(int crc, ByteBuffer buffer) {
+        if (buffer.hasArray()) {
+            return update(crc, buffer.array(), buffer.arrayOffset() + buffer.position(), buffer.remaining());
+        }
+        int c = ~crc;
+        int i = buffer.position();
+        int limit = buffer.limit();
+        for (; limit - i >= 8; i += 8) {
+            c ^= (buffer.get(i) & 0xff) | (buffer.get(i + 1) & 0xff) << 8
+                    | (buffer.get(i + 2) & 0xff) << 16 | (buffer.get(i + 3) & 0xff) << 24;
+            c = TABLE[7][c & 0xff] ^ TABLE[6][(c >>> 8) & 0xff]
+                    ^ TABLE[5][(c >>> 16) & 0xff] ^ TABLE[4][c >>> 24]
+                    ^ TABLE[3][buffer.get(i + 4) & 0xff] ^ TABLE[2][buffer.get(i + 5) & 0xff]
+                    ^ TABLE[1][buffer.get(i + 6) & 0xff] ^ TABLE[0][buffer.get(i + 7) & 0xff];
+        }
+        for (; i < limit; i++) {
+            c = TABLE[0][(c ^ buffer.get(i)) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    static int update(int crc, byte[] bytes, int offset, int length) {
+        int c = ~crc;
+        int i = offset;
+        int limit = offset + length;
+        for (; limit - i >= 8; i += 8) {
+            c ^= (bytes[i] & 0xff) | (bytes[i + 1] & 0xff) << 8
+                    | (bytes[i + 2] & 0xff) << 16 | (bytes[i + 3] & 0xff) << 24;
+            c = TABLE[7][c & 0xff] ^ TABLE[6][(c >>> 8) & 0xff]
+                    ^ TABLE[5][(c >>> 16) & 0xff] ^ TABLE[4][c >>> 24]
+                    ^ TABLE[3][bytes[i + 4] & 0xff] ^ TABLE[2][bytes[i + 5] & 0xff]
+                    ^ TABLE[1][bytes[i + 6] & 0xff] ^ TABLE[0][bytes[i + 7] & 0xff];
+        }
+        for (; i < limit; i++) {
+            c = TABLE[0][(c ^ bytes[i]) & 0xff] ^ (c >>> 8);
+        }
+        return ~c;
+    }
+
+    /**
+     * The value of two ranges one after another, from the value of each and the length of the second, as zlib does.
+     */
+    static int combine(int crc1, int crc2, long length2) {
+        if (length2 <= 0) {
+            return crc1;
+        }
+        int[] even = new int[32];
+        int[] odd = new int[32];
+        // the operator for one zero bit
+        odd[0] = POLY;
+        int row = 1;
+        for (int n = 1; n < 32; n++) {
+            odd[n] = row;
+            row <<= 1;
+        }
+        // two zero bits, then four
+        square(even, odd);
+        square(odd, even);
+        // apply zeros to crc1 as many as length2 bytes
+        do {
+            square(even, odd);
+            if ((length2 & 1) != 0) {
+                crc1 = times(even, crc1);
+            }
+            length2 >>>= 1;
+            if (length2 == 0) {
+                break;
+            }
+            square(odd, even);
+            if ((length2 & 1) != 0) {
+                crc1 = times(odd, crc1);
+            }
+            length2 >>>= 1;
+        } while (length2 != 0);
+        return crc1 ^ crc2;
+    }
+
+    static String toHex(int crc) {
+        return String.format("%08X", crc);
+    }
+
+    private static int times(int[] matrix, int vector) {
+        int sum = 0;
+        int i = 0;
+        while (vector != 0) {
+            if ((vector & 1) != 0) {
+                sum ^= matrix[i];
+            }
+            vector >>>= 1;
+            i++;
+        }
+        return sum;
+    }
+
+    private static void square(int[] square, int[] matrix) {
+        for (int n = 0; n < 32; n++) {
+            square[n] = times(matrix, matrix[n]);
+        }
+    }
+}
@@ -1,54 +1,140 @@
 package com.lcjian.lib.download;
 
 import com.lcjian.lib.download.exception.ConnectException;
+import com.lcjian.lib.download.exception.DigestMismatchException;
 import com.lcjian.lib.download.exception.FileExistsException;
+import com.lcjian.lib.download.exception.ServerFileChangedException;
 
 import java.io.File;
 import java.io.FileInputStream;
-import java.io.FileNotFoundException;
-import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
 import java.nio.channels.FileChannel;
 import java.util.ArrayList;
 import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
 import java.util.logging.Logger;
 
 public final class Download {
 
+    /**
+     * A chunk download that finishes early only takes over half of another chunk's remaining range
+     * when at least this many bytes remain there.
+     */
+    private static final long MIN_STEAL_BYTES = 4 * 1024 * 1024;
+
+    /**
+     * Both halves of a split range must stay far bigger than a single read of a running chunk download,
+     * which reads at most one buffer of the {@link BufferPool}.
+     */
+    private static final long MIN_SPLIT_BYTES = 256 * 1024;
+
+    /**
+     * A rate limited chunk download takes the tokens for about this long at once, so the limiters are rarely touched.
+     */
+    private static final long BANDWIDTH_BATCH_NANOS = TimeUnit.MILLISECONDS.toNanos(50);
+
+    private static final long MIN_BANDWIDTH_BATCH = 4 * 1024;
+
+    private static final long MAX_BANDWIDTH_BATCH = 64 * 1024;
+
+    /**
+     * How many threads copy the parts of a download into its file at most.
+     */
+    private static final int MERGE_THREADS = 4;
+
+    /**
+     * A part is copied in slices of this size, so that the merge progress moves along.
+     */
+    private static final long MERGE_SLICE_BYTES = 8 * 1024 * 1024;
+
     private final Request request;
     private final Splitter splitter;
     private final DownloadAPI downloadAPI;
     private final RetryPolicy retryPolicy;
     private final PersistenceAdapter persistenceAdapter;
     private final ExecutorService chunkDownloadThreadPool;
+    private final SelectorDownloadEngine selectorDownloadEngine;
+    private final ThreadFactory actionThreadFactory;
+    private final HostScheduler hostScheduler;
     private final String defaultDestination;
     private final CopyOnWriteArrayList<DownloadListener> listeners;
-    private final AtomicLong downloadedBytes;
+    /**
+     * Striped, so that many chunk downloads can count their bytes without contending on a single counter.
+     */
+    private final LongAdder downloadedBytes;
     private final AtomicBoolean pauseFlag = new AtomicBoolean(true);
     private final AtomicBoolean retryFlag = new AtomicBoolean(false);
     private final AtomicBoolean shutdownFlag = new AtomicBoolean(false);
     private final AtomicBoolean deleteFlag = new AtomicBoolean(false);
-    private final Semaphore semaphore;
+    private final AdmissionQueue admissionQueue;
+    private final MetadataCache metadataCache;
+    private final DownloadCache downloadCache;
+    /**
+     * Set when a data request finds the file changed on the server, the next initialization re-splits.
+     */
+    private final AtomicBoolean serverFileChangedFlag = new AtomicBoolean(false);
+    /**
+     * Set when the admission queue pauses this download for a more urgent one, it resumes once it is idle.
+     */
+    private final AtomicBoolean preempted = new AtomicBoolean(false);
+    private final boolean singleFile;
+    private final BufferPool bufferPool;
+    private final RateLimiter rateLimiter;
+    private final RateLimiter globalRateLimiter;
+    private final long progressInterval;
+    private final long progressThreshold;
+    private final AtomicBoolean progressScheduled = new AtomicBoolean(false);
+    private final Runnable progressDispatcher;
     private final Logger logger;
+    private volatile long progressTime;
+    private volatile long progressBytes;
+    private volatile int priority;
+    private volatile long queueWaitTime;
+    private volatile Map<String, String> dataHeaders;
+    /**
+     * Guards {@link #actionThreadPool}, chunk threads submit the progress to it while a pause replaces it.
+     */
+    private final Object actionLock = new Object();
     private ExecutorService actionThreadPool;
     private List<ChunkDownload> chunkDownloads;
     private DownloadStatus downloadStatus;
-    private DownloadInfo downloadInfo;
+    private volatile DownloadInfo downloadInfo;
     private boolean shutdown = false;
-    private boolean needRelease = true;
+    private boolean admitted = false;
+    /**
+     * The download whose transfer this one shares, it fills this download's file once it is complete.
+     */
+    private volatile Download leader;
+    /**
+     * The downloads sharing this download's transfer, none can join any more once the flight is closed.
+     */
+    private final CopyOnWriteArrayList<Download> followers = new CopyOnWriteArrayList<>();
+    private boolean flightClosed;
+    private volatile FlightListener flightListener;
 
     Download(Request request, DownloadStatus downloadStatus, DownloadInfo downloadInfo, List<ChunkDownload> chunkDownloads,
              String defaultDestination, Splitter splitter, DownloadAPI downloadAPI, RetryPolicy retryPolicy, PersistenceAdapter persistenceAdapter,
-             ExecutorService chunkDownloadThreadPool, Semaphore semaphore, Logger logger) {
+             ExecutorService chunkDownloadThreadPool, SelectorDownloadEngine selectorDownloadEngine, ThreadFactory actionThreadFactory,
+             HostScheduler hostScheduler, AdmissionQueue admissionQueue, MetadataCache metadataCache, DownloadCache downloadCache, boolean singleFile, BufferPool bufferPool,
+             RateLimiter globalRateLimiter, long progressInterval, long progressThreshold, Logger logger) {
         this.request = request;
         this.downloadStatus = downloadStatus;
         this.downloadInfo = downloadInfo;
@@ -58,15 +144,35 @@ public final class Download {
         this.retryPolicy = retryPolicy;
         this.persistenceAdapter = persistenceAdapter;
         this.chunkDownloadThreadPool = chunkDownloadThreadPool;
+        this.selectorDownloadEngine = selectorDownloadEngine;
+        this.actionThreadFactory = actionThreadFactory;
+        this.hostScheduler = hostScheduler;
         this.defaultDestination = defaultDestination;
-        this.semaphore = semaphore;
+        this.admissionQueue = admissionQueue;
+        this.metadataCache = metadataCache;
+        this.downloadCache = downloadCache;
+        this.singleFile = singleFile;
+        this.bufferPool = bufferPool;
+        this.rateLimiter = new RateLimiter(request.rateLimit());
+        this.priority = request.priority();
+        this.globalRateLimiter = globalRateLimiter;
+        this.progressInterval = progressInterval;
+        this.progressThreshold = progressThreshold;
         this.logger = logger;
-        this.downloadedBytes = new AtomicLong();
+        this.downloadedBytes = new LongAdder();
+        this.progressDispatcher = new Runnable() {
+            @Override
+            public void run() {
+                progressScheduled.getAndSet(false);
+                dispatchProgress();
+            }
+        };
         this.listeners = new CopyOnWriteArrayList<>();
 
         if (this.chunkDownloads == null) {
-            this.chunkDownloads = new ArrayList<>();
+            this.chunkDownloads = new CopyOnWriteArrayList<>();
         } else {
+            this.chunkDownloads = new CopyOnWriteArrayList<>(this.chunkDownloads);
             for (ChunkDownload chunkDownload : this.chunkDownloads) {
                 chunkDownload.attach(this);
             }
@@ -105,7 +211,61 @@ public final class Download {
     }
 
     public long getDownloadedBytes() {
-        return downloadedBytes.get();
+        return downloadedBytes.sum();
+    }
+
+    /**
+     * @return bytes per second this download may read at most, 0 for no limit of its own.
+     */
+    public long getRateLimit() {
+        return rateLimiter.getRate();
+    }
+
+    /**
+     * Takes effect on the running chunk downloads right away.
+     *
+     * @param bytesPerSecond 0 for no limit of its own.
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * Starts as {@link Request#priority()}, the smaller the more urgent.
+     */
+    public int getPriority() {
+        return priority;
+    }
+
+    /**
+     * Moves this download in the admission queue if it is waiting, and changes its share of the global rate limit
+     * if it is running. The priority is not persisted, it starts as {@link Request#priority()} again next time.
+     */
+    public void setPriority(int priority) {
+        this.priority = priority;
+        admissionQueue.reprioritize(this);
+    }
+
+    /**
+     * @return the connections all downloads have to the host of this download's url, open or waiting for one.
+     */
+    public int getHostConnectionCount() {
+        return hostScheduler.getDemand(request.url());
+    }
+
+    /**
+     * @return milliseconds this download waited in the admission queue the last time it was resumed.
+     */
+    public long getQueueWaitTime() {
+        return TimeUnit.NANOSECONDS.toMillis(queueWaitTime);
+    }
+
+    /**
+     * @return the download of the same content this download waits for instead of downloading it again,
+     * null if it downloads on its own.
+     */
+    public Download getLeader() {
+        return leader;
     }
 
     public void addDownloadListener(DownloadListener downloadListener) {
@@ -120,13 +280,74 @@ public final class Download {
         return pauseFlag.get();
     }
 
+    BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    boolean isRateLimited() {
+        return rateLimiter.isLimited() || globalRateLimiter.isLimited();
+    }
+
+    /**
+     * How many bytes a chunk download of this download takes from the limiters at once. Every waiting chunk
+     * download gets its batch in turn, so the size of the batch decides its share of the common limit.
+     */
+    long bandwidthBatch() {
+        // the batches are this download's share of the global limit, its own limit does not change the share
+        long rate = globalRateLimiter.isLimited() ? globalRateLimiter.getRate() : rateLimiter.getRate();
+        long batch = Math.max(MIN_BANDWIDTH_BATCH, Math.min(MAX_BANDWIDTH_BATCH, rate / (TimeUnit.SECONDS.toNanos(1) / BANDWIDTH_BATCH_NANOS)));
+        if (globalRateLimiter.isLimited()) {
+            batch = Math.max(1024, (long) (batch * RateLimiter.weight(priority)));
+        }
+        if (rateLimiter.isLimited()) {
+            // but a batch is never more than its own limit allows in one batch time, a low limit would burst past it
+            batch = Math.min(batch, Math.max(1, rateLimiter.getRate() / (TimeUnit.SECONDS.toNanos(1) / BANDWIDTH_BATCH_NANOS)));
+        }
+        return batch;
+    }
+
+    /**
+     * @return nanoseconds to wait until both this download's and the global limit allow the bytes.
+     */
+    long reserveBandwidth(long bytes) {
+        return Math.max(rateLimiter.reserve(bytes), globalRateLimiter.reserve(bytes));
+    }
+
     void pauseAsync() {
+        preempted.getAndSet(false);
+        pause();
+    }
+
+    /**
+     * Pause to make room for a more urgent download and resume once this download is idle.
+     */
+    void preemptAsync() {
+        logger.info(Utils.formatString("Download(%s) is preempted.", request.simplifiedId()));
+        preempted.getAndSet(true);
+        pause();
+    }
+
+    private void pause() {
         if (!pauseFlag.get()) {
             // make this download pause.
             pauseFlag.getAndSet(true);
-            List<Runnable> runnableList = actionThreadPool.shutdownNow();
-            for (Runnable runnable : runnableList) {
-                execute(runnable);
+            synchronized (actionLock) {
+                List<Runnable> runnableList = actionThreadPool.shutdownNow();
+                for (Runnable runnable : runnableList) {
+                    execute(runnable);
+                }
+            }
+            if (leader != null) {
+                execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        Download current = leader;
+                        // otherwise the leader already passed on its last status
+                        if (current != null && current.removeFollower(Download.this)) {
+                            notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                        }
+                    }
+                });
             }
         } else {
             if (!shutdownFlag.get()) {
@@ -148,21 +369,19 @@ public final class Download {
                         if (retryFlag.get()
                                 || st == DownloadStatus.IDLE
                                 || st == DownloadStatus.ERROR
-                                || st == DownloadStatus.MERGE_ERROR) {
-                            if (retryFlag.get()) {
-                                retryFlag.getAndSet(false);
-                            } else {
-                                try {
-                                    notifyDownloadStatus(new DownloadStatus(DownloadStatus.PENDING));
-                                    semaphore.acquire();
-                                } catch (InterruptedException e) {
-                                    e.printStackTrace();
-                                    needRelease = false;
-                                    notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                                || st == DownloadStatus.MERGE_ERROR
+                                || st == DownloadStatus.VERIFY_ERROR) {
+                            retryFlag.getAndSet(false);
+                            Download current = leader;
+                            if (current != null) {
+                                if (current.addFollower(Download.this)) {
+                                    notifyDownloadStatus(new DownloadStatus(current.isTransferring()
+                                            ? DownloadStatus.DOWNLOADING : DownloadStatus.PENDING));
                                     return;
                                 }
+                                leader = null;
                             }
-                            initialize();
+                            start();
                         } else {
                             logger.warning(Utils.formatString("Download(%s) is running.", request.simplifiedId()));
                         }
@@ -174,6 +393,268 @@ public final class Download {
         }
     }
 
+    /**
+     * Wait for a place in the admission queue unless a retry keeps it, then download.
+     */
+    private void start() {
+        openFlight();
+        if (!admitted) {
+            try {
+                notifyDownloadStatus(new DownloadStatus(DownloadStatus.PENDING));
+                queueWaitTime = admissionQueue.acquire(Download.this);
+                admitted = true;
+            } catch (InterruptedException e) {
+                notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                return;
+            }
+        }
+        if (splitter instanceof DynamicSplitter) {
+            ((DynamicSplitter) splitter).reset(Download.this);
+        }
+        initialize();
+    }
+
+    /**
+     * Share the transfer of the leader when resumed, instead of downloading the same content again.
+     */
+    void follow(Download leader) {
+        this.leader = leader;
+    }
+
+    private boolean addFollower(Download follower) {
+        synchronized (followers) {
+            if (flightClosed) {
+                return false;
+            }
+            followers.add(follower);
+            return true;
+        }
+    }
+
+    private boolean removeFollower(Download follower) {
+        synchronized (followers) {
+            return followers.remove(follower);
+        }
+    }
+
+    /**
+     * @return whether another download of the same content can still share this download's transfer.
+     */
+    boolean isFlightOpen() {
+        synchronized (followers) {
+            return !flightClosed;
+        }
+    }
+
+    void setFlightListener(FlightListener flightListener) {
+        this.flightListener = flightListener;
+    }
+
+    private void openFlight() {
+        synchronized (followers) {
+            flightClosed = false;
+        }
+        FlightListener temp = flightListener;
+        if (temp != null) {
+            temp.onFlightOpen(this);
+        }
+    }
+
+    private List<Download> closeFlight() {
+        List<Download> temp;
+        synchronized (followers) {
+            flightClosed = true;
+            temp = new ArrayList<>(followers);
+            followers.clear();
+        }
+        FlightListener listener = flightListener;
+        if (listener != null) {
+            listener.onFlightClose(this);
+        }
+        return temp;
+    }
+
+    private boolean isTransferring() {
+        int st = downloadStatus.getStatus();
+        return st == DownloadStatus.DOWNLOADING || st == DownloadStatus.MERGING;
+    }
+
+    /**
+     * Pass the status of this download on to the downloads sharing its transfer.
+     */
+    private void notifyFollowers(DownloadStatus status) {
+        int st = status.getStatus();
+        if (st == DownloadStatus.COMPLETE) {
+            for (Download follower : closeFlight()) {
+                follower.fillAsync(this);
+            }
+        } else if (st == DownloadStatus.ERROR
+                || st == DownloadStatus.MERGE_ERROR
+                || st == DownloadStatus.VERIFY_ERROR) {
+            for (Download follower : closeFlight()) {
+                follower.failAsync(status.getThrowable());
+            }
+        } else if (st == DownloadStatus.IDLE) {
+            if (preempted.get() && !shutdownFlag.get()) {
+                // resumes by itself
+                for (Download follower : followers) {
+                    follower.mirrorStatusAsync(DownloadStatus.PENDING);
+                }
+            } else {
+                handOver(closeFlight());
+            }
+        } else if (st == DownloadStatus.DOWNLOADING) {
+            for (Download follower : followers) {
+                follower.mirrorStatusAsync(DownloadStatus.DOWNLOADING);
+            }
+        }
+    }
+
+    /**
+     * This download is paused or stopped, the first follower downloads for the others now.
+     */
+    private static void handOver(List<Download> followers) {
+        if (followers.isEmpty()) {
+            return;
+        }
+        final Download next = followers.get(0);
+        next.openFlight();
+        for (Download follower : followers.subList(1, followers.size())) {
+            follower.leader = next;
+            next.addFollower(follower);
+        }
+        next.execute(new Runnable() {
+            @Override
+            public void run() {
+                next.leader = null;
+                if (next.pauseFlag.get()) {
+                    next.notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                    return;
+                }
+                next.start();
+            }
+        });
+    }
+
+    private void mirrorStatusAsync(final int status) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (leader != null && !pauseFlag.get()) {
+                    notifyDownloadStatus(new DownloadStatus(status));
+                }
+            }
+        });
+    }
+
+    private void mirrorProgressAsync(final long bytes) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (leader != null && !pauseFlag.get()) {
+                    downloadedBytes.reset();
+                    downloadedBytes.add(bytes);
+                    dispatchProgress();
+                }
+            }
+        });
+    }
+
+    private void failAsync(final Throwable throwable) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                leader = null;
+                if (pauseFlag.get()) {
+                    notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                    return;
+                }
+                notifyDownloadStatus(new DownloadStatus(throwable));
+            }
+        });
+    }
+
+    private void fillAsync(final Download leader) {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                Download.this.leader = null;
+                if (pauseFlag.get()) {
+                    notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
+                    return;
+                }
+                fill(leader);
+            }
+        });
+    }
+
+    /**
+     * Fill this download's file with a copy of the complete file of the leader, a hard link would let a change to
+     * one file show in the other. The leader verified the digest already, the requests of the same content have the
+     * same digest.
+     */
+    private void fill(Download leader) {
+        if (downloadInfo == null) {
+            downloadInfo = leader.getDownloadInfo().newBuilder()
+                    .createTime(System.currentTimeMillis())
+                    .serverFileChanged(false)
+                    .singleFile(singleFile)
+                    .build();
+            persistenceAdapter.saveDownloadInfo(request, downloadInfo, Collections.<Chunk>emptyList());
+        }
+        if (fill(leader.getDownloadFile())) {
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.COMPLETE));
+        }
+    }
+
+    /**
+     * @return whether the download's file is a copy of the source now, it is not notified complete yet.
+     */
+    private boolean fill(File source) {
+        notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGING));
+
+        File outFile = getDownloadFile();
+        assert outFile != null;
+        if (outFile.getAbsoluteFile().equals(source.getAbsoluteFile())) {
+            return true;
+        }
+        if (outFile.exists()) {
+            if (matchesDigest(outFile)) {
+                return true;
+            }
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, new FileExistsException(outFile)));
+            return false;
+        }
+        try {
+            File folder = outFile.getParentFile();
+            if (!folder.exists() && !folder.mkdirs()) {
+                throw new IOException("Can not create folder " + folder.getAbsolutePath());
+            }
+            Files.copy(source.toPath(), outFile.toPath());
+        } catch (IOException e) {
+            if (outFile.exists() && !outFile.delete()) {
+                logger.warning(Utils.formatString("Can not delete download(%s)'s file(%s) after a failed copy.", request.simplifiedId(), outFile.getName()));
+            }
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, e));
+            return false;
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the request has a digest and the file has it.
+     */
+    private boolean matchesDigest(File file) {
+        if (request.digestAlgorithm() == null) {
+            return false;
+        }
+        try {
+            return request.digest().equalsIgnoreCase(Utils.digest(file, request.digestAlgorithm()));
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
     void shutdownAsync(boolean deleteFile) {
         if (!shutdownFlag.get()) {
             // use for winding up when this download is paused.
@@ -189,6 +670,7 @@ public final class Download {
                     if (st == DownloadStatus.IDLE
                             || st == DownloadStatus.ERROR
                             || st == DownloadStatus.MERGE_ERROR
+                            || st == DownloadStatus.VERIFY_ERROR
                             || st == DownloadStatus.COMPLETE) {
                         windUp();
                     }
@@ -199,10 +681,58 @@ public final class Download {
         }
     }
 
+    /**
+     * Only counts the bytes, the listeners are notified later in the action thread once the progress interval
+     * has passed or the progress threshold is crossed, so slow listeners never hold up a chunk download's reads.
+     */
     void notifyDownloadProgress(long delta) {
-        long bytes = this.downloadedBytes.addAndGet(delta);
-        for (DownloadListener downloadListener : listeners) {
-            downloadListener.onProgress(this, bytes);
+        this.downloadedBytes.add(delta);
+        if ((System.nanoTime() - progressTime >= progressInterval
+                || progressThreshold != Long.MAX_VALUE && Math.abs(downloadedBytes.sum() - progressBytes) >= progressThreshold)
+                && progressScheduled.compareAndSet(false, true)) {
+            try {
+                execute(progressDispatcher);
+            } catch (RejectedExecutionException e) {
+                // the chunk thread goes on reading, the next read schedules it again
+                progressScheduled.getAndSet(false);
+            }
+        }
+    }
+
+    /**
+     * Counts the bytes already on disk when the chunk downloads are restored, nobody is listening yet.
+     */
+    void addDownloadedBytes(long delta) {
+        this.downloadedBytes.add(delta);
+        progressBytes = this.downloadedBytes.sum();
+    }
+
+    /**
+     * Notify the exact progress in the action thread, before any status change queued after it.
+     */
+    void flushProgressAsync() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatchProgress();
+            }
+        });
+    }
+
+    private void dispatchProgress() {
+        progressTime = System.nanoTime();
+        for (ChunkDownload chunkDownload : chunkDownloads) {
+            chunkDownload.dispatchProgress();
+        }
+        long bytes = downloadedBytes.sum();
+        if (bytes != progressBytes) {
+            progressBytes = bytes;
+            for (DownloadListener downloadListener : listeners) {
+                downloadListener.onProgress(this, bytes);
+            }
+            for (Download follower : followers) {
+                follower.mirrorProgressAsync(bytes);
+            }
         }
     }
 
@@ -210,14 +740,15 @@ public final class Download {
         int st = status.getStatus();
         boolean changed = st != downloadStatus.getStatus();
         if (changed) {
-            if ((st == DownloadStatus.ERROR || st == DownloadStatus.MERGE_ERROR)
+            if ((st == DownloadStatus.ERROR || st == DownloadStatus.MERGE_ERROR || st == DownloadStatus.VERIFY_ERROR)
                     && retryPolicy.shouldRetry(Download.this, status.getThrowable())
                     && !pauseFlag.get()) {
                 retryFlag.getAndSet(true);
             }
             if (st == DownloadStatus.IDLE
                     || st == DownloadStatus.ERROR
-                    || st == DownloadStatus.MERGE_ERROR) {
+                    || st == DownloadStatus.MERGE_ERROR
+                    || st == DownloadStatus.VERIFY_ERROR) {
                 // make this download resume-able again.
                 pauseFlag.getAndSet(true);
             }
@@ -235,16 +766,23 @@ public final class Download {
             if (st == DownloadStatus.IDLE
                     || st == DownloadStatus.ERROR
                     || st == DownloadStatus.MERGE_ERROR
+                    || st == DownloadStatus.VERIFY_ERROR
                     || st == DownloadStatus.COMPLETE) {
-                if (needRelease) {
-                    semaphore.release();
+                if (admitted) {
+                    admitted = false;
+                    admissionQueue.release(Download.this);
                 }
                 windUp();
             }
             for (DownloadListener downloadListener : listeners) {
                 downloadListener.onDownloadStatusChanged(Download.this, downloadStatus);
             }
+            notifyFollowers(downloadStatus);
             logger.fine(Utils.formatString("Download(%s)'s status is changed, status:%d", request.simplifiedId(), downloadStatus.getStatus()));
+            if (preempted.getAndSet(false) && st == DownloadStatus.IDLE && !shutdownFlag.get()) {
+                // wait for a free place again, with the progress kept
+                resumeAsync();
+            }
         }
     }
 
@@ -252,6 +790,11 @@ public final class Download {
         execute(new Runnable() {
             @Override
             public void run() {
+                if (downloadStatus.getStatus() == DownloadStatus.COMPLETE) {
+                    // chunks finishing at the same time queue more than one update
+                    return;
+                }
+                continueDigest();
                 DownloadStatus tempDownloadStatus = null;
                 for (ChunkDownload chunkDownload : chunkDownloads) {
                     if (chunkDownload.getChunkDownloadStatus().getStatus() == ChunkDownloadStatus.DOWNLOADING) {
@@ -292,21 +835,194 @@ public final class Download {
         });
     }
 
+    /**
+     * Let the worker of a finished chunk take over the back half of the busiest chunk's remaining range,
+     * so that idle connections keep working until the whole file is done.
+     */
+    void stealWorkAsync() {
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                stealWork();
+            }
+        });
+    }
+
+    /**
+     * Ask a {@link DynamicSplitter} whether to open more connections with the latest throughput samples.
+     */
+    void resplitAsync() {
+        if (!(splitter instanceof DynamicSplitter)) {
+            return;
+        }
+        execute(new Runnable() {
+            @Override
+            public void run() {
+                if (pauseFlag.get()
+                        || downloadInfo == null
+                        || !downloadInfo.rangeInfo().rangeSupportable()) {
+                    return;
+                }
+                int count = ((DynamicSplitter) splitter).resplit(Download.this);
+                for (int i = 0; i < count; i++) {
+                    if (!stealWork()) {
+                        break;
+                    }
+                }
+            }
+        });
+    }
+
+    private boolean stealWork() {
+        if (pauseFlag.get()
+                || downloadInfo == null
+                || !downloadInfo.rangeInfo().rangeSupportable()) {
+            return false;
+        }
+        ChunkDownload busiest = null;
+        long mostRemaining = 0;
+        for (ChunkDownload chunkDownload : chunkDownloads) {
+            int st = chunkDownload.getChunkDownloadStatus().getStatus();
+            if (st == ChunkDownloadStatus.PENDING || st == ChunkDownloadStatus.DOWNLOADING) {
+                long remaining = chunkDownload.getRemainingBytes();
+                if (remaining > mostRemaining) {
+                    mostRemaining = remaining;
+                    busiest = chunkDownload;
+                }
+            }
+        }
+        if (busiest == null) {
+            return false;
+        }
+        long minBytes = splitter instanceof DynamicSplitter
+                ? Math.max(((DynamicSplitter) splitter).minSplitBytes(), MIN_SPLIT_BYTES) : MIN_STEAL_BYTES;
+        Chunk chunk = busiest.split(newChunkFile(), Math.max(minBytes, bufferPool.getBufferSize() * 8L));
+        if (chunk == null) {
+            return false;
+        }
+        List<Chunk> changed = new ArrayList<>(2);
+        changed.add(busiest.getChunk());
+        changed.add(chunk);
+        persistenceAdapter.saveChunks(request, changed);
+
+        ChunkDownload chunkDownload = new ChunkDownload(request, chunk, null, downloadAPI, persistenceAdapter, logger);
+        chunkDownload.attach(Download.this);
+        chunkDownloads.add(chunkDownload);
+        for (DownloadListener downloadListener : listeners) {
+            downloadListener.onChunkDownloadsCreate(Download.this, Collections.singletonList(chunkDownload));
+        }
+        logger.fine(Utils.formatString("Download(%s) splits %s bytes off chunk(%d) to chunk(%d)",
+                request.simplifiedId(), mostRemaining / 2, busiest.getChunk().start(), chunk.start()));
+        chunkDownload.notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.PENDING));
+        executeChunkDownload(chunkDownload);
+        return true;
+    }
+
+    /**
+     * Start the chunk download once its host has a free connection, see {@link HostScheduler}.
+     */
+    private void executeChunkDownload(ChunkDownload chunkDownload) {
+        HostScheduler.Slot slot = newSlot(chunkDownload);
+        chunkDownload.setSlot(slot);
+        hostScheduler.submit(slot);
+    }
+
+    /**
+     * Start the first chunk download on the probe's open connection if its host has a free connection right now,
+     * so that the connection is counted. The body is closed otherwise, it would sit unread until the chunk
+     * download gets its turn.
+     */
+    private void executeChunkDownload(ChunkDownload chunkDownload, Probe probe) {
+        HostScheduler.Slot slot = newSlot(chunkDownload);
+        chunkDownload.setSlot(slot);
+        chunkDownload.setBody(probe.takeBody());
+        if (!hostScheduler.start(slot)) {
+            chunkDownload.setBody(null);
+            hostScheduler.submit(slot);
+        }
+    }
+
+    private HostScheduler.Slot newSlot(final ChunkDownload chunkDownload) {
+        return hostScheduler.newSlot(request.url(), new Runnable() {
+            @Override
+            public void run() {
+                if (selectorDownloadEngine != null && selectorDownloadEngine.accepts(request.url())
+                        && !chunkDownload.hasBody()) {
+                    // the engine prepares the transfer on the calling thread, which may be any chunk download's
+                    execute(new Runnable() {
+                        @Override
+                        public void run() {
+                            selectorDownloadEngine.execute(chunkDownload);
+                        }
+                    });
+                } else {
+                    chunkDownloadThreadPool.execute(chunkDownload.getChunkDownloader());
+                }
+            }
+        });
+    }
+
+    /**
+     * The request's headers with an If-Range of the validator the chunks are downloaded against, so that
+     * a data request notices a changed file itself instead of a probe before it.
+     */
+    Map<String, String> getDataHeaders() {
+        Map<String, String> temp = dataHeaders;
+        return temp == null ? request.headers() : temp;
+    }
+
+    /**
+     * A data request got the whole file instead of its range, see {@link ServerFileChangedException}.
+     */
+    void notifyServerFileChanged() {
+        serverFileChangedFlag.getAndSet(true);
+        metadataCache.invalidate(request.url());
+    }
+
+    void releaseSlot(HostScheduler.Slot slot) {
+        hostScheduler.release(slot);
+    }
+
+    private String newChunkFile() {
+        if (downloadInfo.singleFile()) {
+            return chunkDownloads.get(0).getChunk().file();
+        }
+        String prefix = getDownloadFile().getAbsolutePath() + ".download.part";
+        int i = chunkDownloads.size() + 1;
+        while (true) {
+            boolean used = false;
+            for (ChunkDownload chunkDownload : chunkDownloads) {
+                if (Utils.equals(prefix + i, chunkDownload.getChunk().file())) {
+                    used = true;
+                    break;
+                }
+            }
+            if (!used) {
+                return prefix + i;
+            }
+            i++;
+        }
+    }
+
     private void execute(Runnable runnable) {
-        if (actionThreadPool == null || actionThreadPool.isShutdown()) {
-             /*
-              * Use only a single thread to keep download status and data correct.
-              */
-            ThreadPoolExecutor temp = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
-            temp.allowCoreThreadTimeOut(true);
-            actionThreadPool = temp;
+        synchronized (actionLock) {
+            if (actionThreadPool == null || actionThreadPool.isShutdown()) {
+                 /*
+                  * Use only a single thread to keep download status and data correct.
+                  */
+                ThreadPoolExecutor temp = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>(), actionThreadFactory);
+                temp.allowCoreThreadTimeOut(true);
+                actionThreadPool = temp;
+            }
+            actionThreadPool.execute(runnable);
         }
-        actionThreadPool.execute(runnable);
     }
 
     private void windUp() {
         if (shutdownFlag.get() && !shutdown) {
-            actionThreadPool.shutdown();
+            synchronized (actionLock) {
+                actionThreadPool.shutdown();
+            }
             listeners.clear();
             if (deleteFlag.get()) {
                 File downloadFile = getDownloadFile();
@@ -321,11 +1037,14 @@ public final class Download {
                         if (chunkFile.exists() && !chunkFile.delete()) {
                             logger.warning(Utils.formatString("Can not delete download(%s)'s chunk file(%s) when wind up", request.simplifiedId(), chunkDownload.getChunk().file()));
                         }
+                        chunkDownload.deleteBlockMap();
                     }
                     chunkDownloads.clear();
                 }
             }
-            actionThreadPool = null;
+            synchronized (actionLock) {
+                actionThreadPool = null;
+            }
             shutdown = true;
         }
     }
@@ -335,6 +1054,10 @@ public final class Download {
             notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
             return;
         }
+        if (downloadStatus.getStatus() == DownloadStatus.VERIFY_ERROR) {
+            // a file that failed verification is downloaded again, also after a restart
+            serverFileChangedFlag.getAndSet(true);
+        }
         notifyDownloadStatus(new DownloadStatus(DownloadStatus.INITIALIZING));
 
         boolean initialized = true;
@@ -344,11 +1067,35 @@ public final class Download {
             if (downloadInfo.initInfo() == null) {
                 initialized = false;
             }
+            if (chunkDownloads == null || chunkDownloads.isEmpty()) {
+                // filled from another file that failed, nothing to go on with
+                initialized = false;
+            }
         }
+        Probe probe = null;
         try {
             if (initialized) {
-                boolean reInit = !downloadInfo.rangeInfo().rangeSupportable()
-                        || downloadAPI.serverFileChanged(request.url(), request.headers(), downloadInfo.initInfo().lastModified());
+                boolean reInit;
+                DownloadInfo cached;
+                if (serverFileChangedFlag.getAndSet(false) || !downloadInfo.rangeInfo().rangeSupportable()) {
+                    reInit = true;
+                } else if (Utils.ifRange(downloadInfo.initInfo()) != null) {
+                    // the data requests send If-Range, they fail with a ServerFileChangedException if the file changed
+                    reInit = false;
+                } else if ((cached = metadataCache.get(request.url())) != null) {
+                    // probed within the ttl, a file without validators is taken as unchanged then
+                    reInit = cached.initInfo().contentLength() != downloadInfo.initInfo().contentLength()
+                            || !Utils.equals(cached.initInfo().eTag(), downloadInfo.initInfo().eTag());
+                } else {
+                    // the chunks go on where they are, only the validators are needed
+                    probe = downloadAPI.probe(request.url(), request.headers(), false);
+                    if (probe != null) {
+                        metadataCache.put(request.url(), probe.downloadInfo());
+                    }
+                    reInit = probe == null
+                            ? downloadAPI.serverFileChanged(request.url(), request.headers(), downloadInfo.initInfo())
+                            : Utils.serverFileChanged(downloadInfo.initInfo(), probe.downloadInfo().initInfo());
+                }
 
                 if (pauseFlag.get()) {
                     notifyDownloadStatus(new DownloadStatus(DownloadStatus.IDLE));
@@ -356,9 +1103,12 @@ public final class Download {
                 }
 
                 if (reInit) {
+                    if (probe == null) {
+                        probe = probe();
+                    }
                     downloadInfo = downloadInfo.newBuilder()
-                            .initInfo(downloadAPI.getDownloadInitInfo(request.url(), request.headers()))
-                            .rangeInfo(downloadAPI.getDownloadRangeInfo(request.url(), request.headers()))
+                            .initInfo(probe.downloadInfo().initInfo())
+                            .rangeInfo(probe.downloadInfo().rangeInfo())
                             .serverFileChanged(true)
                             .build();
 
@@ -369,19 +1119,33 @@ public final class Download {
                             if (chunkFile.exists() && !chunkFile.delete()) {
                                 logger.warning(Utils.formatString("Can not delete download(%s)'s chunk file(%s) when re-split.", request.simplifiedId(), chunkDownload.getChunk().file()));
                             }
+                            chunkDownload.deleteBlockMap();
+                        }
+                        downloadedBytes.reset();
+                        dispatchProgress();
+                        for (DownloadListener downloadListener : listeners) {
+                            downloadListener.onChunkDownloadsDestroy(Download.this, new ArrayList<>(chunkDownloads));
                         }
-                        downloadedBytes.getAndSet(0);
                         chunkDownloads.clear();
                     }
                     splitDownload();
                 }
             } else {
+                if (downloadCache != null && completeFromCache()) {
+                    return;
+                }
+                DownloadInfo cached = metadataCache.get(request.url());
+                probe = cached == null ? probe() : new Probe(cached, null);
                 downloadInfo = new DownloadInfo.Builder()
-                        .initInfo(downloadAPI.getDownloadInitInfo(request.url(), request.headers()))
-                        .rangeInfo(downloadAPI.getDownloadRangeInfo(request.url(), request.headers()))
+                        .initInfo(probe.downloadInfo().initInfo())
+                        .rangeInfo(probe.downloadInfo().rangeInfo())
                         .createTime(System.currentTimeMillis())
                         .serverFileChanged(false)
+                        .singleFile(singleFile)
                         .build();
+                if (completeFromFile()) {
+                    return;
+                }
                 // split
                 splitDownload();
             }
@@ -391,105 +1155,480 @@ public final class Download {
                 return;
             }
 
+            String ifRange = downloadInfo.rangeInfo().rangeSupportable() ? Utils.ifRange(downloadInfo.initInfo()) : null;
+            if (ifRange == null) {
+                dataHeaders = null;
+            } else {
+                Map<String, String> headers = request.headers() == null
+                        ? new HashMap<String, String>() : new HashMap<>(request.headers());
+                headers.put("If-Range", ifRange);
+                dataHeaders = Collections.unmodifiableMap(headers);
+            }
             for (ChunkDownload chunkDownload : chunkDownloads) {
-                ChunkDownload.ChunkDownloader chunkDownloader = chunkDownload.getChunkDownloader();
                 chunkDownload.notifyChunkDownloadStatus(new ChunkDownloadStatus(ChunkDownloadStatus.PENDING));
-                chunkDownloadThreadPool.execute(chunkDownloader);
+                if (probe != null && chunkDownload.getChunk().start() == 0) {
+                    // the probe's connection carries the first chunk, its headers are waited for already
+                    executeChunkDownload(chunkDownload, probe);
+                } else {
+                    executeChunkDownload(chunkDownload);
+                }
             }
-        } catch (ConnectException | FileExistsException e) {
+        } catch (ConnectException | FileExistsException | IOException e) {
             notifyDownloadStatus(new DownloadStatus(e));
+        } finally {
+            if (probe != null) {
+                try {
+                    probe.close();
+                } catch (IOException e) {
+                    e.printStackTrace();
+                }
+            }
         }
     }
 
-    private void splitDownload() throws FileExistsException {
+    /**
+     * Complete the download with the cache's file of the request, if the cache has one that is still the server's.
+     * A file found by digest is read once to check it. The download gets a copy of the
+     * cache's file.
+     *
+     * @return whether the download is filled from the cache, completed or not.
+     */
+    private boolean completeFromCache() throws ConnectException {
+        DownloadCache.Entry entry = downloadCache.get(request);
+        if (entry == null) {
+            downloadCache.miss();
+            return false;
+        }
+        File source = downloadCache.getFile(entry);
+        boolean valid;
+        if (request.digestAlgorithm() != null) {
+            valid = matchesDigest(source);
+        } else if (downloadCache.isFresh(entry)) {
+            valid = true;
+        } else {
+            valid = !serverFileChanged(entry.initInfo());
+            if (valid) {
+                downloadCache.revalidated(entry);
+            }
+        }
+        if (!valid) {
+            downloadCache.invalidate(entry);
+            downloadCache.miss();
+            return false;
+        }
+        downloadInfo = new DownloadInfo.Builder()
+                .initInfo(entry.initInfo())
+                .rangeInfo(entry.rangeInfo())
+                .createTime(System.currentTimeMillis())
+                .serverFileChanged(false)
+                .singleFile(singleFile)
+                .build();
+        persistenceAdapter.saveDownloadInfo(request, downloadInfo, Collections.<Chunk>emptyList());
+        if (fill(source)) {
+            downloadCache.hit(entry.initInfo().contentLength());
+            logger.info(Utils.formatString("Download(%s) completed from the cache.", request.simplifiedId()));
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.COMPLETE));
+        }
+        return true;
+    }
+
+    /**
+     * Complete the download with the file already at its place if that has the digest of the request.
+     *
+     * @return whether the download is completed.
+     */
+    private boolean completeFromFile() {
+        File outFile = getDownloadFile();
+        assert outFile != null;
+        if (!outFile.exists() || !matchesDigest(outFile)) {
+            return false;
+        }
+        persistenceAdapter.saveDownloadInfo(request, downloadInfo, Collections.<Chunk>emptyList());
+        if (downloadCache != null) {
+            downloadCache.hit(outFile.length());
+            cache(outFile);
+        }
+        notifyDownloadStatus(new DownloadStatus(DownloadStatus.COMPLETE));
+        return true;
+    }
+
+    /**
+     * Whether the server's file is another one than that of the validators, without a request if the url was probed
+     * within the metadata ttl.
+     */
+    private boolean serverFileChanged(DownloadInfo.InitInfo initInfo) throws ConnectException {
+        DownloadInfo cached = metadataCache.get(request.url());
+        if (cached != null) {
+            return Utils.serverFileChanged(initInfo, cached.initInfo());
+        }
+        return downloadAPI.serverFileChanged(request.url(), request.headers(), initInfo);
+    }
+
+    private void cache(File file) {
+        try {
+            downloadCache.put(request, downloadInfo, file);
+        } catch (IOException e) {
+            logger.warning(Utils.formatString("Can not cache download(%s)'s file(%s): %s", request.simplifiedId(), file.getName(), e.getMessage()));
+        }
+    }
+
+    /**
+     * One ranged request if the download API and the server support it, a request for each part otherwise.
+     * The body of the ranged request is kept for the first chunk.
+     */
+    private Probe probe() throws ConnectException {
+        Probe probe = downloadAPI.probe(request.url(), request.headers(), true);
+        if (probe == null) {
+            probe = new Probe(new DownloadInfo.Builder()
+                    .initInfo(downloadAPI.getDownloadInitInfo(request.url(), request.headers()))
+                    .rangeInfo(downloadAPI.getDownloadRangeInfo(request.url(), request.headers()))
+                    .build(), null);
+        }
+        metadataCache.put(request.url(), probe.downloadInfo());
+        return probe;
+    }
+
+    private void splitDownload() throws FileExistsException, IOException {
         File downloadFile = getDownloadFile();
         assert downloadFile != null;
         List<Chunk> chunks = splitter.split(
                 downloadFile.getAbsolutePath(),
                 downloadInfo.initInfo().contentLength(),
                 downloadInfo.rangeInfo().rangeSupportable());
+        if (downloadInfo.singleFile()) {
+            // every chunk writes into the same temp file at its own offset
+            String tempFile = downloadFile.getAbsolutePath() + ".download";
+            List<Chunk> temp = new ArrayList<>(chunks.size());
+            for (Chunk chunk : chunks) {
+                temp.add(chunk.newBuilder().file(tempFile).build());
+            }
+            chunks = temp;
+        }
         persistenceAdapter.saveDownloadInfo(request, downloadInfo, chunks);
         for (Chunk chunk : chunks) {
             ChunkDownload chunkDownload = new ChunkDownload(request, chunk, null, downloadAPI, persistenceAdapter, logger);
             chunkDownload.attach(Download.this);
             chunkDownloads.add(chunkDownload);
         }
+        for (DownloadListener downloadListener : listeners) {
+            downloadListener.onChunkDownloadsCreate(Download.this, getChunkDownloads());
+        }
         if (downloadFile.exists()) {
             throw new FileExistsException(downloadFile);
         }
+        if (downloadInfo.singleFile()) {
+            preallocate(new File(chunks.get(0).file()), downloadInfo.initInfo().contentLength());
+        }
 //            if (downloadFile.getUsableSpace() < downloadInfo.initInfo().contentLength()) {
 //                throw new RuntimeException("Insufficient disk space");
 //            }
     }
 
+    private void preallocate(File file, long contentLength) throws IOException {
+        File folder = file.getParentFile();
+        if (!folder.exists() && !folder.mkdirs()) {
+            throw new IOException("Can not create folder " + folder.getAbsolutePath());
+        }
+        RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw");
+        try {
+            if (contentLength > 0) {
+                randomAccessFile.setLength(contentLength);
+            }
+        } finally {
+            randomAccessFile.close();
+        }
+    }
+
     private void merge() {
         notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGING));
 
-        List<File> parts = new ArrayList<>();
-        for (ChunkDownload chunkDownload : chunkDownloads) {
-            parts.add(new File(chunkDownload.getChunk().file()));
+        if (downloadInfo.singleFile()) {
+            rename();
+            return;
         }
+
         File outFile = getDownloadFile();
         assert outFile != null;
         if (outFile.exists()) {
             notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, new FileExistsException(outFile)));
             return;
         }
-        FileOutputStream os = null;
-        FileChannel outFileChannel = null;
+        final List<ChunkDownload> parts = new ArrayList<>(chunkDownloads);
+        if (parts.size() == 1 && new File(parts.get(0).getChunk().file()).renameTo(outFile)) {
+            // a single part is the whole file, on the same file system it only has to be renamed
+            parts.get(0).deleteBlockMap();
+            complete(outFile);
+            return;
+        }
+
+        long total = 0;
+        for (ChunkDownload part : parts) {
+            total += new File(part.getChunk().file()).length();
+        }
+        RandomAccessFile randomAccessFile = null;
         try {
-            os = new FileOutputStream(outFile);
-            outFileChannel = os.getChannel();
-            for (File part : parts) {
-                FileInputStream is = null;
-                FileChannel inPartFileChannel = null;
-                try {
-                    is = new FileInputStream(part);
-                    inPartFileChannel = is.getChannel();
-                    inPartFileChannel.transferTo(0, inPartFileChannel.size(), outFileChannel);
-                } catch (IOException e) {
-                    notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, e));
-                    return;
-                } finally {
-                    if (inPartFileChannel != null) {
+            randomAccessFile = new RandomAccessFile(outFile, "rw");
+            randomAccessFile.setLength(total);
+            final FileChannel outFileChannel = randomAccessFile.getChannel();
+            final AtomicInteger next = new AtomicInteger();
+            final AtomicLong merged = new AtomicLong();
+            final AtomicReference<IOException> failure = new AtomicReference<>();
+            // every part is copied to its own offset, so the parts are copied at the same time
+            int threads = Math.min(MERGE_THREADS, parts.size());
+            final CountDownLatch latch = new CountDownLatch(threads);
+            for (int i = 0; i < threads; i++) {
+                actionThreadFactory.newThread(new Runnable() {
+                    @Override
+                    public void run() {
                         try {
-                            inPartFileChannel.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
+                            copyParts(parts, next, outFileChannel, merged, failure);
+                        } finally {
+                            latch.countDown();
                         }
                     }
-                    if (is != null) {
-                        try {
-                            is.close();
-                        } catch (IOException e) {
-                            e.printStackTrace();
-                        }
+                }).start();
+            }
+            boolean interrupted = false;
+            long interval = Math.max(progressInterval, TimeUnit.MILLISECONDS.toNanos(10));
+            while (true) {
+                try {
+                    if (latch.await(interval, TimeUnit.NANOSECONDS)) {
+                        break;
                     }
+                } catch (InterruptedException e) {
+                    // a pause can not stop a merge half way
+                    interrupted = true;
                 }
+                notifyMergeProgress(merged.get());
             }
-            for (File part : parts) {
-                if (!part.delete()) {
-                    logger.warning(Utils.formatString("Can not delete download(%s)'s chunk file(%s) when merging.", request.simplifiedId(), part.getName()));
-                }
+            if (interrupted) {
+                Thread.currentThread().interrupt();
+            }
+            if (failure.get() != null) {
+                throw failure.get();
+            }
+        } catch (IOException e) {
+            close(randomAccessFile);
+            randomAccessFile = null;
+            // the parts are kept, merge again from scratch next time
+            if (outFile.exists() && !outFile.delete()) {
+                logger.warning(Utils.formatString("Can not delete download(%s)'s file(%s) after a failed merge.", request.simplifiedId(), outFile.getName()));
             }
-            notifyDownloadStatus(new DownloadStatus(DownloadStatus.COMPLETE));
-        } catch (FileNotFoundException e) {
             notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, e));
+            return;
         } finally {
-            if (outFileChannel != null) {
-                try {
-                    outFileChannel.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+            close(randomAccessFile);
+        }
+        notifyMergeProgress(total);
+        for (ChunkDownload part : parts) {
+            File file = new File(part.getChunk().file());
+            if (!file.delete()) {
+                logger.warning(Utils.formatString("Can not delete download(%s)'s chunk file(%s) when merging.", request.simplifiedId(), file.getName()));
+            }
+            part.deleteBlockMap();
+        }
+        complete(outFile);
+    }
+
+    /**
+     * Copy the parts one after another into the download file at their chunks' offsets, until none is left.
+     */
+    private static void copyParts(List<ChunkDownload> parts, AtomicInteger next, FileChannel outFileChannel,
+                                  AtomicLong merged, AtomicReference<IOException> failure) {
+        int i;
+        while (failure.get() == null && (i = next.getAndIncrement()) < parts.size()) {
+            Chunk chunk = parts.get(i).getChunk();
+            FileInputStream is = null;
+            try {
+                is = new FileInputStream(chunk.file());
+                FileChannel inPartFileChannel = is.getChannel();
+                long size = inPartFileChannel.size();
+                long position = 0;
+                while (position < size) {
+                    // transferFrom reads on from the part's position and writes at the given offset
+                    long count = outFileChannel.transferFrom(inPartFileChannel, chunk.start() + position,
+                            Math.min(MERGE_SLICE_BYTES, size - position));
+                    if (count <= 0) {
+                        throw new IOException("Can not copy " + chunk.file());
+                    }
+                    position += count;
+                    merged.addAndGet(count);
+                }
+            } catch (IOException e) {
+                failure.compareAndSet(null, e);
+            } finally {
+                if (is != null) {
+                    try {
+                        is.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
                 }
             }
-            if (os != null) {
+        }
+    }
+
+    /**
+     * Notify the listeners of another {@link DownloadStatus#MERGING} with the merged bytes, it is not saved.
+     */
+    private void notifyMergeProgress(long mergedBytes) {
+        DownloadStatus status = new DownloadStatus(DownloadStatus.MERGING);
+        status.setMergedBytes(mergedBytes);
+        downloadStatus = status;
+        for (DownloadListener downloadListener : listeners) {
+            downloadListener.onDownloadStatusChanged(Download.this, status);
+        }
+    }
+
+    private static void close(RandomAccessFile randomAccessFile) {
+        if (randomAccessFile != null) {
+            try {
+                randomAccessFile.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    private void rename() {
+        File tempFile = new File(chunkDownloads.get(0).getChunk().file());
+        File outFile = getDownloadFile();
+        assert outFile != null;
+        if (outFile.exists()) {
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR, new FileExistsException(outFile)));
+            return;
+        }
+        if (tempFile.renameTo(outFile)) {
+            complete(outFile);
+        } else {
+            notifyDownloadStatus(new DownloadStatus(DownloadStatus.MERGE_ERROR,
+                    new IOException("Can not rename " + tempFile.getAbsolutePath() + " to " + outFile.getAbsolutePath())));
+        }
+    }
+
+    /**
+     * Complete the download once the file has the digest the request expects, if it expects one.
+     */
+    private void complete(File outFile) {
+        if (request.digestAlgorithm() != null) {
+            Exception failure = null;
+            try {
+                String actual = digest(outFile);
+                if (actual == null || !actual.equalsIgnoreCase(request.digest())) {
+                    failure = new DigestMismatchException(outFile, request.digestAlgorithm(), request.digest(), actual);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            if (failure != null) {
+                if (outFile.exists() && !outFile.delete()) {
+                    logger.warning(Utils.formatString("Can not delete download(%s)'s file(%s) after a failed verification.", request.simplifiedId(), outFile.getName()));
+                }
+                // the chunks are downloaded again
+                serverFileChangedFlag.getAndSet(true);
+                notifyDownloadStatus(new DownloadStatus(DownloadStatus.VERIFY_ERROR, failure));
+                return;
+            }
+        }
+        if (downloadCache != null) {
+            cache(outFile);
+        }
+        notifyDownloadStatus(new DownloadStatus(DownloadStatus.COMPLETE));
+    }
+
+    /**
+     * Put the digest of the file together from the digests the chunks kept while downloading, only the bytes they
+     * do not cover are read back. A CRC-32C is combined chunk by chunk, a SHA-256 or MD5 goes on from the first chunk.
+     */
+    private String digest(File file) throws IOException {
+        List<ChunkDownload> sorted = sortedChunkDownloads();
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = in.getChannel();
+            long size = fileChannel.size();
+            if (sorted.isEmpty()) {
+                return null;
+            }
+            if (!Request.CRC32C.equals(request.digestAlgorithm())) {
+                ChunkDownload first = sorted.get(0);
+                first.completeDigest(fileChannel, 0, size);
+                return first.digestHex();
+            }
+            int crc = 0;
+            for (int i = 0; i < sorted.size(); i++) {
+                ChunkDownload chunkDownload = sorted.get(i);
+                long start = chunkDownload.getChunk().start();
+                long length = (i + 1 < sorted.size() ? sorted.get(i + 1).getChunk().start() : size) - start;
+                chunkDownload.completeDigest(fileChannel, start, length);
+                crc = Crc32c.combine(crc, chunkDownload.getChecksum(), length);
+            }
+            return Crc32c.toHex(crc);
+        } finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Go on with the SHA-256 or MD5 the chunk at the start of the file keeps over the complete chunks after it, in
+     * file order, so that the verification only reads back the chunks which were not complete by then.
+     */
+    private void continueDigest() {
+        if (request.digestAlgorithm() == null || Request.CRC32C.equals(request.digestAlgorithm())) {
+            return;
+        }
+        List<ChunkDownload> sorted = sortedChunkDownloads();
+        if (sorted.isEmpty() || !sorted.get(0).isDigestTracked()) {
+            return;
+        }
+        ChunkDownload first = sorted.get(0);
+        // a part file holds the chunk from its start on, the single file holds it at its offset
+        boolean inPlace = downloadInfo.singleFile();
+        try {
+            for (ChunkDownload chunkDownload : sorted) {
+                if (chunkDownload.getChunkDownloadStatus().getStatus() != ChunkDownloadStatus.COMPLETE) {
+                    break;
+                }
+                long start = chunkDownload.getChunk().start();
+                long end = start + chunkDownload.getDownloadedBytes();
+                long digestBytes = first.getDigestBytes();
+                if (digestBytes < start) {
+                    break;
+                }
+                if (digestBytes >= end) {
+                    continue;
+                }
+                File file = new File(inPlace ? first.getChunk().file() : chunkDownload.getChunk().file());
+                FileInputStream in = new FileInputStream(file);
                 try {
-                    os.close();
-                } catch (IOException e) {
-                    e.printStackTrace();
+                    first.continueDigest(in.getChannel(), digestBytes - (inPlace ? 0 : start), end - digestBytes);
+                } finally {
+                    in.close();
                 }
             }
+        } catch (IOException e) {
+            // the verification reads back what the digest does not cover
+            logger.warning(Utils.formatString("Download(%s) can not go on with the digest, %s", request.simplifiedId(), e.getMessage()));
         }
     }
+
+    private List<ChunkDownload> sortedChunkDownloads() {
+        List<ChunkDownload> sorted = new ArrayList<>(chunkDownloads);
+        Collections.sort(sorted, new Comparator<ChunkDownload>() {
+            @Override
+            public int compare(ChunkDownload o1, ChunkDownload o2) {
+                return Long.compare(o1.getChunk().start(), o2.getChunk().start());
+            }
+        });
+        return sorted;
+    }
+
+    /**
+     * Told when a download starts or stops taking followers, called on the download's own threads.
+     */
+    interface FlightListener {
+
+        void onFlightOpen(Download download);
+
+        void onFlightClose(Download download);
+    }
 }
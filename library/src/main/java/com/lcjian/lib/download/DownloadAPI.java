@@ -2,7 +2,10 @@ package com.lcjian.lib.download;
 
 import com.lcjian.lib.download.exception.ConnectException;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.ReadableByteChannel;
 import java.util.Map;
 
 public interface DownloadAPI {
@@ -11,10 +14,60 @@ public interface DownloadAPI {
 
     DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) throws ConnectException;
 
+    /**
+     * Find out what {@link #getDownloadInitInfo} and {@link #getDownloadRangeInfo} do with a single ranged request,
+     * the length is taken from the Content-Range of a partial response.
+     *
+     * @param keepBody ask for the whole file and keep the body open, so that the first chunk can read it instead
+     *                 of opening another connection. Only the first byte is asked for otherwise.
+     * @return the init info and range info, null if the server can not be probed this way, the separate requests
+     * are used then.
+     */
+    default Probe probe(String url, Map<String, String> headers, boolean keepBody) throws ConnectException {
+        return null;
+    }
+
     boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) throws ConnectException;
 
+    /**
+     * Whether the server's file is another one than that of the validators, with one conditional request that sends
+     * If-None-Match for the ETag and If-Modified-Since for the Last-Modified date. A 200 is compared with the
+     * validators, a server that does not take the conditions sends it for the same file too.
+     */
+    default boolean serverFileChanged(String url, Map<String, String> headers, DownloadInfo.InitInfo initInfo) throws ConnectException {
+        Probe probe = probe(url, headers, false);
+        if (probe == null) {
+            return Utils.isEmpty(initInfo.lastModified()) || serverFileChanged(url, headers, initInfo.lastModified());
+        }
+        try {
+            return Utils.serverFileChanged(initInfo, probe.downloadInfo().initInfo());
+        } finally {
+            try {
+                probe.close();
+            } catch (IOException e) {
+                e.printStackTrace();
+            }
+        }
+    }
+
+    /**
+     * @param headers may hold an If-Range, a {@link com.lcjian.lib.download.exception.ServerFileChangedException}
+     *                is thrown if the server sends the whole file because it does not match.
+     */
     InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException;
 
     InputStream getInputStream(String url, Map<String, String> headers) throws ConnectException;
 
+    /**
+     * The chunk downloads read from this. The stream is wrapped, which copies through a buffer of its own in reads of
+     * at most 8 KB, override it to hand out a channel of the connection without the stream.
+     */
+    default ReadableByteChannel getChannel(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+        return Channels.newChannel(getInputStream(url, headers, start, end));
+    }
+
+    default ReadableByteChannel getChannel(String url, Map<String, String> headers) throws ConnectException {
+        return Channels.newChannel(getInputStream(url, headers));
+    }
+
 }
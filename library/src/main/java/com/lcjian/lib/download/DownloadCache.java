@@ -0,0 +1,347 @@
+package com.lcjian.lib.download;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies of complete files kept on the disk by url and validators, and by digest for requests that carry one, so that
+ * downloading the same content again completes from here. Both are kept by the headers of the request too, a file
+ * fetched with one caller's credentials is not handed to another. The least recently used files are evicted to stay
+ * within the size limit.
+ */
+public final class DownloadCache {
+
+    private static final String INDEX = "index";
+
+    private final File directory;
+    private final long maxBytes;
+    private final long ttlMillis;
+    /**
+     * By the name of the file, in access order.
+     */
+    private final LinkedHashMap<String, Entry> entries = new LinkedHashMap<>(16, 0.75f, true);
+    private final Map<String, Entry> urlEntries = new HashMap<>();
+    private final Map<String, Entry> digestEntries = new HashMap<>();
+    private final AtomicLong hitCount = new AtomicLong();
+    private final AtomicLong missCount = new AtomicLong();
+    private final AtomicLong savedBytes = new AtomicLong();
+    private long size;
+    private boolean loaded;
+
+    /**
+     * @param directory only used by this cache.
+     * @param maxBytes  the most bytes the files take together.
+     * @param ttl       how long a file is used without asking the server whether it changed, 0 to always ask.
+     *                  A file found by digest is checked against the digest instead.
+     */
+    public DownloadCache(String directory, long maxBytes, long ttl, TimeUnit unit) {
+        if (maxBytes <= 0) {
+            throw new IllegalArgumentException("The size limit of the cache must be positive.");
+        }
+        if (ttl < 0) {
+            throw new IllegalArgumentException("The ttl can not be negative.");
+        }
+        this.directory = new File(directory);
+        this.maxBytes = maxBytes;
+        this.ttlMillis = unit.toMillis(ttl);
+    }
+
+    public long getMaxBytes() {
+        return maxBytes;
+    }
+
+    public synchronized long getSize() {
+        load();
+        return size;
+    }
+
+    public synchronized int getEntryCount() {
+        load();
+        return entries.size();
+    }
+
+    public long getHitCount() {
+        return hitCount.get();
+    }
+
+    public long getMissCount() {
+        return missCount.get();
+    }
+
+    /**
+     * @return bytes that did not have to be downloaded because of hits.
+     */
+    public long getSavedBytes() {
+        return savedBytes.get();
+    }
+
+    public synchronized void clear() {
+        load();
+        for (Entry entry : new ArrayList<>(entries.values())) {
+            remove(entry);
+        }
+        saveIndex();
+    }
+
+    /**
+     * A request with a digest is only found by its digest, a file found by url may be another one then.
+     *
+     * @return null if nothing is kept for the request.
+     */
+    synchronized Entry get(Request request) {
+        load();
+        Entry entry = request.digestAlgorithm() == null
+                ? urlEntries.get(urlKey(request))
+                : digestEntries.get(digestKey(request));
+        if (entry == null) {
+            return null;
+        }
+        if (getFile(entry).length() != entry.initInfo.contentLength()) {
+            // changed or deleted behind the cache's back
+            remove(entry);
+            saveIndex();
+            return null;
+        }
+        entries.get(entry.name);
+        return entry;
+    }
+
+    /**
+     * @return whether the file can be used without asking the server.
+     */
+    boolean isFresh(Entry entry) {
+        return System.currentTimeMillis() - entry.validatedAt < ttlMillis;
+    }
+
+    /**
+     * The server says the file did not change.
+     */
+    synchronized void revalidated(Entry entry) {
+        entry.validatedAt = System.currentTimeMillis();
+        saveIndex();
+    }
+
+    synchronized void invalidate(Entry entry) {
+        if (entries.containsKey(entry.name)) {
+            remove(entry);
+            saveIndex();
+        }
+    }
+
+    File getFile(Entry entry) {
+        return new File(directory, entry.name);
+    }
+
+    void hit(long bytes) {
+        hitCount.incrementAndGet();
+        savedBytes.addAndGet(bytes);
+    }
+
+    void miss() {
+        missCount.incrementAndGet();
+    }
+
+    /**
+     * Keep a copy of the complete file of the request, a hard link would let changes to the download file reach
+     * the cache and every later download filled from it.
+     */
+    void put(Request request, DownloadInfo downloadInfo, File file) throws IOException {
+        long length = file.length();
+        if (length > maxBytes || length != downloadInfo.initInfo().contentLength()) {
+            // too big, or of an unknown length that can not be checked later
+            return;
+        }
+        String urlKey = urlKey(request);
+        String digestKey = request.digestAlgorithm() == null ? null : digestKey(request);
+        DownloadInfo.InitInfo initInfo = downloadInfo.initInfo();
+        Entry entry = new Entry(name(urlKey + "\n" + initInfo.eTag() + "\n" + initInfo.lastModified() + "\n" + digestKey),
+                urlKey, digestKey, initInfo, downloadInfo.rangeInfo());
+        File temp;
+        synchronized (this) {
+            load();
+            if (entries.containsKey(entry.name)) {
+                entries.get(entry.name);
+                return;
+            }
+            temp = new File(directory, entry.name + ".tmp");
+        }
+        if (temp.exists() && !temp.delete()) {
+            throw new IOException("Can not delete " + temp.getAbsolutePath());
+        }
+        Files.copy(file.toPath(), temp.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        if (temp.length() != length) {
+            // changed while copied
+            temp.delete();
+            return;
+        }
+        synchronized (this) {
+            Files.move(temp.toPath(), getFile(entry).toPath(), StandardCopyOption.REPLACE_EXISTING);
+            Entry old = urlEntries.get(urlKey);
+            if (old != null) {
+                remove(old);
+            }
+            if (digestKey != null && (old = digestEntries.get(digestKey)) != null) {
+                remove(old);
+            }
+            add(entry);
+            Iterator<Entry> iterator = new ArrayList<>(entries.values()).iterator();
+            while (size > maxBytes && iterator.hasNext()) {
+                Entry eldest = iterator.next();
+                if (eldest != entry) {
+                    remove(eldest);
+                }
+            }
+            saveIndex();
+        }
+    }
+
+    private void add(Entry entry) {
+        entries.put(entry.name, entry);
+        urlEntries.put(entry.urlKey, entry);
+        if (entry.digestKey != null) {
+            digestEntries.put(entry.digestKey, entry);
+        }
+        size += entry.initInfo.contentLength();
+    }
+
+    private void remove(Entry entry) {
+        entries.remove(entry.name);
+        if (urlEntries.get(entry.urlKey) == entry) {
+            urlEntries.remove(entry.urlKey);
+        }
+        if (entry.digestKey != null && digestEntries.get(entry.digestKey) == entry) {
+            digestEntries.remove(entry.digestKey);
+        }
+        size -= entry.initInfo.contentLength();
+        File file = getFile(entry);
+        if (file.exists() && !file.delete()) {
+            // counted as gone, it is deleted with the other strays next time the index is loaded
+            file.deleteOnExit();
+        }
+    }
+
+    @SuppressWarnings("unchecked")
+    private void load() {
+        if (loaded) {
+            return;
+        }
+        loaded = true;
+        if (!directory.exists() && !directory.mkdirs()) {
+            return;
+        }
+        File index = new File(directory, INDEX);
+        if (index.exists()) {
+            try {
+                List<Entry> list = (List<Entry>) Utils.deserialize(Files.readAllBytes(index.toPath()));
+                for (Entry entry : list) {
+                    if (getFile(entry).length() == entry.initInfo.contentLength()) {
+                        add(entry);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                // start over with an empty cache
+                entries.clear();
+                urlEntries.clear();
+                digestEntries.clear();
+                size = 0;
+            }
+        }
+        File[] files = directory.listFiles();
+        if (files != null) {
+            for (File file : files) {
+                if (!INDEX.equals(file.getName()) && !entries.containsKey(file.getName())) {
+                    file.delete();
+                }
+            }
+        }
+    }
+
+    private void saveIndex() {
+        File temp = new File(directory, INDEX + ".tmp");
+        try {
+            FileOutputStream out = new FileOutputStream(temp);
+            try {
+                out.write(Utils.serialize(new ArrayList<>(entries.values())));
+                out.getChannel().force(false);
+            } finally {
+                out.close();
+            }
+            Files.move(temp.toPath(), new File(directory, INDEX).toPath(), StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    private static String urlKey(Request request) {
+        return MetadataCache.key(request.url()) + " " + headersKey(request);
+    }
+
+    private static String digestKey(Request request) {
+        return request.digestAlgorithm() + ":" + request.digest().toLowerCase(Locale.US) + " " + headersKey(request);
+    }
+
+    /**
+     * The headers in a stable order, the same ones give the same key however they were put.
+     */
+    private static String headersKey(Request request) {
+        return request.headers() == null ? "{}" : new TreeMap<>(request.headers()).toString();
+    }
+
+    private static String name(String key) {
+        try {
+            return Utils.toHex(MessageDigest.getInstance(Request.SHA_256).digest(key.getBytes(StandardCharsets.UTF_8)))
+                    .toLowerCase(Locale.US);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    static final class Entry implements Serializable {
+
+        /**
+         * serialVersionUID
+         */
+        private static final long serialVersionUID = 1L;
+
+        private final String name;
+        private final String urlKey;
+        private final String digestKey;
+        private final DownloadInfo.InitInfo initInfo;
+        private final DownloadInfo.RangeInfo rangeInfo;
+        private long validatedAt;
+
+        private Entry(String name, String urlKey, String digestKey, DownloadInfo.InitInfo initInfo, DownloadInfo.RangeInfo rangeInfo) {
+            this.name = name;
+            this.urlKey = urlKey;
+            this.digestKey = digestKey;
+            this.initInfo = initInfo;
+            this.rangeInfo = rangeInfo;
+            this.validatedAt = System.currentTimeMillis();
+        }
+
+        DownloadInfo.InitInfo initInfo() {
+            return initInfo;
+        }
+
+        DownloadInfo.RangeInfo rangeInfo() {
+            return rangeInfo;
+        }
+    }
+}
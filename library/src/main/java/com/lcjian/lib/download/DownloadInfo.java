@@ -14,12 +14,14 @@ public class DownloadInfo implements Serializable {
 
     private final long createTime;
     private final boolean serverFileChanged;
+    private final boolean singleFile;
 
     private DownloadInfo(Builder builder) {
         this.initInfo = builder.initInfo;
         this.rangeInfo = builder.rangeInfo;
         this.createTime = builder.createTime;
         this.serverFileChanged = builder.serverFileChanged;
+        this.singleFile = builder.singleFile;
     }
 
     public InitInfo initInfo() {
@@ -38,6 +40,13 @@ public class DownloadInfo implements Serializable {
         return serverFileChanged;
     }
 
+    /**
+     * Whether the chunks of this download are written into one preallocated file instead of part files.
+     */
+    public boolean singleFile() {
+        return singleFile;
+    }
+
     public Builder newBuilder() {
         return new Builder(this);
     }
@@ -48,6 +57,7 @@ public class DownloadInfo implements Serializable {
         private RangeInfo rangeInfo;
         private long createTime;
         private boolean serverFileChanged;
+        private boolean singleFile;
 
         public Builder() {
         }
@@ -57,6 +67,7 @@ public class DownloadInfo implements Serializable {
             this.rangeInfo = downloadInfo.rangeInfo;
             this.createTime = downloadInfo.createTime;
             this.serverFileChanged = downloadInfo.serverFileChanged;
+            this.singleFile = downloadInfo.singleFile;
         }
 
         public Builder initInfo(InitInfo initInfo) {
@@ -79,6 +90,11 @@ public class DownloadInfo implements Serializable {
             return this;
         }
 
+        public Builder singleFile(boolean singleFile) {
+            this.singleFile = singleFile;
+            return this;
+        }
+
         public DownloadInfo build() {
             return new DownloadInfo(this);
         }
@@ -95,12 +111,14 @@ public class DownloadInfo implements Serializable {
         private final String fileName;
         private final String mimeType;
         private final String lastModified;
+        private final String eTag;
         private final long contentLength;
 
         private InitInfo(Builder builder) {
             this.fileName = builder.fileName;
             this.mimeType = builder.mimeType;
             this.lastModified = builder.lastModified;
+            this.eTag = builder.eTag;
             this.contentLength = builder.contentLength;
         }
 
@@ -116,6 +134,13 @@ public class DownloadInfo implements Serializable {
             return lastModified;
         }
 
+        /**
+         * The ETag the server sent, null if it sent none or the download was initialized by an older version.
+         */
+        public String eTag() {
+            return eTag;
+        }
+
         public long contentLength() {
             return contentLength;
         }
@@ -129,6 +154,7 @@ public class DownloadInfo implements Serializable {
             private String fileName;
             private String mimeType;
             private String lastModified;
+            private String eTag;
             private long contentLength;
 
             public Builder() {
@@ -138,6 +164,7 @@ public class DownloadInfo implements Serializable {
                 this.fileName = initInfo.fileName;
                 this.mimeType = initInfo.mimeType;
                 this.lastModified = initInfo.lastModified;
+                this.eTag = initInfo.eTag;
                 this.contentLength = initInfo.contentLength;
             }
 
@@ -156,6 +183,11 @@ public class DownloadInfo implements Serializable {
                 return this;
             }
 
+            public Builder eTag(String eTag) {
+                this.eTag = eTag;
+                return this;
+            }
+
             public Builder contentLength(long contentLength) {
                 this.contentLength = contentLength;
                 return this;
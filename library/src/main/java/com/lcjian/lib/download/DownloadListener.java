@@ -6,11 +6,14 @@ public interface DownloadListener {
 
     /**
      * Pay attention to that this method will be called in every {@link Download}'s action thread pool.
+     * {@link DownloadStatus#MERGING} is notified again once per progress interval with
+     * {@link DownloadStatus#getMergedBytes()} while the parts are merged.
      */
     void onDownloadStatusChanged(Download download, DownloadStatus downloadStatus);
 
     /**
-     * Pay attention to that this method will be called in multi {@link ChunkDownload.ChunkDownloader} runnable.
+     * Pay attention to that this method will be called in every {@link Download}'s action thread pool,
+     * at most once per progress interval unless the progress threshold is crossed.
      */
     void onProgress(Download download, long downloadedBytes);
 
@@ -1,44 +1,107 @@
 package com.lcjian.lib.download;
 
+import java.io.Closeable;
+import java.io.IOException;
 import java.util.ArrayList;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Locale;
 import java.util.Map;
+import java.util.TreeMap;
 import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.LinkedBlockingQueue;
-import java.util.concurrent.Semaphore;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.ThreadPoolExecutor;
 import java.util.concurrent.TimeUnit;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
-// TODO 1.pause pending ...task 2.okhttp downloader 3.sqlite persistence 4. rxjava support
+// TODO 1.pause pending ...task 2. rxjava support
 public class DownloadManager {
 
     private final String defaultDestination;
     private final ExecutorService actionThreadPool;
     private final ExecutorService chunkDownloadThreadPool;
+    private final SelectorDownloadEngine selectorDownloadEngine;
+    private final ThreadFactory downloadThreadFactory;
+    private final HostScheduler hostScheduler;
     private final PersistenceAdapter persistenceAdapter;
     private final Splitter splitter;
     private final DownloadAPI downloadAPI;
     private final RetryPolicy.Factory retryPolicyFactory;
     private final CopyOnWriteArrayList<Listener> listeners;
     private final int maxDownloadCount;
-    private final Semaphore semaphore;
+    private final boolean singleFile;
+    private final BufferPool bufferPool;
+    private final RateLimiter rateLimiter;
+    private final long progressInterval;
+    private final long progressThreshold;
+    private final AdmissionQueue admissionQueue;
+    private final MetadataCache metadataCache;
+    private final DownloadCache downloadCache;
+    private final boolean singleFlight;
     private final Logger logger;
     private final DownloadMonitor downloadMonitor;
 
     private final List<Request> requests;
     private final List<Download> downloads;
     private final Map<Request, Download> requestDownloadMap;
+    /**
+     * The persisted records of the requests whose downloads are not made yet, so that a long history costs neither the
+     * startup nor the heap of a download each. A download is made when it is asked for or resumed.
+     */
+    private final Map<Request, DownloadRecord> records;
+    /**
+     * The downloads made from their records whose {@link Listener#onDownloadCreate} is not called yet, it is called on
+     * the action thread and without the lock of requestDownloadMap, see {@link #dispatchCreated()}.
+     */
+    private final List<Download> created;
+    /**
+     * The download taking followers for each content source, the downloads of the same source share its transfer.
+     */
+    private final Map<String, Download> flights;
+    /**
+     * Keeps {@link #flights} pointing at downloads that still take followers, a download taking over a closed flight
+     * of its source takes its place.
+     */
+    private final Download.FlightListener flightListener = new Download.FlightListener() {
+        @Override
+        public void onFlightOpen(final Download download) {
+            executeFlightAction(new Runnable() {
+                @Override
+                public void run() {
+                    String source = source(download.getRequest());
+                    Download leader = flights.get(source);
+                    if ((leader == null || !leader.isFlightOpen()) && contains(download.getRequest())) {
+                        flights.put(source, download);
+                    }
+                }
+            });
+        }
+
+        @Override
+        public void onFlightClose(final Download download) {
+            executeFlightAction(new Runnable() {
+                @Override
+                public void run() {
+                    flights.remove(source(download.getRequest()), download);
+                }
+            });
+        }
+    };
 
     private DownloadManager(Builder builder) {
         downloads = new ArrayList<>();
         requests = new ArrayList<>();
         requestDownloadMap = new HashMap<>();
+        records = new HashMap<>();
+        created = new ArrayList<>();
+        flights = new HashMap<>();
         listeners = new CopyOnWriteArrayList<>();
 
         ThreadPoolExecutor temp = new ThreadPoolExecutor(1, 1, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
@@ -47,12 +110,23 @@ public class DownloadManager {
 
         defaultDestination = builder.defaultDestination;
         chunkDownloadThreadPool = builder.chunkDownloadThreadPool;
+        selectorDownloadEngine = builder.selectorDownloadEngine;
+        downloadThreadFactory = builder.downloadThreadFactory;
+        hostScheduler = new HostScheduler(builder.maxConnectionsPerHost, builder.maxConnectionsPerAddress);
         persistenceAdapter = builder.persistenceAdapter;
         splitter = builder.splitter;
         downloadAPI = builder.downloadAPI;
         retryPolicyFactory = builder.retryPolicyFactory;
         maxDownloadCount = builder.maxDownloadCount;
-        semaphore = new Semaphore(maxDownloadCount, true);
+        singleFile = builder.singleFile;
+        bufferPool = builder.bufferPool;
+        rateLimiter = new RateLimiter(builder.rateLimit);
+        progressInterval = builder.progressInterval;
+        progressThreshold = builder.progressThreshold;
+        admissionQueue = new AdmissionQueue(maxDownloadCount, builder.preemptive);
+        metadataCache = new MetadataCache(builder.metadataTtl);
+        downloadCache = builder.downloadCache;
+        singleFlight = builder.singleFlight;
         logger = builder.logger;
         downloadMonitor = new DownloadMonitor(this);
         init();
@@ -64,40 +138,10 @@ public class DownloadManager {
             public void run() {
                 List<DownloadRecord> downloadRecords = persistenceAdapter.getDownloadRecords();
                 if (downloadRecords != null && !downloadRecords.isEmpty()) {
-                    for (DownloadRecord downloadRecord : downloadRecords) {
-                        Request request = downloadRecord.getRequest();
-                        DownloadStatus downloadStatus = downloadRecord.getDownloadStatus();
-                        DownloadInfo downloadInfo = downloadRecord.getDownloadInfo();
-                        List<DownloadRecord.ChunkRecord> chunkRecords = downloadRecord.getChunkRecords();
-
-                        List<ChunkDownload> chunkDownloads = new ArrayList<>();
-                        if (chunkRecords != null) {
-                            for (DownloadRecord.ChunkRecord chunkRecord : chunkRecords) {
-                                chunkDownloads.add(new ChunkDownload(request, chunkRecord.getChunk(),
-                                        chunkRecord.getChunkDownloadStatus(), downloadAPI, persistenceAdapter, logger));
-                            }
-                        }
-
-                        Download download = new Download(
-                                request,
-                                downloadStatus,
-                                downloadInfo,
-                                chunkDownloads,
-                                defaultDestination,
-                                splitter,
-                                downloadAPI,
-                                retryPolicyFactory.createPolicy(),
-                                persistenceAdapter,
-                                chunkDownloadThreadPool,
-                                semaphore,
-                                logger);
-                        requests.add(request);
-                        downloads.add(download);
-                        requestDownloadMap.put(request, download);
-                        if (listeners != null && !listeners.isEmpty()) {
-                            for (Listener listener : listeners) {
-                                listener.onDownloadCreate(download);
-                            }
+                    synchronized (requestDownloadMap) {
+                        for (DownloadRecord downloadRecord : downloadRecords) {
+                            requests.add(downloadRecord.getRequest());
+                            records.put(downloadRecord.getRequest(), downloadRecord);
                         }
                     }
                 }
@@ -105,6 +149,140 @@ public class DownloadManager {
         });
     }
 
+    /**
+     * The download of the request, made from its record the first time it is asked for. The caller holds the lock of
+     * requestDownloadMap and dispatches the created downloads after releasing it.
+     *
+     * @return null if there is no such request.
+     */
+    private Download download(Request request) {
+        Download download = requestDownloadMap.get(request);
+        if (download != null) {
+            return download;
+        }
+        DownloadRecord downloadRecord = records.remove(request);
+        if (downloadRecord == null) {
+            return null;
+        }
+        List<DownloadRecord.ChunkRecord> chunkRecords = downloadRecord.getChunkRecords();
+        List<ChunkDownload> chunkDownloads = new ArrayList<>();
+        if (chunkRecords != null) {
+            for (DownloadRecord.ChunkRecord chunkRecord : chunkRecords) {
+                chunkDownloads.add(new ChunkDownload(request, chunkRecord.getChunk(),
+                        chunkRecord.getChunkDownloadStatus(), downloadAPI, persistenceAdapter, logger));
+            }
+        }
+        download = newDownload(request, downloadRecord.getDownloadStatus(), downloadRecord.getDownloadInfo(), chunkDownloads);
+        downloads.add(download);
+        requestDownloadMap.put(request, download);
+        created.add(download);
+        return download;
+    }
+
+    /**
+     * Call {@link Listener#onDownloadCreate} for the downloads made from their records, on the action thread.
+     */
+    private void dispatchCreated() {
+        List<Download> temp;
+        synchronized (requestDownloadMap) {
+            if (created.isEmpty()) {
+                return;
+            }
+            temp = new ArrayList<>(created);
+            created.clear();
+        }
+        if (listeners != null && !listeners.isEmpty()) {
+            for (Download download : temp) {
+                for (Listener listener : listeners) {
+                    listener.onDownloadCreate(download);
+                }
+            }
+        }
+    }
+
+    /**
+     * {@link #dispatchCreated()} from a caller's thread.
+     */
+    private void dispatchCreatedAsync() {
+        synchronized (requestDownloadMap) {
+            if (created.isEmpty()) {
+                return;
+            }
+        }
+        actionThreadPool.execute(new Runnable() {
+            @Override
+            public void run() {
+                dispatchCreated();
+            }
+        });
+    }
+
+    private Download newDownload(Request request, DownloadStatus downloadStatus, DownloadInfo downloadInfo, List<ChunkDownload> chunkDownloads) {
+        Download download = new Download(
+                request,
+                downloadStatus,
+                downloadInfo,
+                chunkDownloads,
+                defaultDestination,
+                splitter,
+                downloadAPI,
+                retryPolicyFactory.createPolicy(),
+                persistenceAdapter,
+                chunkDownloadThreadPool,
+                selectorDownloadEngine,
+                downloadThreadFactory,
+                hostScheduler,
+                admissionQueue,
+                metadataCache,
+                downloadCache,
+                singleFile,
+                bufferPool,
+                rateLimiter,
+                progressInterval,
+                progressThreshold,
+                logger);
+        if (singleFlight) {
+            download.setFlightListener(flightListener);
+        }
+        return download;
+    }
+
+    private void executeFlightAction(Runnable action) {
+        try {
+            actionThreadPool.execute(action);
+        } catch (RejectedExecutionException e) {
+            // shut down, no more downloads are enqueued
+        }
+    }
+
+    /**
+     * The downloads that are made already, the others can not be running.
+     */
+    List<Download> getActiveDownloads() {
+        synchronized (requestDownloadMap) {
+            return new ArrayList<>(downloads);
+        }
+    }
+
+    /**
+     * The downloads that are not complete, made from their records if they are not made yet. Called on the action thread.
+     */
+    private List<Download> getResumableDownloads() {
+        List<Download> resumable = new ArrayList<>();
+        synchronized (requestDownloadMap) {
+            for (Request request : requests) {
+                DownloadRecord downloadRecord = records.get(request);
+                if (downloadRecord == null
+                        || downloadRecord.getDownloadStatus() == null
+                        || downloadRecord.getDownloadStatus().getStatus() != DownloadStatus.COMPLETE) {
+                    resumable.add(download(request));
+                }
+            }
+        }
+        dispatchCreated();
+        return resumable;
+    }
+
     public void addListener(Listener listener) {
         listeners.add(listener);
     }
@@ -122,40 +300,81 @@ public class DownloadManager {
         return null;
     }
 
+    /**
+     * A download restored from the persistence adapter is made, and {@link Listener#onDownloadCreate} called for it,
+     * the first time it is asked for here.
+     */
     public Download getDownload(Request request) {
-        return requestDownloadMap.get(request);
+        Download download;
+        synchronized (requestDownloadMap) {
+            download = download(request);
+        }
+        dispatchCreatedAsync();
+        return download;
     }
 
     public List<Request> getRequests() {
         return Collections.unmodifiableList(requests);
     }
 
+    /**
+     * Makes every restored download, see {@link #getDownloads(int, int)} to go through many of them.
+     */
     public List<Download> getDownloads() {
-        return Collections.unmodifiableList(downloads);
+        return getDownloads(0, Integer.MAX_VALUE);
+    }
+
+    /**
+     * The downloads of the requests from {@code offset} in the order of {@link #getRequests()}, only the restored
+     * downloads of the page are made.
+     */
+    public List<Download> getDownloads(int offset, int limit) {
+        if (offset < 0 || limit < 0) {
+            throw new IllegalArgumentException("The offset and limit can not be negative.");
+        }
+        List<Download> page;
+        synchronized (requestDownloadMap) {
+            int end = (int) Math.min(requests.size(), (long) offset + limit);
+            page = new ArrayList<>(Math.max(0, end - offset));
+            for (int i = offset; i < end; i++) {
+                page.add(download(requests.get(i)));
+            }
+        }
+        dispatchCreatedAsync();
+        return Collections.unmodifiableList(page);
+    }
+
+    private boolean contains(Request request) {
+        synchronized (requestDownloadMap) {
+            return requestDownloadMap.containsKey(request) || records.containsKey(request);
+        }
     }
 
     public void enqueue(final Request request) {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                if (!requests.contains(request)) {
-                    Download download = new Download(
-                            request,
-                            null,
-                            null,
-                            null,
-                            defaultDestination,
-                            splitter,
-                            downloadAPI,
-                            retryPolicyFactory.createPolicy(),
-                            persistenceAdapter,
-                            chunkDownloadThreadPool,
-                            semaphore,
-                            logger);
-                    requests.add(request);
-                    downloads.add(download);
-                    requestDownloadMap.put(request, download);
+                if (!contains(request)) {
+                    Download download = newDownload(request, null, null, null);
+                    synchronized (requestDownloadMap) {
+                        requests.add(request);
+                        downloads.add(download);
+                        requestDownloadMap.put(request, download);
+                    }
                     persistenceAdapter.saveRequest(request);
+                    if (singleFlight) {
+                        String source = source(request);
+                        Download leader = flights.get(source);
+                        if (leader != null && !leader.isFlightOpen()) {
+                            flights.remove(source);
+                            leader = null;
+                        }
+                        if (leader != null && sameContent(leader, request)) {
+                            download.follow(leader);
+                        } else {
+                            flights.put(source, download);
+                        }
+                    }
                     if (listeners != null && !listeners.isEmpty()) {
                         for (Listener listener : listeners) {
                             listener.onDownloadCreate(download);
@@ -167,11 +386,40 @@ public class DownloadManager {
         });
     }
 
+    /**
+     * Requests of the same url, headers and digest get the same content, whatever their ids and destinations are.
+     */
+    private static String source(Request request) {
+        return MetadataCache.key(request.url())
+                + " " + (request.headers() == null ? "{}" : new TreeMap<>(request.headers()))
+                + " " + request.digestAlgorithm()
+                + " " + (request.digest() == null ? null : request.digest().toLowerCase(Locale.US));
+    }
+
+    /**
+     * The validators of an initialized leader have to be the ones probed for the url last, if it was probed lately.
+     */
+    private boolean sameContent(Download leader, Request request) {
+        DownloadInfo downloadInfo = leader.getDownloadInfo();
+        DownloadInfo cached = metadataCache.get(request.url());
+        if (downloadInfo == null || downloadInfo.initInfo() == null || cached == null) {
+            return true;
+        }
+        return downloadInfo.initInfo().contentLength() == cached.initInfo().contentLength()
+                && Utils.equals(downloadInfo.initInfo().eTag(), cached.initInfo().eTag());
+    }
+
     public void resume(final Request request) {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                getDownload(request).resumeAsync();
+                Download download;
+                synchronized (requestDownloadMap) {
+                    download = download(request);
+                }
+                // the listeners know the download before it changes
+                dispatchCreated();
+                download.resumeAsync();
             }
         });
     }
@@ -180,7 +428,14 @@ public class DownloadManager {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                getDownload(request).pauseAsync();
+                Download download;
+                synchronized (requestDownloadMap) {
+                    // a download that is not made yet is not running
+                    download = requestDownloadMap.get(request);
+                }
+                if (download != null) {
+                    download.pauseAsync();
+                }
             }
         });
     }
@@ -189,7 +444,7 @@ public class DownloadManager {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                for (Download download : downloads) {
+                for (Download download : getResumableDownloads()) {
                     download.resumeAsync();
                 }
             }
@@ -200,7 +455,7 @@ public class DownloadManager {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                for (Download download : downloads) {
+                for (Download download : getActiveDownloads()) {
                     download.pauseAsync();
                 }
             }
@@ -211,11 +466,11 @@ public class DownloadManager {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                List<Download> downloadsTemp = new ArrayList<>(downloads);
+                List<Download> downloadsTemp = getResumableDownloads();
                 Collections.sort(downloadsTemp, new Comparator<Download>() {
                     @Override
                     public int compare(Download o1, Download o2) {
-                        return o1.getRequest().priority() - o2.getRequest().priority();
+                        return o1.getPriority() - o2.getPriority();
                     }
                 });
                 for (Download download : downloadsTemp) {
@@ -230,9 +485,12 @@ public class DownloadManager {
             @Override
             public void run() {
                 Request request = download.getRequest();
-                requests.remove(request);
-                downloads.remove(download);
-                requestDownloadMap.remove(request);
+                synchronized (requestDownloadMap) {
+                    requests.remove(request);
+                    downloads.remove(download);
+                    requestDownloadMap.remove(request);
+                }
+                flights.values().remove(download);
                 persistenceAdapter.deleteRequest(request);
                 if (listeners != null && !listeners.isEmpty()) {
                     for (Listener listener : listeners) {
@@ -248,12 +506,22 @@ public class DownloadManager {
         actionThreadPool.execute(new Runnable() {
             @Override
             public void run() {
-                for (Download download : downloads) {
+                for (Download download : getActiveDownloads()) {
                     download.shutdownAsync(false);
                 }
                 actionThreadPool.shutdown();
                 chunkDownloadThreadPool.shutdown();
+                if (selectorDownloadEngine != null) {
+                    selectorDownloadEngine.shutdown();
+                }
                 listeners.clear();
+                if (persistenceAdapter instanceof Closeable) {
+                    try {
+                        ((Closeable) persistenceAdapter).close();
+                    } catch (IOException e) {
+                        logger.log(Level.WARNING, "Can not close the persistence adapter.", e);
+                    }
+                }
             }
         });
     }
@@ -262,8 +530,48 @@ public class DownloadManager {
         return downloadMonitor;
     }
 
+    public BufferPool getBufferPool() {
+        return bufferPool;
+    }
+
+    /**
+     * @return bytes per second all downloads together may read at most, 0 for no limit.
+     */
+    public long getRateLimit() {
+        return rateLimiter.getRate();
+    }
+
+    /**
+     * Takes effect on the running downloads right away. The downloads share the limit by the weights of
+     * their priorities, see {@link Download#getPriority()}.
+     *
+     * @param bytesPerSecond 0 for no limit.
+     */
+    public void setRateLimit(long bytesPerSecond) {
+        rateLimiter.setRate(bytesPerSecond);
+    }
+
+    /**
+     * The queue the downloads wait in until one of the {@link Builder#maxDownloadCount(int)} places is free,
+     * with how long they waited.
+     */
+    public AdmissionQueue getAdmissionQueue() {
+        return admissionQueue;
+    }
+
+    /**
+     * @return null if the downloads are not cached.
+     */
+    public DownloadCache getDownloadCache() {
+        return downloadCache;
+    }
+
     public interface Listener {
 
+        /**
+         * Called on the manager's action thread. For a download restored from the persistence adapter it is called
+         * when the download is made, the first time it is asked for or resumed.
+         */
         void onDownloadCreate(Download download);
 
         void onDownloadDestroy(Download download);
@@ -273,11 +581,25 @@ public class DownloadManager {
 
         private String defaultDestination;
         private ExecutorService chunkDownloadThreadPool;
+        private SelectorDownloadEngine selectorDownloadEngine;
+        private ThreadFactory downloadThreadFactory;
+        private boolean virtualThreads;
+        private int maxConnectionsPerHost = -1;
+        private int maxConnectionsPerAddress;
         private PersistenceAdapter persistenceAdapter;
         private Splitter splitter;
         private DownloadAPI downloadAPI;
         private RetryPolicy.Factory retryPolicyFactory;
         private int maxDownloadCount;
+        private boolean preemptive;
+        private boolean singleFile;
+        private BufferPool bufferPool;
+        private long rateLimit;
+        private long progressInterval = -1;
+        private long progressThreshold;
+        private long metadataTtl = TimeUnit.MINUTES.toNanos(1);
+        private boolean singleFlight = true;
+        private DownloadCache downloadCache;
         private Logger logger;
 
         public Builder() {
@@ -293,6 +615,49 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Run the chunk downloads of plain http urls on the selector threads of this engine instead of
+         * the chunk download thread pool.
+         */
+        public Builder selectorDownloadEngine(SelectorDownloadEngine selectorDownloadEngine) {
+            this.selectorDownloadEngine = selectorDownloadEngine;
+            return this;
+        }
+
+        /**
+         * Run the chunk downloads and the actions of every download on virtual threads, so that the count of
+         * concurrent downloads is only limited by {@link #maxDownloadCount(int)}. Needs Java 21, {@link #build()}
+         * throws {@link UnsupportedOperationException} otherwise. A chunk download thread pool set explicitly is kept.
+         */
+        public Builder virtualThreads(boolean virtualThreads) {
+            this.virtualThreads = virtualThreads;
+            return this;
+        }
+
+        /**
+         * How many chunk downloads may run against one host at the same time, 8 by default, 0 for no limit.
+         * Chunk downloads of a host at its limit wait and let the ones of other hosts start first.
+         */
+        public Builder maxConnectionsPerHost(int maxConnectionsPerHost) {
+            if (maxConnectionsPerHost < 0) {
+                throw new IllegalArgumentException("The max connection count per host can not be negative.");
+            }
+            this.maxConnectionsPerHost = maxConnectionsPerHost;
+            return this;
+        }
+
+        /**
+         * How many chunk downloads may run against one resolved IP address at the same time, which catches
+         * several host names of the same server, no limit by default.
+         */
+        public Builder maxConnectionsPerAddress(int maxConnectionsPerAddress) {
+            if (maxConnectionsPerAddress < 0) {
+                throw new IllegalArgumentException("The max connection count per address can not be negative.");
+            }
+            this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+            return this;
+        }
+
         public Builder persistenceAdapter(PersistenceAdapter persistenceAdapter) {
             this.persistenceAdapter = persistenceAdapter;
             return this;
@@ -321,6 +686,99 @@ public class DownloadManager {
             return this;
         }
 
+        /**
+         * Let a download that is more urgent than a running one pause the least urgent running download when all
+         * places are taken, instead of waiting for it to finish. The paused download keeps its progress and
+         * waits for a place again. Disabled by default.
+         */
+        public Builder preemptive(boolean preemptive) {
+            this.preemptive = preemptive;
+            return this;
+        }
+
+        /**
+         * Write the chunks of new downloads straight into a preallocated file at their own offsets,
+         * so that completing a download is a rename instead of merging part files.
+         */
+        public Builder singleFile(boolean singleFile) {
+            this.singleFile = singleFile;
+            return this;
+        }
+
+        /**
+         * The pool all chunk downloads borrow their transfer buffers from.
+         */
+        public Builder bufferPool(BufferPool bufferPool) {
+            this.bufferPool = bufferPool;
+            return this;
+        }
+
+        /**
+         * How often the progress listeners of a download and its chunk downloads are notified at most, 200ms by default.
+         */
+        public Builder progressInterval(long interval, TimeUnit unit) {
+            if (interval < 0) {
+                throw new IllegalArgumentException("The progress interval can not be negative.");
+            }
+            this.progressInterval = unit.toNanos(interval);
+            return this;
+        }
+
+        /**
+         * Notify the progress listeners before the progress interval has passed once this many bytes arrived,
+         * disabled by default.
+         */
+        public Builder progressThreshold(long progressThreshold) {
+            if (progressThreshold < 1) {
+                throw new IllegalArgumentException("The progress threshold must be positive.");
+            }
+            this.progressThreshold = progressThreshold;
+            return this;
+        }
+
+        /**
+         * Bytes per second all downloads together may read at most, no limit by default. A download that
+         * is one step more urgent by {@link Download#getPriority()} gets twice the share of another.
+         */
+        public Builder rateLimit(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("The rate limit can not be negative.");
+            }
+            this.rateLimit = bytesPerSecond;
+            return this;
+        }
+
+        /**
+         * How long the probed length, validators and range support of a url are reused by new downloads of the url,
+         * and by resumes of downloads without validators, 1 minute by default, 0 to always probe. Downloads with
+         * validators resume without a probe anyway, their data requests send If-Range.
+         */
+        public Builder metadataTtl(long ttl, TimeUnit unit) {
+            if (ttl < 0) {
+                throw new IllegalArgumentException("The metadata ttl can not be negative.");
+            }
+            this.metadataTtl = unit.toNanos(ttl);
+            return this;
+        }
+
+        /**
+         * Let a new download share the transfer of a running download of the same url, headers and digest, and fill
+         * its file by a hard link or a copy once that one is complete. Enabled by default.
+         */
+        public Builder singleFlight(boolean singleFlight) {
+            this.singleFlight = singleFlight;
+            return this;
+        }
+
+        /**
+         * Keep complete files in the cache and complete new downloads of the same url and validators, or of the same
+         * digest, from there. Not cached by default.
+         */
+        public Builder downloadCache(DownloadCache downloadCache) {
+            this.downloadCache = downloadCache;
+            return this;
+        }
+
         public Builder logger(Logger logger) {
             this.logger = logger;
             return this;
@@ -329,13 +787,21 @@ public class DownloadManager {
         public DownloadManager build() {
             if (Utils.isEmpty(defaultDestination))
                 throw new NullPointerException("The default download destination is empty.");
+            if (virtualThreads) {
+                downloadThreadFactory = Utils.virtualThreadFactory("download-");
+                if (chunkDownloadThreadPool == null) {
+                    chunkDownloadThreadPool = Utils.newThreadPerTaskExecutor(Utils.virtualThreadFactory("chunk-download-"));
+                }
+            } else {
+                downloadThreadFactory = Executors.defaultThreadFactory();
+            }
             if (chunkDownloadThreadPool == null) {
                 ThreadPoolExecutor temp = new ThreadPoolExecutor(6, 6, 30, TimeUnit.SECONDS, new LinkedBlockingQueue<Runnable>());
                 temp.allowCoreThreadTimeOut(true);
                 chunkDownloadThreadPool = temp;
             }
             if (persistenceAdapter == null) {
-                persistenceAdapter = new SerializablePersistenceAdapter(defaultDestination);
+                persistenceAdapter = new JournalPersistenceAdapter(defaultDestination);
             }
             if (splitter == null) {
                 splitter = new SimpleSplitter();
@@ -346,9 +812,21 @@ public class DownloadManager {
             if (retryPolicyFactory == null) {
                 retryPolicyFactory = SimpleRetryPolicy.Factory.create(3);
             }
+            if (maxConnectionsPerHost == -1) {
+                maxConnectionsPerHost = 8;
+            }
             if (maxDownloadCount == 0) {
                 maxDownloadCount = 5;
             }
+            if (bufferPool == null) {
+                bufferPool = new BufferPool(64 * 1024, 8 * 1024 * 1024);
+            }
+            if (progressInterval == -1) {
+                progressInterval = TimeUnit.MILLISECONDS.toNanos(200);
+            }
+            if (progressThreshold == 0) {
+                progressThreshold = Long.MAX_VALUE;
+            }
             if (logger == null) {
                 logger = Logger.getLogger("DownloadManager");
                 logger.setLevel(Level.ALL);
@@ -1,8 +1,7 @@
 package com.lcjian.lib.download;
 
-import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
-import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.Executors;
@@ -15,7 +14,10 @@ public class DownloadMonitor {
 
     private DownloadManager downloadManager;
 
-    private Map<Download, Statistics> statisticsMap = new HashMap<>();
+    /**
+     * Replaced as a whole every second, readers never see a half updated snapshot and never block the monitor.
+     */
+    private volatile Snapshot snapshot = new Snapshot(System.nanoTime(), Collections.<Download, Statistics>emptyMap());
 
     private boolean started;
 
@@ -23,85 +25,167 @@ public class DownloadMonitor {
         this.downloadManager = downloadManager;
     }
 
-    public void start() {
+    public synchronized void start() {
         if (!started) {
             if (scheduledExecutorService == null || scheduledExecutorService.isShutdown()) {
                 scheduledExecutorService = Executors.newSingleThreadScheduledExecutor();
             }
             scheduledExecutorService.scheduleAtFixedRate(new Runnable() {
 
-                private List<Download> temp = new ArrayList<>(5);
-                private List<Download> temp2 = new ArrayList<>(5);
-
                 @Override
                 public void run() {
-                    temp.clear();
-                    temp2.clear();
-                    for (Download download : downloadManager.getDownloads()) {
-                        if (download.getDownloadStatus().getStatus() == DownloadStatus.DOWNLOADING) {
-                            temp.add(download);
+                    Snapshot last = snapshot;
+                    long time = System.nanoTime();
+                    long elapsed = time - last.time;
+                    Map<Download, Statistics> statisticsMap = new HashMap<>();
+                    for (Download download : downloadManager.getActiveDownloads()) {
+                        if (download.getDownloadStatus().getStatus() != DownloadStatus.DOWNLOADING) {
+                            continue;
+                        }
+                        Statistics lastStatistics = last.statisticsMap.get(download);
+
+                        // the download's bytes are summed up from the same reads as its chunks' bytes, so they always agree
+                        long downloadedBytes = 0;
+                        Map<ChunkDownload, ChunkStatistics> chunkStatisticsMap = new HashMap<>();
+                        for (ChunkDownload chunkDownload : download.getChunkDownloads()) {
+                            long chunkDownloadedBytes = chunkDownload.getDownloadedBytes();
+                            ChunkStatistics lastChunkStatistics = lastStatistics == null ? null : lastStatistics.chunkStatisticsMap.get(chunkDownload);
+                            chunkStatisticsMap.put(chunkDownload, new ChunkStatistics(chunkDownloadedBytes,
+                                    lastChunkStatistics == null ? -1 : rate(chunkDownloadedBytes - lastChunkStatistics.downloadedBytes, elapsed)));
+                            downloadedBytes += chunkDownloadedBytes;
                         }
-                    }
-
-                    temp2.addAll(statisticsMap.keySet());
-                    temp2.removeAll(temp);
-                    for (Download download : temp2) {
-                        statisticsMap.remove(download);
-                    }
-
-                    for (Download download : temp) {
-                        Statistics statistics = statisticsMap.get(download);
 
                         long length = download.getDownloadInfo().initInfo().contentLength();
-                        long downloadedBytes = download.getDownloadedBytes();
-                        if (statistics == null) {
-                            statistics = new Statistics();
-                            statistics.delta = -1;
-                        } else {
-                            statistics.delta = downloadedBytes - statistics.lastDownloadedBytes;
-                        }
-                        statistics.lastDownloadedBytes = downloadedBytes;
-                        statistics.estimatedTime = statistics.delta == -1 || length == -1 ? -1 : (int) (length / (float) statistics.delta);
-                        statisticsMap.put(download, statistics);
+                        long delta = lastStatistics == null ? -1 : rate(downloadedBytes - lastStatistics.downloadedBytes, elapsed);
+                        long estimatedTime = delta <= 0 || length == -1 ? -1 : Math.max(0, length - downloadedBytes) / delta;
+                        statisticsMap.put(download, new Statistics(downloadedBytes, delta, estimatedTime,
+                                Collections.unmodifiableMap(chunkStatisticsMap)));
                     }
+                    snapshot = new Snapshot(time, Collections.unmodifiableMap(statisticsMap));
                 }
             }, 1, 1, TimeUnit.SECONDS);
             started = true;
         }
     }
 
-    public void stop() {
+    public synchronized void stop() {
         if (started) {
             scheduledExecutorService.shutdown();
             started = false;
         }
     }
 
+    /**
+     * @return the statistics of all downloading downloads, taken at the same time.
+     */
+    public Snapshot getSnapshot() {
+        return snapshot;
+    }
+
     public Set<Download> getDownloads() {
-        return statisticsMap.keySet();
+        return snapshot.getDownloads();
     }
 
     public long getDownloadDelta(Download download) {
-        if (statisticsMap.get(download) == null) {
-            return -1;
-        } else {
-            return statisticsMap.get(download).delta;
-        }
+        Statistics statistics = snapshot.getStatistics(download);
+        return statistics == null ? -1 : statistics.delta;
     }
 
     public long getDownloadEstimatedTime(Download download) {
-        if (statisticsMap.get(download) == null) {
-            return -1;
-        } else {
-            return statisticsMap.get(download).estimatedTime;
+        Statistics statistics = snapshot.getStatistics(download);
+        return statistics == null ? -1 : statistics.estimatedTime;
+    }
+
+    private static long rate(long bytes, long nanos) {
+        return nanos <= 0 ? -1 : bytes * TimeUnit.SECONDS.toNanos(1) / nanos;
+    }
+
+    public static final class Snapshot {
+
+        private final long time;
+        private final Map<Download, Statistics> statisticsMap;
+
+        private Snapshot(long time, Map<Download, Statistics> statisticsMap) {
+            this.time = time;
+            this.statisticsMap = statisticsMap;
+        }
+
+        /**
+         * @return the {@link System#nanoTime()} this snapshot is taken at.
+         */
+        public long getTime() {
+            return time;
+        }
+
+        public Set<Download> getDownloads() {
+            return statisticsMap.keySet();
+        }
+
+        public Statistics getStatistics(Download download) {
+            return statisticsMap.get(download);
         }
     }
 
-    private static class Statistics {
+    public static final class Statistics {
+
+        private final long downloadedBytes;
+        private final long delta;
+        private final long estimatedTime;
+        private final Map<ChunkDownload, ChunkStatistics> chunkStatisticsMap;
+
+        private Statistics(long downloadedBytes, long delta, long estimatedTime, Map<ChunkDownload, ChunkStatistics> chunkStatisticsMap) {
+            this.downloadedBytes = downloadedBytes;
+            this.delta = delta;
+            this.estimatedTime = estimatedTime;
+            this.chunkStatisticsMap = chunkStatisticsMap;
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes;
+        }
 
-        long lastDownloadedBytes;
+        /**
+         * @return bytes per second, -1 if the download is not measured twice yet.
+         */
+        public long getDelta() {
+            return delta;
+        }
+
+        /**
+         * @return seconds left, -1 if unknown.
+         */
+        public long getEstimatedTime() {
+            return estimatedTime;
+        }
+
+        public Set<ChunkDownload> getChunkDownloads() {
+            return chunkStatisticsMap.keySet();
+        }
 
-        long delta;
-        long estimatedTime;
+        public ChunkStatistics getChunkStatistics(ChunkDownload chunkDownload) {
+            return chunkStatisticsMap.get(chunkDownload);
+        }
+    }
+
+    public static final class ChunkStatistics {
+
+        private final long downloadedBytes;
+        private final long delta;
+
+        private ChunkStatistics(long downloadedBytes, long delta) {
+            this.downloadedBytes = downloadedBytes;
+            this.delta = delta;
+        }
+
+        public long getDownloadedBytes() {
+            return downloadedBytes;
+        }
+
+        /**
+         * @return bytes per second, -1 if the chunk download is not measured twice yet.
+         */
+        public long getDelta() {
+            return delta;
+        }
     }
 }
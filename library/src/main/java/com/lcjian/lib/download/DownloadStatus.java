@@ -13,6 +13,10 @@ public class DownloadStatus implements Serializable {
     public static final int MERGING = 6;
     public static final int MERGE_ERROR = 7;
     public static final int COMPLETE = 8;
+    /**
+     * The downloaded file does not match the digest of the request, it is deleted and downloaded again on resume.
+     */
+    public static final int VERIFY_ERROR = 9;
     /**
      * serialVersionUID
      */
@@ -21,8 +25,13 @@ public class DownloadStatus implements Serializable {
 
     private Throwable throwable;
 
+    /**
+     * Bytes of the parts that are copied into the download file, while {@link #MERGING}.
+     */
+    private long mergedBytes;
+
     DownloadStatus(int status) {
-        if (status == ERROR || status == MERGE_ERROR) {
+        if (status == ERROR || status == MERGE_ERROR || status == VERIFY_ERROR) {
             throw new IllegalArgumentException("DownloadStatus ERROR");
         }
         this.status = status;
@@ -34,7 +43,7 @@ public class DownloadStatus implements Serializable {
     }
 
     DownloadStatus(int status, Throwable throwable) {
-        if (status != MERGE_ERROR) {
+        if (status != MERGE_ERROR && status != VERIFY_ERROR) {
             throw new IllegalArgumentException("DownloadStatus ERROR");
         }
         this.status = status;
@@ -48,4 +57,12 @@ public class DownloadStatus implements Serializable {
     public Throwable getThrowable() {
         return throwable;
     }
+
+    public long getMergedBytes() {
+        return mergedBytes;
+    }
+
+    void setMergedBytes(long mergedBytes) {
+        this.mergedBytes = mergedBytes;
+    }
 }
@@ -0,0 +1,25 @@
+package com.lcjian.lib.download;
+
+/**
+ * A {@link Splitter} that can change the chunk layout of a running download. It is asked periodically
+ * on the download's action thread and can look at the live throughput of every {@link ChunkDownload}.
+ */
+public interface DynamicSplitter extends Splitter {
+
+    /**
+     * @return how many more ranged connections the download should open now, every new connection
+     * takes over the back half of the busiest chunk's remaining range.
+     */
+    int resplit(Download download);
+
+    /**
+     * Called when the download starts or resumes, what was measured for it before may not hold any more.
+     */
+    default void reset(Download download) {
+    }
+
+    /**
+     * The smallest remaining range of a chunk that is still worth splitting in two.
+     */
+    long minSplitBytes();
+}
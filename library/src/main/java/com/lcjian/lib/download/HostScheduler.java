@@ -0,0 +1,229 @@
+package com.lcjian.lib.download;
+
+import java.net.InetAddress;
+import java.net.URI;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Starts chunk downloads only while their host, and optionally the address it resolves to, has less connections
+ * than allowed. A chunk download of a host at its limit waits, and the chunk downloads of other hosts behind it
+ * start first, so the chunk download thread pool is spread over the hosts instead of piling onto one.
+ */
+final class HostScheduler {
+
+    /**
+     * How long a resolved address is used before the host is looked up again.
+     */
+    private static final long ADDRESS_TTL_NANOS = TimeUnit.MINUTES.toNanos(1);
+
+    private final int maxConnectionsPerHost;
+    private final int maxConnectionsPerAddress;
+    private final Map<String, Integer> hostConnections = new HashMap<>();
+    private final Map<String, Integer> addressConnections = new HashMap<>();
+    private final Map<String, ResolvedAddress> addresses = new HashMap<>();
+    private final LinkedList<Slot> waiting = new LinkedList<>();
+
+    /**
+     * @param maxConnectionsPerHost    0 for no limit.
+     * @param maxConnectionsPerAddress 0 for no limit, hosts are not resolved then.
+     */
+    HostScheduler(int maxConnectionsPerHost, int maxConnectionsPerAddress) {
+        this.maxConnectionsPerHost = maxConnectionsPerHost;
+        this.maxConnectionsPerAddress = maxConnectionsPerAddress;
+    }
+
+    private static String host(String url) {
+        try {
+            String host = new URI(url).getHost();
+            if (host != null) {
+                return host.toLowerCase(Locale.US);
+            }
+        } catch (Exception e) {
+            // fall through, the url is its own host
+        }
+        return url;
+    }
+
+    /**
+     * @param runnable run once the url's host has a free connection, it must not block as it may be run
+     *                 by the thread releasing another slot.
+     */
+    Slot newSlot(String url, Runnable runnable) {
+        String host = host(url);
+        return new Slot(host, maxConnectionsPerAddress > 0 ? address(host) : null, runnable);
+    }
+
+    void submit(Slot slot) {
+        List<Slot> ready;
+        synchronized (this) {
+            waiting.add(slot);
+            ready = poll();
+        }
+        run(ready);
+    }
+
+    /**
+     * Run the slot right away, ahead of the waiting ones, for a connection that is open already.
+     *
+     * @return false if its host has no free connection, the slot is not submitted then.
+     */
+    boolean start(Slot slot) {
+        synchronized (this) {
+            if (!admissible(slot)) {
+                return false;
+            }
+            increment(hostConnections, slot.host);
+            if (slot.address != null) {
+                increment(addressConnections, slot.address);
+            }
+        }
+        slot.runnable.run();
+        return true;
+    }
+
+    void release(Slot slot) {
+        List<Slot> ready;
+        synchronized (this) {
+            decrement(hostConnections, slot.host);
+            if (slot.address != null) {
+                decrement(addressConnections, slot.address);
+            }
+            ready = poll();
+        }
+        run(ready);
+    }
+
+    synchronized int getConnectionCount(String host) {
+        Integer count = hostConnections.get(host.toLowerCase(Locale.US));
+        return count == null ? 0 : count;
+    }
+
+    /**
+     * @return the connections to the host of the url, open or waiting for a slot.
+     */
+    int getDemand(String url) {
+        String host = host(url);
+        synchronized (this) {
+            int count = count(hostConnections, host);
+            for (Slot slot : waiting) {
+                if (slot.host.equals(host)) {
+                    count++;
+                }
+            }
+            return count;
+        }
+    }
+
+    synchronized int getWaitingCount() {
+        return waiting.size();
+    }
+
+    private List<Slot> poll() {
+        List<Slot> ready = null;
+        Iterator<Slot> iterator = waiting.iterator();
+        while (iterator.hasNext()) {
+            Slot slot = iterator.next();
+            if (admissible(slot)) {
+                iterator.remove();
+                increment(hostConnections, slot.host);
+                if (slot.address != null) {
+                    increment(addressConnections, slot.address);
+                }
+                if (ready == null) {
+                    ready = new ArrayList<>(2);
+                }
+                ready.add(slot);
+            }
+        }
+        return ready;
+    }
+
+    private boolean admissible(Slot slot) {
+        if (maxConnectionsPerHost > 0 && count(hostConnections, slot.host) >= maxConnectionsPerHost) {
+            return false;
+        }
+        return slot.address == null || count(addressConnections, slot.address) < maxConnectionsPerAddress;
+    }
+
+    private static void run(List<Slot> ready) {
+        if (ready != null) {
+            for (Slot slot : ready) {
+                slot.runnable.run();
+            }
+        }
+    }
+
+    private static int count(Map<String, Integer> map, String key) {
+        Integer count = map.get(key);
+        return count == null ? 0 : count;
+    }
+
+    private static void increment(Map<String, Integer> map, String key) {
+        map.put(key, count(map, key) + 1);
+    }
+
+    private static void decrement(Map<String, Integer> map, String key) {
+        int count = count(map, key) - 1;
+        if (count <= 0) {
+            map.remove(key);
+        } else {
+            map.put(key, count);
+        }
+    }
+
+    /**
+     * Called by the thread that submits a chunk download, never with the lock held.
+     */
+    private String address(String host) {
+        long now = System.nanoTime();
+        synchronized (this) {
+            ResolvedAddress resolved = addresses.get(host);
+            if (resolved != null && now - resolved.time < ADDRESS_TTL_NANOS) {
+                return resolved.address;
+            }
+        }
+        String address;
+        try {
+            address = InetAddress.getByName(host).getHostAddress();
+        } catch (UnknownHostException | SecurityException e) {
+            // the chunk download will fail on its own, limit it by its host only
+            return null;
+        }
+        synchronized (this) {
+            addresses.put(host, new ResolvedAddress(address, now));
+        }
+        return address;
+    }
+
+    static final class Slot {
+
+        private final String host;
+        private final String address;
+        private final Runnable runnable;
+
+        private Slot(String host, String address, Runnable runnable) {
+            this.host = host;
+            this.address = address;
+            this.runnable = runnable;
+        }
+    }
+
+    private static final class ResolvedAddress {
+
+        private final String address;
+        private final long time;
+
+        private ResolvedAddress(String address, long time) {
+            this.address = address;
+            this.time = time;
+        }
+    }
+}
@@ -6,6 +6,7 @@ import java.io.IOException;
 import java.io.InputStream;
 import java.net.HttpURLConnection;
 import java.net.URL;
+import java.nio.channels.Channels;
 import java.util.HashMap;
 import java.util.Map;
 
@@ -35,23 +36,7 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
     }
 
     protected String fileName(String url, String contentDisposition) {
-        String fileName = "";
-        if (!Utils.isEmpty(contentDisposition)) {
-            fileName = Utils.contentDispositionFileName(contentDisposition);
-        }
-        if (Utils.isEmpty(fileName)) {
-            fileName = url.substring(url.lastIndexOf('/') + 1);
-        }
-        if (fileName.startsWith("\"")) {
-            fileName = fileName.substring(1);
-        }
-        if (fileName.endsWith("\"")) {
-            fileName = fileName.substring(0, fileName.length() - 1);
-        }
-        if (Utils.isEmpty(fileName) || !Utils.isValidFileName(fileName)) {
-            fileName = String.valueOf(System.currentTimeMillis());
-        }
-        return fileName;
+        return Utils.fileName(url, contentDisposition);
     }
 
     @Override
@@ -65,6 +50,7 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
                         .fileName(fileName(url, connection.getHeaderField("Content-Disposition")))
                         .mimeType(connection.getHeaderField("Content-Type"))
                         .lastModified(connection.getHeaderField("Last-Modified"))
+                        .eTag(connection.getHeaderField("ETag"))
                         .contentLength(Utils.isEmpty(contentLength) ? -1 : Long.parseLong(contentLength))
                         .build();
             } else {
@@ -76,6 +62,7 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
                             .fileName(fileName(url, connection.getHeaderField("Content-Disposition")))
                             .mimeType(connection.getHeaderField("Content-Type"))
                             .lastModified(connection.getHeaderField("Last-Modified"))
+                            .eTag(connection.getHeaderField("ETag"))
                             .contentLength(Utils.isEmpty(contentLength) ? -1 : Long.parseLong(contentLength))
                             .build();
                 } else {
@@ -89,9 +76,7 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
 
     @Override
     public DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) throws ConnectException {
-        if (headers == null) {
-            headers = new HashMap<>();
-        }
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
         headers.put("Range", "bytes=0-");
         HttpURLConnection connection = buildConnection(url, headers, "HEAD");
         try {
@@ -133,10 +118,63 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
     }
 
     @Override
-    public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) throws ConnectException {
-        if (headers == null) {
-            headers = new HashMap<>();
+    public Probe probe(String url, Map<String, String> headers, boolean keepBody) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        headers.put("Range", keepBody ? "bytes=0-" : "bytes=0-0");
+        HttpURLConnection connection = buildConnection(url, headers, "GET");
+        try {
+            connection.connect();
+            int responseCode = connection.getResponseCode();
+            long contentLength;
+            boolean rangeSupportable;
+            if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                contentLength = Utils.contentRangeLength(connection.getHeaderField("Content-Range"));
+                rangeSupportable = contentLength != -1;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                // the range is ignored, so are the ranges of chunks
+                String length = connection.getHeaderField("Content-Length");
+                contentLength = Utils.isEmpty(length) ? -1 : Long.parseLong(length);
+                rangeSupportable = false;
+            } else {
+                connection.disconnect();
+                return null;
+            }
+            DownloadInfo downloadInfo = new DownloadInfo.Builder()
+                    .initInfo(new DownloadInfo.InitInfo.Builder()
+                            .fileName(fileName(url, connection.getHeaderField("Content-Disposition")))
+                            .mimeType(connection.getHeaderField("Content-Type"))
+                            .lastModified(connection.getHeaderField("Last-Modified"))
+                            .eTag(connection.getHeaderField("ETag"))
+                            .contentLength(contentLength)
+                            .build())
+                    .rangeInfo(new DownloadInfo.RangeInfo.Builder()
+                            .chunked(responseCode == HttpURLConnection.HTTP_OK
+                                    && "chunked".equals(connection.getHeaderField("Transfer-Encoding")))
+                            .rangeSupportable(rangeSupportable)
+                            .build())
+                    .build();
+            if (keepBody) {
+                return new Probe(downloadInfo, Channels.newChannel(connection.getInputStream()));
+            } else if (responseCode == HttpURLConnection.HTTP_PARTIAL) {
+                // read the single byte, so that the connection can be kept alive
+                InputStream inputStream = connection.getInputStream();
+                while (inputStream.read() != -1) {
+                    // drain
+                }
+                inputStream.close();
+            } else {
+                // do not read the whole file
+                connection.disconnect();
+            }
+            return new Probe(downloadInfo, null);
+        } catch (IOException | NumberFormatException e) {
+            throw new ConnectException(e);
         }
+    }
+
+    @Override
+    public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
         headers.put("If-Modified-Since", lastModified);
         HttpURLConnection connection = buildConnection(url, headers, "HEAD");
         try {
@@ -155,14 +193,48 @@ public class HttpURLConnectionDownloadAPI implements DownloadAPI {
     }
 
     @Override
-    public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
-        if (headers == null) {
-            headers = new HashMap<>();
+    public boolean serverFileChanged(String url, Map<String, String> headers, DownloadInfo.InitInfo initInfo) throws ConnectException {
+        headers = conditionalHeaders(headers, initInfo);
+        HttpURLConnection connection = buildConnection(url, headers, "HEAD");
+        try {
+            connection.connect();
+            int responseCode = connection.getResponseCode();
+            if (responseCode == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            } else if (responseCode == HttpURLConnection.HTTP_OK) {
+                return Utils.serverFileChanged(initInfo, connection.getHeaderField("ETag"),
+                        connection.getHeaderField("Last-Modified"), connection.getHeaderField("Content-Length"));
+            } else {
+                throw new ConnectException("Connect failed, code:" + responseCode);
+            }
+        } catch (IOException e) {
+            throw new ConnectException(e);
+        }
+    }
+
+    static Map<String, String> conditionalHeaders(Map<String, String> headers, DownloadInfo.InitInfo initInfo) {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        if (!Utils.isEmpty(initInfo.eTag())) {
+            headers.put("If-None-Match", initInfo.eTag());
         }
+        if (!Utils.isEmpty(initInfo.lastModified())) {
+            headers.put("If-Modified-Since", initInfo.lastModified());
+        }
+        return headers;
+    }
+
+    @Override
+    public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
         headers.put("Range", "bytes=" + start + "-" + end);
         HttpURLConnection connection = buildConnection(url, headers, "GET");
         try {
             connection.connect();
+            if (connection.getResponseCode() == HttpURLConnection.HTTP_OK && headers.containsKey("If-Range")) {
+                connection.disconnect();
+                throw Utils.wholeFileSent(url, headers.get("If-Range"),
+                        connection.getHeaderField("ETag"), connection.getHeaderField("Last-Modified"));
+            }
             if (isSuccessful(connection.getResponseCode())) {
                 return connection.getInputStream();
             } else {
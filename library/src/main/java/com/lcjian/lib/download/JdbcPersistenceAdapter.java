@@ -0,0 +1,467 @@
+package com.lcjian.lib.download;
+
+import java.io.BufferedInputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.Serializable;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A {@link PersistenceAdapter} on an embedded, file-backed database reached through JDBC, e.g. SQLite with
+ * {@code jdbc:sqlite:/path/download.db} or H2 with {@code jdbc:h2:/path/download}. Put the driver on the classpath,
+ * the database runs in-process. Requests and chunks are rows keyed by {@link Request#id()} and by chunk file and
+ * start, so every update is a single-row write, and records can be queried by status without loading the others.
+ * An existing download.data of {@link SerializablePersistenceAdapter} can be imported with {@link #importData(File)}.
+ */
+public class JdbcPersistenceAdapter implements PersistenceAdapter, Closeable {
+
+    private static final String SELECT_RECORDS = "SELECT r.id, r.request, r.download_info, r.download_status,"
+            + " c.file, c.start_position, c.end_position, c.chunk_status"
+            + " FROM download_request r LEFT JOIN download_chunk c ON c.request_id = r.id";
+
+    private final Connection connection;
+    private long sequenceNumber;
+
+    public JdbcPersistenceAdapter(String url) {
+        try {
+            this.connection = DriverManager.getConnection(url);
+            this.connection.setAutoCommit(false);
+            createTables();
+            this.sequenceNumber = querySequenceNumber();
+        } catch (SQLException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static byte[] toBytes(Serializable obj) {
+        if (obj == null) {
+            return null;
+        }
+        try {
+            return Utils.serialize(obj);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static Object fromBytes(byte[] data) {
+        if (data == null) {
+            return null;
+        }
+        try {
+            return Utils.deserialize(data);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private static void setBytes(PreparedStatement statement, int index, byte[] data) throws SQLException {
+        if (data == null) {
+            statement.setNull(index, Types.BLOB);
+        } else {
+            statement.setBytes(index, data);
+        }
+    }
+
+    private void createTables() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS download_request ("
+                    + "id VARCHAR(2048) PRIMARY KEY,"
+                    + " sequence_number BIGINT NOT NULL,"
+                    + " url VARCHAR(4096) NOT NULL,"
+                    + " priority INT NOT NULL,"
+                    + " status INT,"
+                    + " request BLOB NOT NULL,"
+                    + " download_info BLOB,"
+                    + " download_status BLOB)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS download_request_status ON download_request (status)");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS download_request_sequence ON download_request (sequence_number)");
+            statement.executeUpdate("CREATE TABLE IF NOT EXISTS download_chunk ("
+                    + "request_id VARCHAR(2048) NOT NULL,"
+                    + " file VARCHAR(4096) NOT NULL,"
+                    + " start_position BIGINT NOT NULL,"
+                    + " end_position BIGINT NOT NULL,"
+                    + " status INT,"
+                    + " downloaded_bytes BIGINT,"
+                    + " chunk_status BLOB,"
+                    + " PRIMARY KEY (request_id, file, start_position))");
+            statement.executeUpdate("CREATE INDEX IF NOT EXISTS download_chunk_status ON download_chunk (status)");
+            connection.commit();
+        } finally {
+            statement.close();
+        }
+    }
+
+    private long querySequenceNumber() throws SQLException {
+        Statement statement = connection.createStatement();
+        try {
+            ResultSet resultSet = statement.executeQuery("SELECT MAX(sequence_number) FROM download_request");
+            return resultSet.next() ? resultSet.getLong(1) : 0;
+        } finally {
+            statement.close();
+        }
+    }
+
+    @Override
+    public List<DownloadRecord> getDownloadRecords() {
+        synchronized (this) {
+            try {
+                PreparedStatement statement = connection.prepareStatement(SELECT_RECORDS
+                        + " ORDER BY r.sequence_number, c.start_position");
+                try {
+                    return readRecords(statement);
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Query the records whose download has the given {@link DownloadStatus} status, without loading the others.
+     * Records which have never been started have no status and are not matched.
+     */
+    public List<DownloadRecord> getDownloadRecords(int status) {
+        synchronized (this) {
+            try {
+                PreparedStatement statement = connection.prepareStatement(SELECT_RECORDS
+                        + " WHERE r.status = ? ORDER BY r.sequence_number, c.start_position");
+                try {
+                    statement.setInt(1, status);
+                    return readRecords(statement);
+                } finally {
+                    statement.close();
+                }
+            } catch (SQLException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private List<DownloadRecord> readRecords(PreparedStatement statement) throws SQLException {
+        Map<String, DownloadRecord> records = new LinkedHashMap<>();
+        ResultSet resultSet = statement.executeQuery();
+        try {
+            while (resultSet.next()) {
+                String id = resultSet.getString(1);
+                DownloadRecord downloadRecord = records.get(id);
+                if (downloadRecord == null) {
+                    downloadRecord = new DownloadRecord(
+                            (Request) fromBytes(resultSet.getBytes(2)),
+                            (DownloadInfo) fromBytes(resultSet.getBytes(3)),
+                            (DownloadStatus) fromBytes(resultSet.getBytes(4)),
+                            null);
+                    records.put(id, downloadRecord);
+                }
+                String file = resultSet.getString(5);
+                if (file != null) {
+                    if (downloadRecord.getChunkRecords() == null) {
+                        downloadRecord.setChunkRecords(new ArrayList<DownloadRecord.ChunkRecord>());
+                    }
+                    Chunk chunk = new Chunk.Builder()
+                            .file(file)
+                            .start(resultSet.getLong(6))
+                            .end(resultSet.getLong(7))
+                            .build();
+                    downloadRecord.getChunkRecords().add(new DownloadRecord.ChunkRecord(chunk,
+                            (ChunkDownloadStatus) fromBytes(resultSet.getBytes(8))));
+                }
+            }
+        } finally {
+            resultSet.close();
+        }
+        return new ArrayList<>(records.values());
+    }
+
+    @Override
+    public void deleteRequest(Request request) {
+        synchronized (this) {
+            try {
+                PreparedStatement deleteChunks = connection.prepareStatement("DELETE FROM download_chunk WHERE request_id = ?");
+                PreparedStatement deleteRequest = connection.prepareStatement("DELETE FROM download_request WHERE id = ?");
+                try {
+                    deleteChunks.setString(1, request.id());
+                    deleteChunks.executeUpdate();
+                    deleteRequest.setString(1, request.id());
+                    deleteRequest.executeUpdate();
+                    connection.commit();
+                } finally {
+                    deleteChunks.close();
+                    deleteRequest.close();
+                }
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void saveRequest(Request request) {
+        synchronized (this) {
+            try {
+                insertRequest(request, null, null);
+                connection.commit();
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Insert the request unless it exists already.
+     */
+    private boolean insertRequest(Request request, DownloadInfo downloadInfo, DownloadStatus downloadStatus) throws SQLException {
+        PreparedStatement select = connection.prepareStatement("SELECT 1 FROM download_request WHERE id = ?");
+        try {
+            select.setString(1, request.id());
+            ResultSet resultSet = select.executeQuery();
+            try {
+                if (resultSet.next()) {
+                    return false;
+                }
+            } finally {
+                resultSet.close();
+            }
+        } finally {
+            select.close();
+        }
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO download_request"
+                + " (id, sequence_number, url, priority, status, request, download_info, download_status)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?, ?)");
+        try {
+            insert.setString(1, request.id());
+            insert.setLong(2, ++sequenceNumber);
+            insert.setString(3, request.url());
+            insert.setInt(4, request.priority());
+            if (downloadStatus == null) {
+                insert.setNull(5, Types.INTEGER);
+            } else {
+                insert.setInt(5, downloadStatus.getStatus());
+            }
+            setBytes(insert, 6, toBytes(request));
+            setBytes(insert, 7, toBytes(downloadInfo));
+            setBytes(insert, 8, toBytes(downloadStatus));
+            insert.executeUpdate();
+            return true;
+        } finally {
+            insert.close();
+        }
+    }
+
+    @Override
+    public void saveDownloadInfo(Request request, DownloadInfo downloadInfo, List<Chunk> chunks) {
+        synchronized (this) {
+            try {
+                PreparedStatement update = connection.prepareStatement("UPDATE download_request SET download_info = ? WHERE id = ?");
+                PreparedStatement delete = connection.prepareStatement("DELETE FROM download_chunk WHERE request_id = ?");
+                try {
+                    setBytes(update, 1, toBytes(downloadInfo));
+                    update.setString(2, request.id());
+                    if (update.executeUpdate() > 0) {
+                        delete.setString(1, request.id());
+                        delete.executeUpdate();
+                        insertChunks(request.id(), chunks, null);
+                    }
+                    connection.commit();
+                } finally {
+                    update.close();
+                    delete.close();
+                }
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    private void insertChunks(String id, List<Chunk> chunks, List<ChunkDownloadStatus> chunkDownloadStatuses) throws SQLException {
+        PreparedStatement insert = connection.prepareStatement("INSERT INTO download_chunk"
+                + " (request_id, file, start_position, end_position, status, downloaded_bytes, chunk_status)"
+                + " VALUES (?, ?, ?, ?, ?, ?, ?)");
+        try {
+            for (int i = 0; i < chunks.size(); i++) {
+                Chunk chunk = chunks.get(i);
+                ChunkDownloadStatus chunkDownloadStatus = chunkDownloadStatuses == null ? null : chunkDownloadStatuses.get(i);
+                insert.setString(1, id);
+                insert.setString(2, chunk.file());
+                insert.setLong(3, chunk.start());
+                insert.setLong(4, chunk.end());
+                if (chunkDownloadStatus == null) {
+                    insert.setNull(5, Types.INTEGER);
+                    insert.setNull(6, Types.BIGINT);
+                } else {
+                    insert.setInt(5, chunkDownloadStatus.getStatus());
+                    insert.setLong(6, chunkDownloadStatus.getDownloadedBytes());
+                }
+                setBytes(insert, 7, toBytes(chunkDownloadStatus));
+                insert.addBatch();
+            }
+            insert.executeBatch();
+        } finally {
+            insert.close();
+        }
+    }
+
+    @Override
+    public void saveChunks(Request request, List<Chunk> chunks) {
+        synchronized (this) {
+            try {
+                PreparedStatement update = connection.prepareStatement("UPDATE download_chunk SET end_position = ?"
+                        + " WHERE request_id = ? AND file = ? AND start_position = ?");
+                try {
+                    List<Chunk> added = new ArrayList<>();
+                    for (Chunk chunk : chunks) {
+                        update.setLong(1, chunk.end());
+                        update.setString(2, request.id());
+                        update.setString(3, chunk.file());
+                        update.setLong(4, chunk.start());
+                        if (update.executeUpdate() == 0) {
+                            added.add(chunk);
+                        }
+                    }
+                    if (!added.isEmpty()) {
+                        insertChunks(request.id(), added, null);
+                    }
+                    connection.commit();
+                } finally {
+                    update.close();
+                }
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void saveDownloadStatus(Request request, DownloadStatus downloadStatus) {
+        synchronized (this) {
+            try {
+                PreparedStatement update = connection.prepareStatement("UPDATE download_request"
+                        + " SET status = ?, download_status = ? WHERE id = ?");
+                try {
+                    update.setInt(1, downloadStatus.getStatus());
+                    setBytes(update, 2, toBytes(downloadStatus));
+                    update.setString(3, request.id());
+                    update.executeUpdate();
+                    connection.commit();
+                } finally {
+                    update.close();
+                }
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void saveChunkDownloadStatus(Request request, Chunk chunk, ChunkDownloadStatus chunkDownloadStatus) {
+        synchronized (this) {
+            try {
+                PreparedStatement update = connection.prepareStatement("UPDATE download_chunk"
+                        + " SET status = ?, downloaded_bytes = ?, chunk_status = ?"
+                        + " WHERE request_id = ? AND file = ? AND start_position = ?");
+                try {
+                    update.setInt(1, chunkDownloadStatus.getStatus());
+                    update.setLong(2, chunkDownloadStatus.getDownloadedBytes());
+                    setBytes(update, 3, toBytes(chunkDownloadStatus));
+                    update.setString(4, request.id());
+                    update.setString(5, chunk.file());
+                    update.setLong(6, chunk.start());
+                    update.executeUpdate();
+                    connection.commit();
+                } finally {
+                    update.close();
+                }
+            } catch (SQLException e) {
+                rollback();
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    /**
+     * Import the records of a download.data written by {@link SerializablePersistenceAdapter},
+     * records whose request exists already are skipped.
+     *
+     * @return how many records have been imported
+     */
+    @SuppressWarnings("unchecked")
+    public int importData(File dataFile) throws IOException {
+        if (!dataFile.exists() || dataFile.length() == 0) {
+            return 0;
+        }
+        List<DownloadRecord> downloadRecords;
+        ObjectInputStream in = new ObjectInputStream(new BufferedInputStream(new FileInputStream(dataFile)));
+        try {
+            downloadRecords = (List<DownloadRecord>) in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+        synchronized (this) {
+            try {
+                int count = 0;
+                for (DownloadRecord downloadRecord : downloadRecords) {
+                    if (insertRequest(downloadRecord.getRequest(), downloadRecord.getDownloadInfo(), downloadRecord.getDownloadStatus())) {
+                        List<DownloadRecord.ChunkRecord> chunkRecords = downloadRecord.getChunkRecords();
+                        if (chunkRecords != null && !chunkRecords.isEmpty()) {
+                            List<Chunk> chunks = new ArrayList<>(chunkRecords.size());
+                            List<ChunkDownloadStatus> chunkDownloadStatuses = new ArrayList<>(chunkRecords.size());
+                            for (DownloadRecord.ChunkRecord chunkRecord : chunkRecords) {
+                                chunks.add(chunkRecord.getChunk());
+                                chunkDownloadStatuses.add(chunkRecord.getChunkDownloadStatus());
+                            }
+                            insertChunks(downloadRecord.getRequest().id(), chunks, chunkDownloadStatuses);
+                        }
+                        count++;
+                    }
+                }
+                connection.commit();
+                return count;
+            } catch (SQLException e) {
+                rollback();
+                throw new IOException(e);
+            }
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        synchronized (this) {
+            try {
+                connection.close();
+            } catch (SQLException e) {
+                throw new IOException(e);
+            }
+        }
+    }
+
+    private void rollback() {
+        try {
+            connection.rollback();
+        } catch (SQLException e) {
+            e.printStackTrace();
+        }
+    }
+}
@@ -0,0 +1,636 @@
+package com.lcjian.lib.download;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.Serializable;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import java.util.zip.CRC32;
+
+/**
+ * A {@link PersistenceAdapter} that keeps the records in memory and appends every change as a small binary
+ * record to a journal, so an update costs the same no matter how many downloads there are. The journal is
+ * synced to disk in groups and compacted into a snapshot in the background, on startup the state is rebuilt
+ * by replaying the snapshot plus the journal. An existing download.data of {@link SerializablePersistenceAdapter}
+ * is imported when there is no snapshot yet.
+ */
+public class JournalPersistenceAdapter implements PersistenceAdapter, Closeable {
+
+    private static final byte SAVE_REQUEST = 1;
+    private static final byte DELETE_REQUEST = 2;
+    private static final byte SAVE_DOWNLOAD_INFO = 3;
+    private static final byte SAVE_CHUNKS = 4;
+    private static final byte SAVE_DOWNLOAD_STATUS = 5;
+    /**
+     * A chunk status record without a version, as written before the checksum fields were added.
+     */
+    private static final byte SAVE_CHUNK_DOWNLOAD_STATUS_UNVERSIONED = 6;
+    private static final byte SAVE_CHUNK_DOWNLOAD_STATUS = 7;
+    /**
+     * The version a chunk status record starts with. A version only appends fields to the one before, the fields
+     * a reader does not know are left at the end of the record.
+     */
+    private static final byte CHUNK_DOWNLOAD_STATUS_VERSION = 1;
+
+    private final File snapshotFile;
+    private final File journalFile;
+    private final File oldJournalFile;
+    private final File legacyDataFile;
+    private final long compactBytes;
+    private final Map<String, DownloadRecord> records;
+    private final ByteArrayOutputStream recordBuffer;
+    private final DataOutputStream recordOutput;
+    private final CRC32 crc32;
+    private final ScheduledExecutorService scheduledExecutorService;
+    private final Logger logger;
+
+    private FileOutputStream journalStream;
+    private DataOutputStream journal;
+    private long journalBytes;
+    private boolean dirty;
+    private boolean compacting;
+
+    public JournalPersistenceAdapter(String destination) {
+        this(destination, 200, 4 * 1024 * 1024);
+    }
+
+    /**
+     * @param syncInterval milliseconds between two syncs of the journal to disk, a crash loses at most this much
+     * @param compactBytes the journal size which triggers a compaction into the snapshot
+     */
+    public JournalPersistenceAdapter(String destination, long syncInterval, long compactBytes) {
+        File folder = new File(destination);
+        if (!folder.exists()) {
+            if (!folder.mkdirs()) {
+                throw new RuntimeException("Can not create download data file folder.");
+            }
+        }
+        this.snapshotFile = new File(folder, "download.snapshot");
+        this.journalFile = new File(folder, "download.journal");
+        this.oldJournalFile = new File(folder, "download.journal.old");
+        this.legacyDataFile = new File(folder, "download.data");
+        this.compactBytes = compactBytes;
+        this.records = new LinkedHashMap<>();
+        this.recordBuffer = new ByteArrayOutputStream(256);
+        this.recordOutput = new DataOutputStream(recordBuffer);
+        this.crc32 = new CRC32();
+        this.logger = Logger.getLogger("JournalPersistenceAdapter");
+
+        try {
+            recover();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        this.scheduledExecutorService = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "JournalPersistenceAdapter");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.scheduledExecutorService.scheduleWithFixedDelay(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    sync();
+                    if (shouldCompact()) {
+                        compact();
+                    }
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Can not sync or compact the journal.", e);
+                }
+            }
+        }, syncInterval, syncInterval, TimeUnit.MILLISECONDS);
+    }
+
+    private static void writeObject(DataOutputStream out, Serializable obj) throws IOException {
+        if (obj == null) {
+            out.writeInt(-1);
+        } else {
+            byte[] data = Utils.serialize(obj);
+            out.writeInt(data.length);
+            out.write(data);
+        }
+    }
+
+    private static Object readObject(DataInputStream in) throws IOException {
+        int length = in.readInt();
+        if (length == -1) {
+            return null;
+        }
+        byte[] data = new byte[length];
+        in.readFully(data);
+        return Utils.deserialize(data);
+    }
+
+    private static void writeChunk(DataOutputStream out, Chunk chunk) throws IOException {
+        out.writeUTF(chunk.file());
+        out.writeLong(chunk.start());
+        out.writeLong(chunk.end());
+    }
+
+    private static Chunk readChunk(DataInputStream in) throws IOException {
+        return new Chunk.Builder().file(in.readUTF()).start(in.readLong()).end(in.readLong()).build();
+    }
+
+    private static void writeDownloadStatus(DataOutputStream out, DownloadStatus downloadStatus) throws IOException {
+        out.writeInt(downloadStatus.getStatus());
+        writeObject(out, downloadStatus.getThrowable());
+    }
+
+    private static DownloadStatus readDownloadStatus(DataInputStream in) throws IOException {
+        int status = in.readInt();
+        Throwable throwable = (Throwable) readObject(in);
+        if (status == DownloadStatus.ERROR) {
+            return new DownloadStatus(throwable);
+        } else if (status == DownloadStatus.MERGE_ERROR || status == DownloadStatus.VERIFY_ERROR) {
+            return new DownloadStatus(status, throwable);
+        } else {
+            return new DownloadStatus(status);
+        }
+    }
+
+    private static void writeChunkDownloadStatus(DataOutputStream out, ChunkDownloadStatus chunkDownloadStatus) throws IOException {
+        out.writeByte(CHUNK_DOWNLOAD_STATUS_VERSION);
+        out.writeInt(chunkDownloadStatus.getStatus());
+        out.writeLong(chunkDownloadStatus.getDownloadedBytes());
+        writeObject(out, chunkDownloadStatus.getThrowable());
+        // version 1
+        out.writeInt(chunkDownloadStatus.getChecksum());
+        out.writeLong(chunkDownloadStatus.getChecksumBytes());
+        out.writeLong(chunkDownloadStatus.getSyncedBytes());
+    }
+
+    /**
+     * @param version the version of the record, 0 for a record written without one.
+     */
+    private static ChunkDownloadStatus readChunkDownloadStatus(DataInputStream in, int version) throws IOException {
+        int status = in.readInt();
+        long downloadedBytes = in.readLong();
+        Throwable throwable = (Throwable) readObject(in);
+        ChunkDownloadStatus chunkDownloadStatus = status == ChunkDownloadStatus.ERROR
+                ? new ChunkDownloadStatus(throwable)
+                : new ChunkDownloadStatus(status);
+        chunkDownloadStatus.setDownloadedBytes(downloadedBytes);
+        if (version >= 1) {
+            chunkDownloadStatus.setChecksum(in.readInt(), in.readLong());
+            chunkDownloadStatus.setSyncedBytes(in.readLong());
+        }
+        return chunkDownloadStatus;
+    }
+
+    private static DownloadRecord.ChunkRecord findChunkRecord(DownloadRecord downloadRecord, String file, long start) {
+        if (downloadRecord.getChunkRecords() != null) {
+            for (DownloadRecord.ChunkRecord chunkRecord : downloadRecord.getChunkRecords()) {
+                if (Utils.equals(file, chunkRecord.getChunk().file()) && start == chunkRecord.getChunk().start()) {
+                    return chunkRecord;
+                }
+            }
+        }
+        return null;
+    }
+
+    @Override
+    public List<DownloadRecord> getDownloadRecords() {
+        synchronized (this) {
+            return copyRecords();
+        }
+    }
+
+    /**
+     * Copies of the records that later changes do not reach, the values they hold are not changed once saved.
+     */
+    private ArrayList<DownloadRecord> copyRecords() {
+        ArrayList<DownloadRecord> result = new ArrayList<>(records.size());
+        for (DownloadRecord downloadRecord : records.values()) {
+            List<DownloadRecord.ChunkRecord> chunkRecords = null;
+            if (downloadRecord.getChunkRecords() != null) {
+                chunkRecords = new ArrayList<>(downloadRecord.getChunkRecords().size());
+                for (DownloadRecord.ChunkRecord chunkRecord : downloadRecord.getChunkRecords()) {
+                    chunkRecords.add(new DownloadRecord.ChunkRecord(chunkRecord.getChunk(), chunkRecord.getChunkDownloadStatus()));
+                }
+            }
+            result.add(new DownloadRecord(downloadRecord.getRequest(), downloadRecord.getDownloadInfo(),
+                    downloadRecord.getDownloadStatus(), chunkRecords));
+        }
+        return result;
+    }
+
+    @Override
+    public void deleteRequest(Request request) {
+        synchronized (this) {
+            if (records.remove(request.id()) != null) {
+                try {
+                    beginRecord(DELETE_REQUEST, request.id());
+                    endRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveRequest(Request request) {
+        synchronized (this) {
+            if (records.containsKey(request.id())) {
+                return;
+            }
+            records.put(request.id(), new DownloadRecord(request, null, null, null));
+            try {
+                beginRecord(SAVE_REQUEST, request.id());
+                writeObject(recordOutput, request);
+                endRecord();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+    }
+
+    @Override
+    public void saveDownloadInfo(Request request, DownloadInfo downloadInfo, List<Chunk> chunks) {
+        synchronized (this) {
+            if (applyDownloadInfo(request.id(), downloadInfo, chunks)) {
+                try {
+                    beginRecord(SAVE_DOWNLOAD_INFO, request.id());
+                    writeObject(recordOutput, downloadInfo);
+                    recordOutput.writeInt(chunks.size());
+                    for (Chunk chunk : chunks) {
+                        writeChunk(recordOutput, chunk);
+                    }
+                    endRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveChunks(Request request, List<Chunk> chunks) {
+        synchronized (this) {
+            if (applyChunks(request.id(), chunks)) {
+                try {
+                    beginRecord(SAVE_CHUNKS, request.id());
+                    recordOutput.writeInt(chunks.size());
+                    for (Chunk chunk : chunks) {
+                        writeChunk(recordOutput, chunk);
+                    }
+                    endRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveDownloadStatus(Request request, DownloadStatus downloadStatus) {
+        synchronized (this) {
+            DownloadRecord downloadRecord = records.get(request.id());
+            if (downloadRecord != null) {
+                downloadRecord.setDownloadStatus(downloadStatus);
+                try {
+                    beginRecord(SAVE_DOWNLOAD_STATUS, request.id());
+                    writeDownloadStatus(recordOutput, downloadStatus);
+                    endRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    @Override
+    public void saveChunkDownloadStatus(Request request, Chunk chunk, ChunkDownloadStatus chunkDownloadStatus) {
+        synchronized (this) {
+            if (applyChunkDownloadStatus(request.id(), chunk.file(), chunk.start(), chunkDownloadStatus)) {
+                try {
+                    beginRecord(SAVE_CHUNK_DOWNLOAD_STATUS, request.id());
+                    recordOutput.writeUTF(chunk.file());
+                    recordOutput.writeLong(chunk.start());
+                    writeChunkDownloadStatus(recordOutput, chunkDownloadStatus);
+                    endRecord();
+                } catch (IOException e) {
+                    throw new RuntimeException(e);
+                }
+            }
+        }
+    }
+
+    /**
+     * Sync the journal and stop the background sync and compaction.
+     */
+    @Override
+    public void close() throws IOException {
+        scheduledExecutorService.shutdown();
+        synchronized (this) {
+            journal.flush();
+            journalStream.getChannel().force(false);
+            dirty = false;
+            journal.close();
+        }
+    }
+
+    private boolean applyDownloadInfo(String id, DownloadInfo downloadInfo, List<Chunk> chunks) {
+        DownloadRecord downloadRecord = records.get(id);
+        if (downloadRecord == null) {
+            return false;
+        }
+        downloadRecord.setDownloadInfo(downloadInfo);
+        List<DownloadRecord.ChunkRecord> chunkRecords = new ArrayList<>();
+        for (Chunk chunk : chunks) {
+            chunkRecords.add(new DownloadRecord.ChunkRecord(chunk, null));
+        }
+        downloadRecord.setChunkRecords(chunkRecords);
+        return true;
+    }
+
+    private boolean applyChunks(String id, List<Chunk> chunks) {
+        DownloadRecord downloadRecord = records.get(id);
+        if (downloadRecord == null) {
+            return false;
+        }
+        if (downloadRecord.getChunkRecords() == null) {
+            downloadRecord.setChunkRecords(new ArrayList<DownloadRecord.ChunkRecord>());
+        }
+        for (Chunk chunk : chunks) {
+            DownloadRecord.ChunkRecord chunkRecord = findChunkRecord(downloadRecord, chunk.file(), chunk.start());
+            if (chunkRecord == null) {
+                downloadRecord.getChunkRecords().add(new DownloadRecord.ChunkRecord(chunk, null));
+            } else {
+                chunkRecord.setChunk(chunk);
+            }
+        }
+        return true;
+    }
+
+    private boolean applyChunkDownloadStatus(String id, String file, long start, ChunkDownloadStatus chunkDownloadStatus) {
+        DownloadRecord downloadRecord = records.get(id);
+        if (downloadRecord == null) {
+            return false;
+        }
+        DownloadRecord.ChunkRecord chunkRecord = findChunkRecord(downloadRecord, file, start);
+        if (chunkRecord == null) {
+            return false;
+        }
+        chunkRecord.setChunkDownloadStatus(chunkDownloadStatus);
+        return true;
+    }
+
+    private void beginRecord(byte type, String id) throws IOException {
+        recordBuffer.reset();
+        recordOutput.writeByte(type);
+        recordOutput.writeUTF(id);
+    }
+
+    /**
+     * Append the record as [length][payload][crc32 of payload], a torn record at the tail is dropped on replay.
+     */
+    private void endRecord() throws IOException {
+        recordOutput.flush();
+        byte[] payload = recordBuffer.toByteArray();
+        crc32.reset();
+        crc32.update(payload, 0, payload.length);
+        journal.writeInt(payload.length);
+        journal.write(payload);
+        journal.writeInt((int) crc32.getValue());
+        // hand it to the OS now so it survives a process crash, the disk sync happens in groups
+        journal.flush();
+        journalBytes += payload.length + 8;
+        dirty = true;
+    }
+
+    /**
+     * Flush the journal under the lock and wait for the disk outside of it, the records saved meanwhile only wait
+     * for the flush.
+     */
+    private void sync() throws IOException {
+        FileChannel channel;
+        synchronized (this) {
+            if (!dirty) {
+                return;
+            }
+            journal.flush();
+            channel = journalStream.getChannel();
+            dirty = false;
+        }
+        try {
+            channel.force(false);
+        } catch (ClosedChannelException e) {
+            // closed meanwhile, close() forces the journal itself
+        } catch (IOException e) {
+            synchronized (this) {
+                dirty = true;
+            }
+            throw e;
+        }
+    }
+
+    private synchronized boolean shouldCompact() {
+        return !compacting && journalBytes > compactBytes;
+    }
+
+    /**
+     * Copy the records under the lock and start a new journal, then serialize and write the snapshot outside of
+     * the lock. The previous journal is kept until the snapshot is in place, replaying it again is harmless
+     * because every record sets values instead of changing them.
+     */
+    private void compact() throws IOException {
+        try {
+            List<DownloadRecord> snapshot;
+            synchronized (this) {
+                compacting = true;
+                sync();
+                snapshot = copyRecords();
+                // with an old journal left by a snapshot that was not written, the journal goes on,
+                // this snapshot covers both and the next compaction starts a new journal
+                if (!oldJournalFile.exists()) {
+                    journal.close();
+                    boolean renamed = journalFile.renameTo(oldJournalFile);
+                    openJournal();
+                    if (!renamed) {
+                        throw new IOException("Can not rename " + journalFile.getAbsolutePath());
+                    }
+                }
+            }
+            writeSnapshot(Utils.serialize(snapshot));
+            if (!oldJournalFile.delete()) {
+                throw new IOException("Can not delete " + oldJournalFile.getAbsolutePath());
+            }
+        } finally {
+            synchronized (this) {
+                compacting = false;
+            }
+        }
+    }
+
+    private void writeSnapshot(byte[] snapshot) throws IOException {
+        File tempFile = new File(snapshotFile.getAbsolutePath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(tempFile);
+        try {
+            out.write(snapshot);
+            out.getChannel().force(false);
+        } finally {
+            out.close();
+        }
+        // replaced in one step, deleting the old snapshot first loses it with everything it holds on a crash between
+        Files.move(tempFile.toPath(), snapshotFile.toPath(), StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private void openJournal() throws IOException {
+        journalStream = new FileOutputStream(journalFile, true);
+        journal = new DataOutputStream(new BufferedOutputStream(journalStream, 8192));
+        journalBytes = journalFile.length();
+    }
+
+    @SuppressWarnings("unchecked")
+    private void recover() throws IOException {
+        File base = snapshotFile.exists() ? snapshotFile : (legacyDataFile.exists() ? legacyDataFile : null);
+        if (base != null && base.length() > 0) {
+            List<DownloadRecord> downloadRecords;
+            FileInputStream in = new FileInputStream(base);
+            try {
+                byte[] data = new byte[(int) base.length()];
+                new DataInputStream(in).readFully(data);
+                downloadRecords = (List<DownloadRecord>) Utils.deserialize(data);
+            } finally {
+                in.close();
+            }
+            for (DownloadRecord downloadRecord : downloadRecords) {
+                records.put(downloadRecord.getRequest().id(), downloadRecord);
+            }
+        }
+        boolean replayed = replay(oldJournalFile);
+        replayed |= replay(journalFile);
+
+        // start from a clean snapshot and an empty journal, a snapshot that is up to date is not written again
+        if (replayed || base != snapshotFile) {
+            writeSnapshot(Utils.serialize(new ArrayList<>(records.values())));
+        }
+        if (oldJournalFile.exists() && !oldJournalFile.delete()) {
+            throw new IOException("Can not delete " + oldJournalFile.getAbsolutePath());
+        }
+        if (journalFile.exists() && !journalFile.delete()) {
+            throw new IOException("Can not delete " + journalFile.getAbsolutePath());
+        }
+        openJournal();
+    }
+
+    /**
+     * @return whether there was anything to replay.
+     */
+    private boolean replay(File file) throws IOException {
+        if (!file.exists() || file.length() == 0) {
+            return false;
+        }
+        DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+        try {
+            while (true) {
+                byte[] payload;
+                try {
+                    int length = in.readInt();
+                    if (length < 0 || length > file.length()) {
+                        break;
+                    }
+                    payload = new byte[length];
+                    in.readFully(payload);
+                    crc32.reset();
+                    crc32.update(payload, 0, payload.length);
+                    if (in.readInt() != (int) crc32.getValue()) {
+                        break;
+                    }
+                } catch (EOFException e) {
+                    // a torn record written while crashing
+                    break;
+                }
+                apply(new DataInputStream(new ByteArrayInputStream(payload)));
+            }
+        } finally {
+            in.close();
+        }
+        return true;
+    }
+
+    private void apply(DataInputStream in) throws IOException {
+        byte type = in.readByte();
+        String id = in.readUTF();
+        switch (type) {
+            case SAVE_REQUEST: {
+                Request request = (Request) readObject(in);
+                if (!records.containsKey(id)) {
+                    records.put(id, new DownloadRecord(request, null, null, null));
+                }
+                break;
+            }
+            case DELETE_REQUEST:
+                records.remove(id);
+                break;
+            case SAVE_DOWNLOAD_INFO: {
+                DownloadInfo downloadInfo = (DownloadInfo) readObject(in);
+                int count = in.readInt();
+                List<Chunk> chunks = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    chunks.add(readChunk(in));
+                }
+                applyDownloadInfo(id, downloadInfo, chunks);
+                break;
+            }
+            case SAVE_CHUNKS: {
+                int count = in.readInt();
+                List<Chunk> chunks = new ArrayList<>(count);
+                for (int i = 0; i < count; i++) {
+                    chunks.add(readChunk(in));
+                }
+                applyChunks(id, chunks);
+                break;
+            }
+            case SAVE_DOWNLOAD_STATUS: {
+                DownloadRecord downloadRecord = records.get(id);
+                DownloadStatus downloadStatus = readDownloadStatus(in);
+                if (downloadRecord != null) {
+                    downloadRecord.setDownloadStatus(downloadStatus);
+                }
+                break;
+            }
+            case SAVE_CHUNK_DOWNLOAD_STATUS_UNVERSIONED: {
+                String file = in.readUTF();
+                long start = in.readLong();
+                applyChunkDownloadStatus(id, file, start, readChunkDownloadStatus(in, 0));
+                break;
+            }
+            case SAVE_CHUNK_DOWNLOAD_STATUS: {
+                String file = in.readUTF();
+                long start = in.readLong();
+                applyChunkDownloadStatus(id, file, start, readChunkDownloadStatus(in, in.readByte()));
+                break;
+            }
+            default:
+                throw new IOException("Unknown journal record type " + type);
+        }
+    }
+}
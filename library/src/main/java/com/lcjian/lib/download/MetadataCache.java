@@ -0,0 +1,98 @@
+package com.lcjian.lib.download;
+
+import java.net.URI;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * The init info and range info probed for a url, kept for a while so that downloads of the same url and resumes
+ * within that time do not probe the server again.
+ */
+final class MetadataCache {
+
+    private static final int MAX_ENTRIES = 256;
+
+    private final long ttlNanos;
+    private final Map<String, Entry> entries = new LinkedHashMap<String, Entry>(16, 0.75f, true) {
+
+        private static final long serialVersionUID = 1L;
+
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, Entry> eldest) {
+            return size() > MAX_ENTRIES;
+        }
+    };
+
+    /**
+     * @param ttlNanos 0 to keep nothing.
+     */
+    MetadataCache(long ttlNanos) {
+        this.ttlNanos = ttlNanos;
+    }
+
+    /**
+     * Scheme and host are case insensitive, the default port and the fragment do not matter.
+     */
+    static String key(String url) {
+        try {
+            URI uri = new URI(url).normalize();
+            String scheme = uri.getScheme() == null ? null : uri.getScheme().toLowerCase(Locale.US);
+            String host = uri.getHost() == null ? null : uri.getHost().toLowerCase(Locale.US);
+            int port = uri.getPort();
+            if (("http".equals(scheme) && port == 80) || ("https".equals(scheme) && port == 443)) {
+                port = -1;
+            }
+            if (host == null) {
+                return url;
+            }
+            return new URI(scheme, uri.getRawUserInfo(), host, port, uri.getRawPath(), null, null)
+                    + (uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery());
+        } catch (Exception e) {
+            return url;
+        }
+    }
+
+    /**
+     * @return null if the url was not probed within the ttl.
+     */
+    synchronized DownloadInfo get(String url) {
+        if (ttlNanos <= 0) {
+            return null;
+        }
+        String key = key(url);
+        Entry entry = entries.get(key);
+        if (entry == null) {
+            return null;
+        }
+        if (System.nanoTime() - entry.time >= ttlNanos) {
+            entries.remove(key);
+            return null;
+        }
+        return entry.downloadInfo;
+    }
+
+    synchronized void put(String url, DownloadInfo downloadInfo) {
+        if (ttlNanos > 0) {
+            entries.put(key(url), new Entry(new DownloadInfo.Builder()
+                    .initInfo(downloadInfo.initInfo())
+                    .rangeInfo(downloadInfo.rangeInfo())
+                    .build(), System.nanoTime()));
+        }
+    }
+
+    synchronized void invalidate(String url) {
+        entries.remove(key(url));
+    }
+
+    private static final class Entry {
+
+        private final DownloadInfo downloadInfo;
+        private final long time;
+
+        private Entry(DownloadInfo downloadInfo, long time) {
+            this.downloadInfo = downloadInfo;
+            this.time = time;
+        }
+    }
+}
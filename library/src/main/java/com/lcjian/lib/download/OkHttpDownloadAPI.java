@@ -0,0 +1,334 @@
+package com.lcjian.lib.download;
+
+import com.lcjian.lib.download.exception.ConnectException;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.HttpURLConnection;
+import java.nio.channels.ReadableByteChannel;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import okhttp3.ConnectionPool;
+import okhttp3.OkHttpClient;
+import okhttp3.Protocol;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * A {@link DownloadAPI} on OkHttp, okhttp 3.x has to be on the classpath.
+ * <p>
+ * All requests go through one {@link OkHttpClient}, so probes, chunk ranges and resumes reuse the pooled connections
+ * instead of paying the TCP and TLS setup every time. Against a https server that speaks HTTP/2 all the chunk ranges
+ * of a download are multiplexed over a single connection.
+ */
+public class OkHttpDownloadAPI implements DownloadAPI {
+
+    private final OkHttpClient client;
+
+    public OkHttpDownloadAPI() {
+        this(new Builder());
+    }
+
+    /**
+     * Share the connection pool, dispatcher and interceptors of an existing client.
+     */
+    public OkHttpDownloadAPI(OkHttpClient client) {
+        this.client = client;
+    }
+
+    private OkHttpDownloadAPI(Builder builder) {
+        this.client = (builder.client == null ? new OkHttpClient.Builder() : builder.client.newBuilder())
+                .connectTimeout(builder.connectTimeout, TimeUnit.MILLISECONDS)
+                .readTimeout(builder.readTimeout, TimeUnit.MILLISECONDS)
+                .connectionPool(new ConnectionPool(builder.maxIdleConnections, builder.keepAliveDuration, TimeUnit.MILLISECONDS))
+                .protocols(builder.http2
+                        ? Arrays.asList(Protocol.HTTP_2, Protocol.HTTP_1_1)
+                        : Collections.singletonList(Protocol.HTTP_1_1))
+                .followRedirects(true)
+                .followSslRedirects(true)
+                .build();
+    }
+
+    private Response execute(String url, Map<String, String> headers, String method) throws ConnectException {
+        okhttp3.Request.Builder builder = new okhttp3.Request.Builder().url(url);
+        if ("HEAD".equals(method)) {
+            builder.head();
+        } else {
+            builder.get();
+        }
+        // OkHttp unzips gzip transparently and drops the Content-Length then, ranges only work on the identity encoding
+        builder.header("Accept-Encoding", "identity");
+        if (headers != null) {
+            for (Map.Entry<String, String> entry : headers.entrySet()) {
+                builder.header(entry.getKey(), entry.getValue());
+            }
+        }
+        try {
+            return client.newCall(builder.build()).execute();
+        } catch (IOException | IllegalArgumentException e) {
+            throw new ConnectException(e);
+        }
+    }
+
+    private static ConnectException failed(Response response) {
+        response.close();
+        return new ConnectException("Connect failed, code:" + response.code());
+    }
+
+    protected String fileName(String url, String contentDisposition) {
+        return Utils.fileName(url, contentDisposition);
+    }
+
+    private DownloadInfo.InitInfo initInfo(String url, Response response) {
+        String contentLength = response.header("Content-Length");
+        return new DownloadInfo.InitInfo.Builder()
+                .fileName(fileName(url, response.header("Content-Disposition")))
+                .mimeType(response.header("Content-Type"))
+                .lastModified(response.header("Last-Modified"))
+                .eTag(response.header("ETag"))
+                .contentLength(Utils.isEmpty(contentLength) ? -1 : Long.parseLong(contentLength))
+                .build();
+    }
+
+    private static DownloadInfo.RangeInfo rangeInfo(Response response) {
+        String contentLength = response.header("Content-Length");
+        boolean chunked = "chunked".equals(response.header("Transfer-Encoding"));
+        boolean rangeSupportable = !((Utils.isEmpty(response.header("Content-Range"))
+                && !"bytes".equals(response.header("Accept-Ranges")))
+                || (Utils.isEmpty(contentLength) ? -1 : Long.parseLong(contentLength)) == -1
+                || chunked);
+        return new DownloadInfo.RangeInfo.Builder()
+                .chunked(chunked)
+                .rangeSupportable(rangeSupportable)
+                .build();
+    }
+
+    @Override
+    public DownloadInfo.InitInfo getDownloadInitInfo(String url, Map<String, String> headers) throws ConnectException {
+        Response response = execute(url, headers, "HEAD");
+        try {
+            if (response.isSuccessful()) {
+                return initInfo(url, response);
+            }
+        } finally {
+            response.close();
+        }
+        response = execute(url, headers, "GET");
+        try {
+            if (response.isSuccessful()) {
+                return initInfo(url, response);
+            } else {
+                throw new ConnectException("Connect failed, code:" + response.code());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        headers.put("Range", "bytes=0-");
+        Response response = execute(url, headers, "HEAD");
+        try {
+            if (response.isSuccessful()) {
+                return rangeInfo(response);
+            }
+        } finally {
+            response.close();
+        }
+        response = execute(url, headers, "GET");
+        try {
+            if (response.isSuccessful()) {
+                return rangeInfo(response);
+            } else {
+                throw new ConnectException("Connect failed, code:" + response.code());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public Probe probe(String url, Map<String, String> headers, boolean keepBody) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        headers.put("Range", keepBody ? "bytes=0-" : "bytes=0-0");
+        Response response = execute(url, headers, "GET");
+        boolean kept = false;
+        try {
+            DownloadInfo.InitInfo initInfo;
+            DownloadInfo.RangeInfo rangeInfo;
+            if (response.code() == HttpURLConnection.HTTP_PARTIAL) {
+                long contentLength = Utils.contentRangeLength(response.header("Content-Range"));
+                initInfo = initInfo(url, response).newBuilder().contentLength(contentLength).build();
+                rangeInfo = new DownloadInfo.RangeInfo.Builder()
+                        .chunked(false)
+                        .rangeSupportable(contentLength != -1)
+                        .build();
+            } else if (response.code() == HttpURLConnection.HTTP_OK) {
+                // the range is ignored, so are the ranges of chunks
+                initInfo = initInfo(url, response);
+                rangeInfo = new DownloadInfo.RangeInfo.Builder()
+                        .chunked("chunked".equals(response.header("Transfer-Encoding")))
+                        .rangeSupportable(false)
+                        .build();
+            } else {
+                return null;
+            }
+            ResponseBody body = response.body();
+            kept = keepBody && body != null;
+            return new Probe(new DownloadInfo.Builder().initInfo(initInfo).rangeInfo(rangeInfo).build(),
+                    kept ? body.source() : null);
+        } catch (NumberFormatException e) {
+            throw new ConnectException(e);
+        } finally {
+            if (!kept) {
+                // a single byte is left of a partial response, the connection goes back to the pool
+                response.close();
+            }
+        }
+    }
+
+    @Override
+    public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        headers.put("If-Modified-Since", lastModified);
+        Response response = execute(url, headers, "HEAD");
+        try {
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            } else if (response.code() == HttpURLConnection.HTTP_OK) {
+                return true;
+            } else {
+                throw new ConnectException("Connect failed, code:" + response.code());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public boolean serverFileChanged(String url, Map<String, String> headers, DownloadInfo.InitInfo initInfo) throws ConnectException {
+        Response response = execute(url, HttpURLConnectionDownloadAPI.conditionalHeaders(headers, initInfo), "HEAD");
+        try {
+            if (response.code() == HttpURLConnection.HTTP_NOT_MODIFIED) {
+                return false;
+            } else if (response.code() == HttpURLConnection.HTTP_OK) {
+                return Utils.serverFileChanged(initInfo, response.header("ETag"),
+                        response.header("Last-Modified"), response.header("Content-Length"));
+            } else {
+                throw new ConnectException("Connect failed, code:" + response.code());
+            }
+        } finally {
+            response.close();
+        }
+    }
+
+    @Override
+    public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+        return body(executeRange(url, headers, start, end)).byteStream();
+    }
+
+    @Override
+    public InputStream getInputStream(String url, Map<String, String> headers) throws ConnectException {
+        return body(execute(url, headers, "GET")).byteStream();
+    }
+
+    /**
+     * The source of the body is a channel already, it is read without a stream in between.
+     */
+    @Override
+    public ReadableByteChannel getChannel(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+        return body(executeRange(url, headers, start, end)).source();
+    }
+
+    @Override
+    public ReadableByteChannel getChannel(String url, Map<String, String> headers) throws ConnectException {
+        return body(execute(url, headers, "GET")).source();
+    }
+
+    private Response executeRange(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+        headers = headers == null ? new HashMap<String, String>() : new HashMap<>(headers);
+        headers.put("Range", "bytes=" + start + "-" + end);
+        Response response = execute(url, headers, "GET");
+        if (response.code() == HttpURLConnection.HTTP_OK && headers.containsKey("If-Range")) {
+            response.close();
+            throw Utils.wholeFileSent(url, headers.get("If-Range"), response.header("ETag"), response.header("Last-Modified"));
+        }
+        return response;
+    }
+
+    private static ResponseBody body(Response response) throws ConnectException {
+        ResponseBody body = response.body();
+        if (response.isSuccessful() && body != null) {
+            // closing the stream or the source closes the body and hands the connection back to the pool
+            return body;
+        } else {
+            throw failed(response);
+        }
+    }
+
+    public OkHttpClient getClient() {
+        return client;
+    }
+
+    public static class Builder {
+
+        private OkHttpClient client;
+        private long connectTimeout = 10 * 1000;
+        private long readTimeout = 10 * 1000;
+        private int maxIdleConnections = 8;
+        private long keepAliveDuration = 5 * 60 * 1000;
+        private boolean http2 = true;
+
+        public Builder() {
+        }
+
+        /**
+         * The client to derive from, its dispatcher, interceptors and other settings are kept.
+         */
+        public Builder client(OkHttpClient client) {
+            this.client = client;
+            return this;
+        }
+
+        public Builder connectTimeout(long timeout, TimeUnit unit) {
+            this.connectTimeout = unit.toMillis(timeout);
+            return this;
+        }
+
+        public Builder readTimeout(long timeout, TimeUnit unit) {
+            this.readTimeout = unit.toMillis(timeout);
+            return this;
+        }
+
+        /**
+         * How many idle connections are kept alive and for how long, 8 for 5 minutes by default.
+         * Keep at least as many as the chunk downloads running against HTTP/1.1 servers.
+         */
+        public Builder connectionPool(int maxIdleConnections, long keepAliveDuration, TimeUnit unit) {
+            if (maxIdleConnections < 0) {
+                throw new IllegalArgumentException("The max idle connection count can not be negative.");
+            }
+            this.maxIdleConnections = maxIdleConnections;
+            this.keepAliveDuration = unit.toMillis(keepAliveDuration);
+            return this;
+        }
+
+        /**
+         * Negotiate HTTP/2 with https servers that support it, true by default.
+         */
+        public Builder http2(boolean http2) {
+            this.http2 = http2;
+            return this;
+        }
+
+        public OkHttpDownloadAPI build() {
+            return new OkHttpDownloadAPI(this);
+        }
+    }
+}
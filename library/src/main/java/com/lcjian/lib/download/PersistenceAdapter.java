@@ -22,6 +22,13 @@ public interface PersistenceAdapter {
      */
     void saveDownloadInfo(Request request, DownloadInfo downloadInfo, List<Chunk> chunks);
 
+    /**
+     * Save the chunks when a download's chunk layout changes while downloading. A chunk matching
+     * an existing one by file and start replaces its range, the others are added.
+     * Pay attention to that this method will be called in every {@link Download}'s action thread pool.
+     */
+    void saveChunks(Request request, List<Chunk> chunks);
+
     /**
      * Update the download's status. Pay attention to that this method will be
      * called in every {@link Download}'s action thread pool.
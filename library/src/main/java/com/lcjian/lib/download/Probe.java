@@ -0,0 +1,50 @@
+package com.lcjian.lib.download;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.channels.ReadableByteChannel;
+
+/**
+ * What a single request finds out about a download, see {@link DownloadAPI#probe(String, java.util.Map, boolean)},
+ * with the body of the response if it was kept open.
+ */
+public final class Probe implements Closeable {
+
+    private final DownloadInfo downloadInfo;
+    private ReadableByteChannel body;
+
+    /**
+     * @param downloadInfo the init info and range info.
+     * @param body         the bytes of the file from its first byte on, null if the body was not kept.
+     */
+    public Probe(DownloadInfo downloadInfo, ReadableByteChannel body) {
+        this.downloadInfo = downloadInfo;
+        this.body = body;
+    }
+
+    public DownloadInfo downloadInfo() {
+        return downloadInfo;
+    }
+
+    /**
+     * Hand the body over to whoever reads it, it is not closed by {@link #close()} then.
+     *
+     * @return null if the body was not kept or is taken already.
+     */
+    synchronized ReadableByteChannel takeBody() {
+        ReadableByteChannel temp = body;
+        body = null;
+        return temp;
+    }
+
+    /**
+     * Close the body unless it is taken.
+     */
+    @Override
+    public void close() throws IOException {
+        ReadableByteChannel temp = takeBody();
+        if (temp != null) {
+            temp.close();
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.lcjian.lib.download;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * A token bucket of bytes, refilled at a rate that may be changed at any time.
+ * <p>
+ * The bucket is kept as the time at which it would be full again, so taking tokens is a single compare-and-set
+ * and never blocks other takers. Whoever takes more tokens than the bucket holds waits for them afterwards.
+ */
+public final class RateLimiter {
+
+    /**
+     * How long an idle bucket keeps filling up, which is the burst a download may read at once after idling.
+     */
+    private static final long BURST_NANOS = TimeUnit.MILLISECONDS.toNanos(200);
+
+    private final AtomicLong fullTime = new AtomicLong(System.nanoTime());
+    private volatile long bytesPerSecond;
+
+    /**
+     * @param bytesPerSecond 0 for no limit.
+     */
+    public RateLimiter(long bytesPerSecond) {
+        setRate(bytesPerSecond);
+    }
+
+    public long getRate() {
+        return bytesPerSecond;
+    }
+
+    /**
+     * @param bytesPerSecond 0 for no limit.
+     */
+    public void setRate(long bytesPerSecond) {
+        if (bytesPerSecond < 0) {
+            throw new IllegalArgumentException("The rate can not be negative.");
+        }
+        this.bytesPerSecond = bytesPerSecond;
+    }
+
+    public boolean isLimited() {
+        return bytesPerSecond > 0;
+    }
+
+    /**
+     * Take the tokens at once, they may be used after the returned wait.
+     *
+     * @return nanoseconds to wait before the bytes may be read, 0 if they may be read now.
+     */
+    long reserve(long bytes) {
+        long rate = bytesPerSecond;
+        if (rate <= 0) {
+            return 0;
+        }
+        long cost = bytes * TimeUnit.SECONDS.toNanos(1) / rate;
+        long now;
+        long updated;
+        long current;
+        do {
+            current = fullTime.get();
+            now = System.nanoTime();
+            updated = Math.max(current, now) + cost;
+        } while (!fullTime.compareAndSet(current, updated));
+        return Math.max(0, updated - now - BURST_NANOS);
+    }
+
+    /**
+     * The weight of a download's share of a common limit, which doubles for every step the priority is more urgent
+     * than 0 and halves for every step it is less urgent, between 1/16 and 16.
+     */
+    static double weight(int priority) {
+        return Math.pow(2, -Math.max(-4, Math.min(4, priority)));
+    }
+}
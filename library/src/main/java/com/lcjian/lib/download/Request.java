@@ -3,6 +3,7 @@ package com.lcjian.lib.download;
 import java.io.Serializable;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
 
 /**
@@ -10,6 +11,10 @@ import java.util.Map;
  */
 public final class Request implements Serializable {
 
+    public static final String SHA_256 = "SHA-256";
+    public static final String MD5 = "MD5";
+    public static final String CRC32C = "CRC32C";
+
     /**
      * serialVersionUID
      */
@@ -21,7 +26,19 @@ public final class Request implements Serializable {
     private final String fileName;
     private final Map<String, String> headers;
     private final int priority;
+    /**
+     * Bytes per second this download may read at most, 0 for no limit of its own.
+     */
+    private final long rateLimit;
     private final String simplifiedId;
+    /**
+     * One of {@link #SHA_256}, {@link #MD5} and {@link #CRC32C}, null if the download is not verified.
+     */
+    private final String digestAlgorithm;
+    /**
+     * The expected digest in hex.
+     */
+    private final String digest;
     /**
      * Use for customization. You can use JSON string or some else to save more info.
      */
@@ -34,7 +51,10 @@ public final class Request implements Serializable {
         this.fileName = builder.fileName;
         this.headers = builder.headers;
         this.priority = builder.priority;
+        this.rateLimit = builder.rateLimit;
         this.extra = builder.extra;
+        this.digestAlgorithm = builder.digestAlgorithm;
+        this.digest = builder.digest;
         this.simplifiedId = id.length() - 10 < 0 ? id : id.substring(id.length() - 10);
     }
 
@@ -62,10 +82,22 @@ public final class Request implements Serializable {
         return priority;
     }
 
+    public long rateLimit() {
+        return rateLimit;
+    }
+
     public String extra() {
         return extra;
     }
 
+    public String digestAlgorithm() {
+        return digestAlgorithm;
+    }
+
+    public String digest() {
+        return digest;
+    }
+
     public String simplifiedId() {
         return simplifiedId;
     }
@@ -100,7 +132,10 @@ public final class Request implements Serializable {
         private String fileName;
         private Map<String, String> headers;
         private int priority;
+        private long rateLimit;
         private String extra;
+        private String digestAlgorithm;
+        private String digest;
 
         public Builder() {
         }
@@ -111,7 +146,10 @@ public final class Request implements Serializable {
             this.fileName = request.fileName;
             this.headers = request.headers;
             this.priority = request.priority;
+            this.rateLimit = request.rateLimit;
             this.extra = request.extra;
+            this.digestAlgorithm = request.digestAlgorithm;
+            this.digest = request.digest;
         }
 
         public Builder id(String id) {
@@ -142,11 +180,31 @@ public final class Request implements Serializable {
             return this;
         }
 
+        public Builder rateLimit(long bytesPerSecond) {
+            if (bytesPerSecond < 0) {
+                throw new IllegalArgumentException("The rate limit can not be negative.");
+            }
+            this.rateLimit = bytesPerSecond;
+            return this;
+        }
+
         public Builder extra(String extra) {
             this.extra = extra;
             return this;
         }
 
+        /**
+         * Verify the downloaded file against the expected digest, it is computed while the bytes arrive.
+         *
+         * @param algorithm one of {@link #SHA_256}, {@link #MD5} and {@link #CRC32C}, null for no verification.
+         * @param digest    the expected digest in hex.
+         */
+        public Builder digest(String algorithm, String digest) {
+            this.digestAlgorithm = algorithm;
+            this.digest = digest;
+            return this;
+        }
+
         public Builder headers(Map<String, String> headers) {
             this.headers = headers;
             return this;
@@ -172,6 +230,14 @@ public final class Request implements Serializable {
                 throw new NullPointerException("empty id");
             if (Utils.isEmpty(url))
                 throw new NullPointerException("empty url");
+            if (digestAlgorithm != null) {
+                String algorithm = digestAlgorithm.toUpperCase(Locale.US);
+                if (!SHA_256.equals(algorithm) && !MD5.equals(algorithm) && !CRC32C.equals(algorithm))
+                    throw new IllegalArgumentException("Unsupported digest algorithm " + digestAlgorithm);
+                if (Utils.isEmpty(digest))
+                    throw new NullPointerException("empty digest");
+                digestAlgorithm = algorithm;
+            }
             return new Request(this);
         }
     }
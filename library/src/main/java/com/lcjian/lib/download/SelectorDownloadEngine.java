@@ -0,0 +1,652 @@
+package com.lcjian.lib.download;
+
+import com.lcjian.lib.download.exception.ConnectException;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.net.URI;
+import java.net.URISyntaxException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.HashMap;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Runs the chunk downloads of plain http urls on a few selector threads instead of a thread each,
+ * so that thousands of slow transfers do not hold thousands of threads blocked in reads.
+ * <p>
+ * It speaks HTTP/1.1 over non-blocking sockets by itself and only replaces the {@link DownloadAPI} for the chunk
+ * transfers, the downloads are still probed with the {@link DownloadAPI}. Https urls are left to the chunk download
+ * thread pool. Proxies are not supported.
+ */
+public final class SelectorDownloadEngine {
+
+    private static final Charset ASCII = Charset.forName("US-ASCII");
+
+    private static final int HEADER_BYTES = 8 * 1024;
+
+    private static final int MAX_HEADER_BYTES = 64 * 1024;
+
+    private static final int MAX_REDIRECTS = 5;
+
+    private static final int READ_BUFFER_BYTES = 64 * 1024;
+
+    private final Loop[] loops;
+    /**
+     * Looks up the hosts of redirects, off the selector threads.
+     */
+    private final ExecutorService resolver;
+    private final AtomicInteger next = new AtomicInteger();
+    private final long connectTimeout;
+    private final long readTimeout;
+    private final Logger logger;
+    private volatile boolean shutdown;
+
+    public SelectorDownloadEngine() {
+        this(2, 10, 10, TimeUnit.SECONDS);
+    }
+
+    public SelectorDownloadEngine(int selectorCount, long connectTimeout, long readTimeout, TimeUnit unit) {
+        if (selectorCount < 1) {
+            throw new IllegalArgumentException("The selector count must be positive.");
+        }
+        this.connectTimeout = unit.toNanos(connectTimeout);
+        this.readTimeout = unit.toNanos(readTimeout);
+        this.logger = Logger.getLogger("SelectorDownloadEngine");
+        this.resolver = Executors.newCachedThreadPool(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "SelectorDownloadEngine-resolver");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        this.loops = new Loop[selectorCount];
+        for (int i = 0; i < selectorCount; i++) {
+            try {
+                loops[i] = new Loop(Selector.open());
+            } catch (IOException e) {
+                throw new IllegalStateException("Can not open a selector.", e);
+            }
+            Thread thread = new Thread(loops[i], "SelectorDownloadEngine-" + i);
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    /**
+     * @return true if the chunks of this url can run on this engine.
+     */
+    boolean accepts(String url) {
+        return !shutdown && url != null && url.regionMatches(true, 0, "http:", 0, 5);
+    }
+
+    void execute(ChunkDownload chunkDownload) {
+        ChunkDownload.ChunkTransfer transfer = chunkDownload.prepare();
+        if (transfer == null) {
+            return;
+        }
+        Connection connection = new Connection(transfer);
+        try {
+            // resolve the host here, a lookup would hold up all the transfers of a selector thread
+            connection.target(new URI(chunkDownload.getRequest().url()));
+        } catch (URISyntaxException e) {
+            transfer.fail(new ConnectException(e));
+            return;
+        } catch (ConnectException e) {
+            transfer.fail(e);
+            return;
+        }
+        loops[(next.getAndIncrement() & Integer.MAX_VALUE) % loops.length].submit(connection);
+    }
+
+    public void shutdown() {
+        shutdown = true;
+        resolver.shutdown();
+        for (Loop loop : loops) {
+            loop.selector.wakeup();
+        }
+    }
+
+    private final class Loop implements Runnable {
+
+        private final Selector selector;
+        private final Queue<Connection> pending = new ConcurrentLinkedQueue<>();
+        private final ByteBuffer buffer = ByteBuffer.allocateDirect(READ_BUFFER_BYTES);
+        /**
+         * Connections that stopped reading until their rate limited transfers may read again.
+         */
+        private final List<Connection> throttled = new ArrayList<>();
+        private long sweepTime = System.nanoTime();
+
+        private Loop(Selector selector) {
+            this.selector = selector;
+        }
+
+        void submit(Connection connection) {
+            pending.add(connection);
+            selector.wakeup();
+        }
+
+        @Override
+        public void run() {
+            while (!shutdown) {
+                try {
+                    select();
+                } catch (RuntimeException e) {
+                    // a listener of a finished transfer threw, the other transfers of this thread go on
+                    logger.log(Level.WARNING, "Selector loop failed.", e);
+                }
+            }
+            for (SelectionKey key : selector.keys()) {
+                if (key.isValid()) {
+                    abort((Connection) key.attachment());
+                }
+            }
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                abort(connection);
+            }
+            try {
+                selector.close();
+            } catch (IOException e) {
+                logger.log(Level.WARNING, "Can not close the selector.", e);
+            }
+        }
+
+        private void select() {
+            try {
+                selector.select(selectTimeout());
+            } catch (IOException e) {
+                logger.warning(Utils.formatString("Selector failed: %s", e.getMessage()));
+            }
+            Connection connection;
+            while ((connection = pending.poll()) != null) {
+                connect(connection);
+            }
+            resumeThrottled();
+            Iterator<SelectionKey> iterator = selector.selectedKeys().iterator();
+            while (iterator.hasNext()) {
+                SelectionKey key = iterator.next();
+                iterator.remove();
+                handle((Connection) key.attachment(), key);
+            }
+            long now = System.nanoTime();
+            if (now - sweepTime >= TimeUnit.SECONDS.toNanos(1)) {
+                sweepTime = now;
+                sweep(now);
+            }
+        }
+
+        private void abort(Connection connection) {
+            try {
+                fail(connection, new IOException("The download engine is shut down."));
+            } catch (RuntimeException e) {
+                logger.log(Level.WARNING, "Can not fail a transfer on shutdown.", e);
+            }
+        }
+
+        private long selectTimeout() {
+            long timeout = 1000;
+            long now = System.nanoTime();
+            for (Connection connection : throttled) {
+                timeout = Math.min(timeout, TimeUnit.NANOSECONDS.toMillis(connection.resumeTime - now));
+            }
+            return Math.max(1, timeout);
+        }
+
+        private void resumeThrottled() {
+            long now = System.nanoTime();
+            Iterator<Connection> iterator = throttled.iterator();
+            while (iterator.hasNext()) {
+                Connection connection = iterator.next();
+                if (connection.key == null || !connection.key.isValid()) {
+                    iterator.remove();
+                } else if (connection.resumeTime - now <= 0) {
+                    connection.key.interestOps(SelectionKey.OP_READ);
+                    iterator.remove();
+                }
+            }
+        }
+
+        private void connect(Connection connection) {
+            try {
+                connection.reset();
+                SocketChannel channel = SocketChannel.open();
+                connection.channel = channel;
+                channel.configureBlocking(false);
+                channel.socket().setTcpNoDelay(true);
+                connection.deadline = System.nanoTime() + connectTimeout;
+                if (channel.connect(connection.address)) {
+                    connection.key = channel.register(selector, SelectionKey.OP_WRITE, connection);
+                } else {
+                    connection.key = channel.register(selector, SelectionKey.OP_CONNECT, connection);
+                }
+            } catch (IOException | RuntimeException e) {
+                fail(connection, e);
+            }
+        }
+
+        /**
+         * Stop paused and timed out transfers, they may not get any event for a long time.
+         */
+        private void sweep(long now) {
+            for (SelectionKey key : selector.keys()) {
+                if (!key.isValid()) {
+                    // cancelled since the last select
+                    continue;
+                }
+                Connection connection = (Connection) key.attachment();
+                if (connection.transfer.remaining(1) <= 0) {
+                    finish(connection);
+                } else if (now - connection.deadline > 0) {
+                    fail(connection, new SocketTimeoutException(
+                            (key.interestOps() & SelectionKey.OP_CONNECT) != 0 ? "connect timed out" : "Read timed out"));
+                }
+            }
+        }
+
+        private void handle(Connection connection, SelectionKey key) {
+            try {
+                if (!key.isValid()) {
+                    return;
+                }
+                if (key.isConnectable()) {
+                    if (connection.channel.finishConnect()) {
+                        connection.deadline = System.nanoTime() + readTimeout;
+                        key.interestOps(SelectionKey.OP_WRITE);
+                    }
+                } else if (key.isWritable()) {
+                    connection.channel.write(connection.request);
+                    connection.deadline = System.nanoTime() + readTimeout;
+                    if (!connection.request.hasRemaining()) {
+                        key.interestOps(SelectionKey.OP_READ);
+                    }
+                } else if (key.isReadable()) {
+                    connection.deadline = System.nanoTime() + readTimeout;
+                    if (connection.header != null) {
+                        readHeader(connection);
+                    } else {
+                        readBody(connection);
+                    }
+                }
+            } catch (IOException | ConnectException | RuntimeException e) {
+                // a malformed response or a failing listener only ends this connection
+                fail(connection, e);
+            }
+        }
+
+        private void readHeader(Connection connection) throws IOException, ConnectException {
+            ByteBuffer header = connection.header;
+            if (connection.channel.read(header) == -1) {
+                throw new ConnectException("Connection closed before the response header.");
+            }
+            int end = headerEnd(header);
+            if (end == -1) {
+                if (!header.hasRemaining()) {
+                    if (header.capacity() >= MAX_HEADER_BYTES) {
+                        throw new ConnectException("Response header is too large.");
+                    }
+                    header.flip();
+                    connection.header = ByteBuffer.allocate(header.capacity() * 2).put(header);
+                }
+                return;
+            }
+            String head = new String(header.array(), 0, end, ASCII);
+            header.flip();
+            header.position(end + 4);
+            connection.header = null;
+
+            String[] lines = head.split("\r\n");
+            String[] statusLine = lines[0].split(" ", 3);
+            if (statusLine.length < 2 || !statusLine[0].startsWith("HTTP/")) {
+                throw new ConnectException("Malformed status line: " + lines[0]);
+            }
+            int code;
+            try {
+                code = Integer.parseInt(statusLine[1]);
+            } catch (NumberFormatException e) {
+                throw new ConnectException("Malformed status line: " + lines[0]);
+            }
+            Map<String, String> headers = new HashMap<>();
+            for (int i = 1; i < lines.length; i++) {
+                int colon = lines[i].indexOf(':');
+                if (colon > 0) {
+                    headers.put(lines[i].substring(0, colon).trim().toLowerCase(Locale.US), lines[i].substring(colon + 1).trim());
+                }
+            }
+
+            if (code >= 300 && code < 400 && headers.containsKey("location")) {
+                if (++connection.redirects > MAX_REDIRECTS) {
+                    throw new ConnectException("Too many redirects.");
+                }
+                URI location;
+                try {
+                    location = connection.uri.resolve(headers.get("location"));
+                } catch (IllegalArgumentException e) {
+                    throw new ConnectException(e);
+                }
+                if (!"http".equalsIgnoreCase(location.getScheme())) {
+                    throw new ConnectException("Can not follow a redirect to " + location);
+                }
+                close(connection);
+                resolve(connection, location);
+                return;
+            }
+            if (code < 200 || code >= 300) {
+                throw new ConnectException("Connect failed, code:" + code);
+            }
+            if (code == 200 && connection.transfer.isRangeSupportable()
+                    && connection.transfer.getHeaders() != null && connection.transfer.getHeaders().containsKey("If-Range")) {
+                throw Utils.wholeFileSent(connection.uri.toString(), connection.transfer.getHeaders().get("If-Range"),
+                        headers.get("etag"), headers.get("last-modified"));
+            }
+
+            String transferEncoding = headers.get("transfer-encoding");
+            String contentLength = headers.get("content-length");
+            if (transferEncoding != null && transferEncoding.toLowerCase(Locale.US).contains("chunked")) {
+                connection.decoder = new ChunkedDecoder();
+            } else if (!Utils.isEmpty(contentLength)) {
+                try {
+                    connection.contentRemaining = Long.parseLong(contentLength);
+                } catch (NumberFormatException e) {
+                    throw new ConnectException("Malformed Content-Length: " + contentLength);
+                }
+                if (connection.contentRemaining < 0) {
+                    throw new ConnectException("Malformed Content-Length: " + contentLength);
+                }
+            }
+            connection.transfer.open();
+            // the body bytes that arrived along with the header
+            if (deliver(connection, header)) {
+                finish(connection);
+            }
+        }
+
+        private void readBody(Connection connection) throws IOException, ConnectException {
+            long remaining = connection.transfer.remaining(buffer.capacity());
+            if (connection.decoder == null && connection.contentRemaining != -1) {
+                remaining = Math.min(remaining, connection.contentRemaining);
+            }
+            if (remaining <= 0) {
+                finish(connection);
+                return;
+            }
+            long wait = connection.transfer.reserve();
+            if (wait > 0) {
+                connection.key.interestOps(0);
+                connection.resumeTime = System.nanoTime() + wait;
+                connection.deadline += wait;
+                throttled.add(connection);
+                return;
+            }
+            buffer.clear();
+            buffer.limit((int) connection.transfer.permitted(remaining));
+            if (connection.channel.read(buffer) == -1) {
+                if (connection.decoder != null || connection.contentRemaining > 0) {
+                    throw new EOFException("Connection closed before the end of the body.");
+                }
+                finish(connection);
+                return;
+            }
+            buffer.flip();
+            if (deliver(connection, buffer)) {
+                finish(connection);
+            }
+        }
+
+        /**
+         * Hand the body bytes of the buffer to the transfer.
+         *
+         * @return true if the transfer is done.
+         */
+        private boolean deliver(Connection connection, ByteBuffer data) throws IOException, ConnectException {
+            if (connection.decoder != null) {
+                if (connection.decoder.decode(data, connection.transfer)) {
+                    return true;
+                }
+            } else if (data.hasRemaining()) {
+                if (connection.contentRemaining != -1) {
+                    data.limit(data.position() + (int) Math.min(data.remaining(), connection.contentRemaining));
+                    connection.contentRemaining -= data.remaining();
+                }
+                write(connection.transfer, data);
+                if (connection.contentRemaining == 0) {
+                    return true;
+                }
+            }
+            return connection.transfer.remaining(1) <= 0;
+        }
+
+        /**
+         * Look up the host of a redirect on the resolver and connect to it on this thread again.
+         */
+        private void resolve(final Connection connection, final URI location) {
+            try {
+                resolver.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        try {
+                            connection.target(location);
+                        } catch (ConnectException e) {
+                            connection.transfer.fail(e);
+                            connection.transfer.close();
+                            return;
+                        }
+                        submit(connection);
+                    }
+                });
+            } catch (RejectedExecutionException e) {
+                fail(connection, new IOException("The download engine is shut down."));
+            }
+        }
+
+        private void finish(Connection connection) {
+            close(connection);
+            connection.transfer.finish();
+            connection.transfer.close();
+        }
+
+        private void fail(Connection connection, Exception e) {
+            close(connection);
+            connection.transfer.fail(e);
+            connection.transfer.close();
+        }
+
+        private void close(Connection connection) {
+            if (connection.key != null) {
+                connection.key.cancel();
+                connection.key = null;
+            }
+            if (connection.channel != null) {
+                try {
+                    connection.channel.close();
+                } catch (IOException e) {
+                    logger.log(Level.WARNING, "Can not close a connection.", e);
+                }
+                connection.channel = null;
+            }
+        }
+    }
+
+    private static int headerEnd(ByteBuffer header) {
+        byte[] array = header.array();
+        for (int i = 3; i < header.position(); i++) {
+            if (array[i] == '\n' && array[i - 1] == '\r' && array[i - 2] == '\n' && array[i - 3] == '\r') {
+                return i - 3;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Never write past the end of the chunk, it may have shrunk since the request was sent.
+     */
+    private static void write(ChunkDownload.ChunkTransfer transfer, ByteBuffer data) throws IOException {
+        long remaining = transfer.remaining(data.remaining());
+        if (remaining > 0) {
+            ByteBuffer slice = data.duplicate();
+            slice.limit(slice.position() + (int) remaining);
+            transfer.write(slice);
+        }
+        data.position(data.limit());
+    }
+
+    private static final class Connection {
+
+        private final ChunkDownload.ChunkTransfer transfer;
+        private URI uri;
+        private InetSocketAddress address;
+        private ByteBuffer request;
+        private ByteBuffer header;
+        private SocketChannel channel;
+        private SelectionKey key;
+        private ChunkedDecoder decoder;
+        private long contentRemaining;
+        private long deadline;
+        private long resumeTime;
+        private int redirects;
+
+        private Connection(ChunkDownload.ChunkTransfer transfer) {
+            this.transfer = transfer;
+        }
+
+        void target(URI uri) throws ConnectException {
+            if (uri.getHost() == null) {
+                throw new ConnectException("No host in " + uri);
+            }
+            int port = uri.getPort() == -1 ? 80 : uri.getPort();
+            InetSocketAddress address = new InetSocketAddress(uri.getHost(), port);
+            if (address.isUnresolved()) {
+                throw new ConnectException("Unknown host " + uri.getHost());
+            }
+            this.uri = uri;
+            this.address = address;
+
+            String path = Utils.isEmpty(uri.getRawPath()) ? "/" : uri.getRawPath();
+            StringBuilder builder = new StringBuilder()
+                    .append("GET ").append(path).append(uri.getRawQuery() == null ? "" : "?" + uri.getRawQuery()).append(" HTTP/1.1\r\n")
+                    .append("Host: ").append(uri.getHost()).append(port == 80 ? "" : ":" + port).append("\r\n")
+                    .append("Accept-Encoding: identity\r\n")
+                    .append("Connection: close\r\n");
+            Map<String, String> headers = transfer.getHeaders();
+            if (headers != null) {
+                for (Map.Entry<String, String> entry : headers.entrySet()) {
+                    builder.append(entry.getKey()).append(": ").append(entry.getValue()).append("\r\n");
+                }
+            }
+            if (transfer.isRangeSupportable()) {
+                builder.append("Range: bytes=").append(transfer.getStart()).append('-').append(transfer.getEnd()).append("\r\n");
+            }
+            builder.append("\r\n");
+            request = ByteBuffer.wrap(builder.toString().getBytes(ASCII));
+        }
+
+        void reset() {
+            request.rewind();
+            header = ByteBuffer.allocate(HEADER_BYTES);
+            decoder = null;
+            contentRemaining = -1;
+        }
+    }
+
+    /**
+     * Decodes a body sent with "Transfer-Encoding: chunked".
+     */
+    private static final class ChunkedDecoder {
+
+        private static final int SIZE = 0;
+        private static final int DATA = 1;
+        private static final int DATA_END = 2;
+        private static final int TRAILER = 3;
+
+        private final StringBuilder line = new StringBuilder();
+        private int state = SIZE;
+        private long dataRemaining;
+
+        /**
+         * @return true once the last chunk and the trailer are read.
+         */
+        boolean decode(ByteBuffer in, ChunkDownload.ChunkTransfer transfer) throws IOException, ConnectException {
+            while (in.hasRemaining()) {
+                switch (state) {
+                    case SIZE: {
+                        byte b = in.get();
+                        if (b == '\n') {
+                            String size = line.toString();
+                            int semicolon = size.indexOf(';');
+                            if (semicolon != -1) {
+                                size = size.substring(0, semicolon);
+                            }
+                            try {
+                                dataRemaining = Long.parseLong(size.trim(), 16);
+                            } catch (NumberFormatException e) {
+                                throw new ConnectException("Malformed chunk size: " + size);
+                            }
+                            line.setLength(0);
+                            state = dataRemaining == 0 ? TRAILER : DATA;
+                        } else if (b != '\r') {
+                            if (line.length() > 1024) {
+                                throw new ConnectException("Malformed chunk size line.");
+                            }
+                            line.append((char) b);
+                        }
+                        break;
+                    }
+                    case DATA: {
+                        int length = (int) Math.min(in.remaining(), dataRemaining);
+                        ByteBuffer data = in.duplicate();
+                        data.limit(in.position() + length);
+                        write(transfer, data);
+                        in.position(in.position() + length);
+                        dataRemaining -= length;
+                        if (dataRemaining == 0) {
+                            state = DATA_END;
+                        }
+                        break;
+                    }
+                    case DATA_END: {
+                        if (in.get() == '\n') {
+                            state = SIZE;
+                        }
+                        break;
+                    }
+                    case TRAILER: {
+                        byte b = in.get();
+                        if (b == '\n') {
+                            if (line.length() == 0) {
+                                return true;
+                            }
+                            line.setLength(0);
+                        } else if (b != '\r') {
+                            line.append((char) b);
+                        }
+                        break;
+                    }
+                    default:
+                        throw new IllegalStateException();
+                }
+            }
+            return false;
+        }
+    }
+}
@@ -134,6 +134,34 @@ public class SerializablePersistenceAdapter implements PersistenceAdapter {
         }
     }
 
+    @Override
+    public void saveChunks(Request request, List<Chunk> chunks) {
+        synchronized (this) {
+            List<DownloadRecord> downloadRecords = getData();
+            for (DownloadRecord downloadRecord : downloadRecords) {
+                if (Utils.equals(request.id(), downloadRecord.getRequest().id())) {
+                    for (Chunk chunk : chunks) {
+                        DownloadRecord.ChunkRecord item = null;
+                        for (DownloadRecord.ChunkRecord chunkRecord : downloadRecord.getChunkRecords()) {
+                            if (Utils.equals(chunk.file(), chunkRecord.getChunk().file())
+                                    && chunk.start() == chunkRecord.getChunk().start()) {
+                                item = chunkRecord;
+                                break;
+                            }
+                        }
+                        if (item == null) {
+                            downloadRecord.getChunkRecords().add(new DownloadRecord.ChunkRecord(chunk, null));
+                        } else {
+                            item.setChunk(chunk);
+                        }
+                    }
+                    break;
+                }
+            }
+            serialize(dataFile, new ArrayList<>(downloadRecords));
+        }
+    }
+
     @Override
     public void saveDownloadStatus(Request request, DownloadStatus downloadStatus) {
         synchronized (this) {
@@ -155,7 +183,8 @@ public class SerializablePersistenceAdapter implements PersistenceAdapter {
             for (DownloadRecord downloadRecord : downloadRecords) {
                 if (Utils.equals(request.id(), downloadRecord.getRequest().id())) {
                     for (DownloadRecord.ChunkRecord chunkRecord : downloadRecord.getChunkRecords()) {
-                        if (Utils.equals(chunk.file(), chunkRecord.getChunk().file())) {
+                        if (Utils.equals(chunk.file(), chunkRecord.getChunk().file())
+                                && chunk.start() == chunkRecord.getChunk().start()) {
                             chunkRecord.setChunkDownloadStatus(chunkDownloadStatus);
                             break;
                         }
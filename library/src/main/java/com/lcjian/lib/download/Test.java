@@ -55,6 +55,9 @@ public class Test {
                             case DownloadStatus.MERGE_ERROR:
                                 statusStr = "下载合并出错了";
                                 break;
+                            case DownloadStatus.VERIFY_ERROR:
+                                statusStr = "下载校验出错了";
+                                break;
                             case DownloadStatus.COMPLETE:
                                 statusStr = "下载完成";
                                 break;
@@ -1,8 +1,25 @@
 package com.lcjian.lib.download;
 
+import com.lcjian.lib.download.exception.ConnectException;
+import com.lcjian.lib.download.exception.ServerFileChangedException;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.io.ObjectOutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.text.NumberFormat;
 import java.util.Formatter;
 import java.util.Locale;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
 
@@ -41,6 +58,177 @@ public class Utils {
         return null;
     }
 
+    /**
+     * Threads from this factory are virtual threads, which need Java 21. They are looked up reflectively
+     * so that the library still builds and runs on older Java and Android.
+     *
+     * @throws UnsupportedOperationException if the running Java has no virtual threads
+     */
+    static ThreadFactory virtualThreadFactory(String prefix) {
+        try {
+            Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+            Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+            builder = builderClass.getMethod("name", String.class, long.class).invoke(builder, prefix, 0L);
+            return (ThreadFactory) builderClass.getMethod("factory").invoke(builder);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+        }
+    }
+
+    /**
+     * An executor that starts a new thread of the factory for each task, meant for virtual threads.
+     */
+    static ExecutorService newThreadPerTaskExecutor(ThreadFactory threadFactory) {
+        try {
+            return (ExecutorService) Executors.class
+                    .getMethod("newThreadPerTaskExecutor", ThreadFactory.class).invoke(null, threadFactory);
+        } catch (ReflectiveOperationException e) {
+            throw new UnsupportedOperationException("Virtual threads need Java 21 or later.", e);
+        }
+    }
+
+    /**
+     * Pick the file name of a download from the Content-Disposition header or else from the url,
+     * fall back to the current time if neither gives a valid one.
+     */
+    public static String fileName(String url, String contentDisposition) {
+        String fileName = "";
+        if (!isEmpty(contentDisposition)) {
+            fileName = contentDispositionFileName(contentDisposition);
+        }
+        if (isEmpty(fileName)) {
+            fileName = url.substring(url.lastIndexOf('/') + 1);
+        }
+        if (fileName.startsWith("\"")) {
+            fileName = fileName.substring(1);
+        }
+        if (fileName.endsWith("\"")) {
+            fileName = fileName.substring(0, fileName.length() - 1);
+        }
+        if (isEmpty(fileName) || !isValidFileName(fileName)) {
+            fileName = String.valueOf(System.currentTimeMillis());
+        }
+        return fileName;
+    }
+
+    /**
+     * @return the complete length in a Content-Range header such as "bytes 0-0/1234", -1 if it is unknown.
+     */
+    static long contentRangeLength(String contentRange) {
+        if (isEmpty(contentRange)) {
+            return -1;
+        }
+        int slash = contentRange.lastIndexOf('/');
+        if (slash < 0 || slash == contentRange.length() - 1 || contentRange.charAt(slash + 1) == '*') {
+            return -1;
+        }
+        try {
+            return Long.parseLong(contentRange.substring(slash + 1).trim());
+        } catch (NumberFormatException e) {
+            return -1;
+        }
+    }
+
+    /**
+     * Compare the validators of a download's file with the ones the server sends now, the ETag if both have one,
+     * the Last-Modified date otherwise. Without either the file is taken as changed.
+     */
+    static boolean serverFileChanged(DownloadInfo.InitInfo before, DownloadInfo.InitInfo now) {
+        if (before.contentLength() != now.contentLength()) {
+            return true;
+        }
+        if (!isEmpty(before.eTag()) && !isEmpty(now.eTag())) {
+            return !before.eTag().equals(now.eTag());
+        }
+        if (!isEmpty(before.lastModified()) && !isEmpty(now.lastModified())) {
+            return !before.lastModified().equals(now.lastModified());
+        }
+        return true;
+    }
+
+    /**
+     * Compare the validators of a download's file with the ones of a 200 to a conditional request. A server that does
+     * not take the conditions answers 200 for the same file too. A length the server does not send is not compared.
+     */
+    static boolean serverFileChanged(DownloadInfo.InitInfo before, String eTag, String lastModified, String contentLength) {
+        long length;
+        try {
+            length = isEmpty(contentLength) ? before.contentLength() : Long.parseLong(contentLength);
+        } catch (NumberFormatException e) {
+            length = before.contentLength();
+        }
+        return serverFileChanged(before, new DownloadInfo.InitInfo.Builder()
+                .eTag(eTag)
+                .lastModified(lastModified)
+                .contentLength(length)
+                .build());
+    }
+
+    /**
+     * What a 200 to a ranged request with the If-Range fails with. A server that can not compare the validator sends
+     * the whole file though it did not change, that is retried as any other failure. Otherwise the If-Range did not
+     * match and the whole new file is sent.
+     */
+    static ConnectException wholeFileSent(String url, String ifRange, String eTag, String lastModified) {
+        if (ifRange.equals(eTag) || ifRange.equals(lastModified)) {
+            return new ConnectException("The whole file is sent instead of the range, code:200");
+        }
+        return new ServerFileChangedException(url);
+    }
+
+    /**
+     * The validator to send as If-Range, a strong ETag or else the Last-Modified date, null if there is neither.
+     */
+    static String ifRange(DownloadInfo.InitInfo initInfo) {
+        if (!isEmpty(initInfo.eTag()) && !initInfo.eTag().startsWith("W/")) {
+            return initInfo.eTag();
+        }
+        return isEmpty(initInfo.lastModified()) ? null : initInfo.lastModified();
+    }
+
+    static String toHex(byte[] bytes) {
+        char[] chars = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            chars[i * 2] = Character.forDigit((bytes[i] >> 4) & 0xf, 16);
+            chars[i * 2 + 1] = Character.forDigit(bytes[i] & 0xf, 16);
+        }
+        return new String(chars).toUpperCase(Locale.US);
+    }
+
+    /**
+     * Read the whole file to compute its digest in hex.
+     *
+     * @param algorithm one of {@link Request#SHA_256}, {@link Request#MD5} and {@link Request#CRC32C}.
+     */
+    static String digest(File file, String algorithm) throws IOException {
+        MessageDigest messageDigest = null;
+        if (!Request.CRC32C.equals(algorithm)) {
+            try {
+                messageDigest = MessageDigest.getInstance(algorithm);
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalArgumentException(e);
+            }
+        }
+        int crc = 0;
+        FileInputStream in = new FileInputStream(file);
+        try {
+            FileChannel fileChannel = in.getChannel();
+            ByteBuffer buffer = ByteBuffer.allocate(64 * 1024);
+            while (fileChannel.read(buffer) != -1) {
+                buffer.flip();
+                if (messageDigest == null) {
+                    crc = Crc32c.update(crc, buffer);
+                } else {
+                    messageDigest.update(buffer);
+                }
+                buffer.clear();
+            }
+        } finally {
+            in.close();
+        }
+        return messageDigest == null ? Crc32c.toHex(crc) : toHex(messageDigest.digest());
+    }
+
     public static boolean isValidFileName(String fileName) {
         if (fileName == null || fileName.length() > 255)
             return false;
@@ -100,4 +288,23 @@ public class Utils {
     public static String formatPercent(double number) {
         return NumberFormat.getPercentInstance().format(number);
     }
+
+    static byte[] serialize(Object obj) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        ObjectOutputStream out = new ObjectOutputStream(bytes);
+        out.writeObject(obj);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    static Object deserialize(byte[] data) throws IOException {
+        ObjectInputStream in = new ObjectInputStream(new ByteArrayInputStream(data));
+        try {
+            return in.readObject();
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        } finally {
+            in.close();
+        }
+    }
 }
@@ -0,0 +1,31 @@
+package com.lcjian.lib.download.exception;
+
+import java.io.File;
+
+/**
+ * The downloaded file does not have the digest the request expects.
+ */
+public class DigestMismatchException extends Exception {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = 1L;
+
+    private final String expected;
+    private final String actual;
+
+    public DigestMismatchException(File file, String algorithm, String expected, String actual) {
+        super(file.getAbsolutePath() + " has " + algorithm + " " + actual + ", expected " + expected);
+        this.expected = expected;
+        this.actual = actual;
+    }
+
+    public String getExpected() {
+        return expected;
+    }
+
+    public String getActual() {
+        return actual;
+    }
+}
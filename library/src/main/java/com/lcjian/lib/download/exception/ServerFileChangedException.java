@@ -0,0 +1,16 @@
+package com.lcjian.lib.download.exception;
+
+/**
+ * The file on the server is not the one the chunks were downloaded from, the download has to start over.
+ */
+public class ServerFileChangedException extends ConnectException {
+
+    /**
+     * serialVersionUID
+     */
+    private static final long serialVersionUID = 1L;
+
+    public ServerFileChangedException(String url) {
+        super(url + " changed on the server");
+    }
+}
@@ -0,0 +1,128 @@
+package com.lcjian.lib.download;
+
+import org.junit.Test;
+
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.fail;
+
+public class AdmissionQueueTest {
+
+    private static Thread acquire(final AdmissionQueue queue, final Download download, final BlockingQueue<Download> admitted) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    queue.acquire(download);
+                    admitted.add(download);
+                } catch (InterruptedException e) {
+                    // given up waiting
+                }
+            }
+        });
+        thread.start();
+        return thread;
+    }
+
+    private static void awaitWaiting(AdmissionQueue queue, int count) throws InterruptedException {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(5);
+        while (queue.getWaitingCount() != count && System.nanoTime() < deadline) {
+            Thread.sleep(5);
+        }
+        assertEquals(count, queue.getWaitingCount());
+    }
+
+    @Test
+    public void admitsInPriorityOrder() throws InterruptedException {
+        AdmissionQueue queue = new AdmissionQueue(1, false);
+        Download running = TestDownloads.download("running", 0, queue);
+        Download low = TestDownloads.download("low", 5, queue);
+        Download high = TestDownloads.download("high", 1, queue);
+        queue.acquire(running);
+        BlockingQueue<Download> admitted = new LinkedBlockingQueue<>();
+        acquire(queue, low, admitted);
+        awaitWaiting(queue, 1);
+        acquire(queue, high, admitted);
+        awaitWaiting(queue, 2);
+
+        queue.release(running);
+        assertSame(high, admitted.poll(5, TimeUnit.SECONDS));
+        queue.release(high);
+        assertSame(low, admitted.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void admitsWaitingDownloadAfterSetPriority() throws InterruptedException {
+        AdmissionQueue queue = new AdmissionQueue(1, false);
+        Download running = TestDownloads.download("running", 0, queue);
+        Download first = TestDownloads.download("first", 5, queue);
+        Download second = TestDownloads.download("second", 5, queue);
+        queue.acquire(running);
+        BlockingQueue<Download> admitted = new LinkedBlockingQueue<>();
+        acquire(queue, first, admitted);
+        awaitWaiting(queue, 1);
+        acquire(queue, second, admitted);
+        awaitWaiting(queue, 2);
+
+        second.setPriority(1);
+        assertSame(second, queue.getWaitingDownloads().get(0));
+        queue.release(running);
+        assertSame(second, admitted.poll(5, TimeUnit.SECONDS));
+        queue.release(second);
+        assertSame(first, admitted.poll(5, TimeUnit.SECONDS));
+        assertNull(admitted.poll(100, TimeUnit.MILLISECONDS));
+        assertEquals(0, queue.getWaitingCount());
+    }
+
+    @Test
+    public void interruptRemovesReprioritizedTicket() throws InterruptedException {
+        AdmissionQueue queue = new AdmissionQueue(1, false);
+        Download running = TestDownloads.download("running", 0, queue);
+        Download waiting = TestDownloads.download("waiting", 5, queue);
+        Download later = TestDownloads.download("later", 5, queue);
+        queue.acquire(running);
+        BlockingQueue<Download> admitted = new LinkedBlockingQueue<>();
+        Thread thread = acquire(queue, waiting, admitted);
+        awaitWaiting(queue, 1);
+
+        waiting.setPriority(1);
+        thread.interrupt();
+        thread.join(5000);
+        assertEquals(0, queue.getWaitingCount());
+
+        acquire(queue, later, admitted);
+        awaitWaiting(queue, 1);
+        queue.release(running);
+        assertSame(later, admitted.poll(5, TimeUnit.SECONDS));
+    }
+
+    @Test
+    public void interruptBeforeAcquireRemovesTicket() throws InterruptedException {
+        AdmissionQueue queue = new AdmissionQueue(1, false);
+        Download running = TestDownloads.download("running", 0, queue);
+        Download interrupted = TestDownloads.download("interrupted", 5, queue);
+        Download later = TestDownloads.download("later", 5, queue);
+        queue.acquire(running);
+
+        // as a pause does while the download is still on its way to the queue
+        Thread.currentThread().interrupt();
+        try {
+            queue.acquire(interrupted);
+            fail();
+        } catch (InterruptedException e) {
+            // given up waiting
+        }
+        assertEquals(0, queue.getWaitingCount());
+
+        BlockingQueue<Download> admitted = new LinkedBlockingQueue<>();
+        acquire(queue, later, admitted);
+        awaitWaiting(queue, 1);
+        queue.release(running);
+        assertSame(later, admitted.poll(5, TimeUnit.SECONDS));
+    }
+}
@@ -0,0 +1,189 @@
+package com.lcjian.lib.download;
+
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpHandler;
+import com.sun.net.httpserver.HttpServer;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.net.InetSocketAddress;
+import java.util.Random;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * Downloads many slow files from a local server at once and prints the heap and platform threads in use.
+ * It lives with the tests, the local server is the JDK's own and not part of the library.
+ * <p>
+ * Usage: Benchmark [count=10000] [virtual|platform] [file bytes=16384], or {@code gradle benchmark}.
+ */
+public class Benchmark {
+
+    public static void main(String[] args) throws Exception {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 10000;
+        boolean virtual = args.length <= 1 || "virtual".equals(args[1]);
+        int fileBytes = args.length > 2 ? Integer.parseInt(args[2]) : 16 * 1024;
+        Result result = run(count, virtual, fileBytes);
+        System.exit(result.errors == 0 ? 0 : 1);
+    }
+
+    static Result run(final int count, boolean virtual, int fileBytes) throws Exception {
+        final byte[] data = new byte[fileBytes];
+        new Random(0).nextBytes(data);
+
+        HttpServer server = HttpServer.create(new InetSocketAddress("127.0.0.1", 0), count);
+        server.createContext("/", new HttpHandler() {
+            @Override
+            public void handle(HttpExchange exchange) throws IOException {
+                exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+                exchange.getResponseHeaders().add("Last-Modified", "Mon, 01 Jan 2018 00:00:00 GMT");
+                String range = exchange.getRequestHeaders().getFirst("Range");
+                int start = 0;
+                int end = data.length - 1;
+                int code = 200;
+                if (range != null && range.startsWith("bytes=")) {
+                    String[] bounds = range.substring(6).split("-", -1);
+                    start = Integer.parseInt(bounds[0]);
+                    if (!bounds[1].isEmpty()) {
+                        end = Math.min(end, Integer.parseInt(bounds[1]));
+                    }
+                    code = 206;
+                    exchange.getResponseHeaders().add("Content-Range", "bytes " + start + "-" + end + "/" + data.length);
+                }
+                if ("HEAD".equals(exchange.getRequestMethod())) {
+                    exchange.getResponseHeaders().add("Content-Length", String.valueOf(end - start + 1));
+                    exchange.sendResponseHeaders(code, -1);
+                    exchange.close();
+                    return;
+                }
+                exchange.sendResponseHeaders(code, end - start + 1);
+                OutputStream outputStream = exchange.getResponseBody();
+                try {
+                    // trickle the body out, so that all the downloads are running at the same time
+                    for (int i = start; i <= end; i += 1024) {
+                        outputStream.write(data, i, Math.min(1024, end - i + 1));
+                        outputStream.flush();
+                        Thread.sleep(100);
+                    }
+                } catch (InterruptedException | IOException e) {
+                    // the client went away
+                } finally {
+                    exchange.close();
+                }
+            }
+        });
+        server.setExecutor(virtual
+                ? Utils.newThreadPerTaskExecutor(Utils.virtualThreadFactory("server-"))
+                : Executors.newCachedThreadPool());
+        server.start();
+
+        File destination = new File(System.getProperty("java.io.tmpdir"), "download-benchmark-" + System.currentTimeMillis());
+        DownloadManager downloadManager = null;
+        try {
+            Logger logger = Logger.getLogger("Benchmark");
+            logger.setLevel(Level.WARNING);
+            DownloadManager.Builder builder = new DownloadManager.Builder()
+                    .defaultDestination(destination.getAbsolutePath())
+                    .logger(logger)
+                    .maxDownloadCount(count)
+                    // every download goes to the one local host, the default limit per host would queue all but 8 chunks
+                    .maxConnectionsPerHost(0)
+                    .virtualThreads(virtual);
+            if (!virtual) {
+                // as many platform threads as downloads, which is what virtual threads spare us
+                builder.chunkDownloadThreadPool(Executors.newCachedThreadPool());
+            }
+            downloadManager = builder.build();
+
+            final CountDownLatch latch = new CountDownLatch(count);
+            final AtomicInteger errors = new AtomicInteger();
+            downloadManager.addListener(new DownloadManager.Listener() {
+                @Override
+                public void onDownloadCreate(Download download) {
+                    download.addDownloadListener(new DownloadListener.SimpleDownloadListener() {
+                        @Override
+                        public void onDownloadStatusChanged(Download download, DownloadStatus downloadStatus) {
+                            if (downloadStatus.getStatus() == DownloadStatus.COMPLETE) {
+                                latch.countDown();
+                            } else if (downloadStatus.getStatus() == DownloadStatus.ERROR
+                                    || downloadStatus.getStatus() == DownloadStatus.MERGE_ERROR
+                                    || downloadStatus.getStatus() == DownloadStatus.VERIFY_ERROR) {
+                                errors.incrementAndGet();
+                                latch.countDown();
+                            }
+                        }
+                    });
+                }
+
+                @Override
+                public void onDownloadDestroy(Download download) {
+                }
+            });
+
+            ThreadMXBean threadMXBean = ManagementFactory.getThreadMXBean();
+            threadMXBean.resetPeakThreadCount();
+            long startTime = System.nanoTime();
+            String url = "http://127.0.0.1:" + server.getAddress().getPort() + "/";
+            for (int i = 0; i < count; i++) {
+                downloadManager.enqueue(new Request.Builder().url(url + "file" + i).fileName("file" + i).build());
+            }
+
+            Runtime runtime = Runtime.getRuntime();
+            long peakHeap = 0;
+            long lastPrintTime = System.nanoTime();
+            while (!latch.await(100, TimeUnit.MILLISECONDS)) {
+                long heap = runtime.totalMemory() - runtime.freeMemory();
+                peakHeap = Math.max(peakHeap, heap);
+                if (System.nanoTime() - lastPrintTime >= TimeUnit.SECONDS.toNanos(1)) {
+                    lastPrintTime = System.nanoTime();
+                    System.out.println(Utils.formatString("%s left, heap %s, platform threads %d",
+                            latch.getCount(), Utils.formatBytes(heap, 1), threadMXBean.getThreadCount()));
+                }
+            }
+            // the most platform threads alive at once since the reset, virtual threads are not counted
+            int peakThreads = threadMXBean.getPeakThreadCount();
+            System.out.println(Utils.formatString("%d downloads (%d errors) with %s threads in %d ms, peak heap %s, peak platform threads %d",
+                    count, errors.get(), virtual ? "virtual" : "platform",
+                    TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - startTime), Utils.formatBytes(peakHeap, 1), peakThreads));
+            return new Result(errors.get(), peakHeap, peakThreads);
+        } finally {
+            if (downloadManager != null) {
+                downloadManager.shutdown();
+            }
+            server.stop(0);
+            delete(destination);
+        }
+    }
+
+    private static void delete(File file) {
+        File[] children = file.listFiles();
+        if (children != null) {
+            for (File child : children) {
+                delete(child);
+            }
+        }
+        if (file.exists() && !file.delete()) {
+            System.out.println("Can not delete " + file.getAbsolutePath());
+        }
+    }
+
+    static final class Result {
+
+        final int errors;
+        final long peakHeap;
+        final int peakPlatformThreads;
+
+        Result(int errors, long peakHeap, int peakPlatformThreads) {
+            this.errors = errors;
+            this.peakHeap = peakHeap;
+            this.peakPlatformThreads = peakPlatformThreads;
+        }
+    }
+}
@@ -0,0 +1,34 @@
+package com.lcjian.lib.download;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assume.assumeTrue;
+
+public class BenchmarkTest {
+
+    @Test(timeout = 120000)
+    public void downloadsOnVirtualThreads() throws Exception {
+        assumeTrue("Virtual threads need Java 21 or later.", hasVirtualThreads());
+        // a smaller run than gradle benchmark's 10000, which needs that many open files
+        Benchmark.Result result = Benchmark.run(1000, true, 4 * 1024);
+        assertEquals(0, result.errors);
+        // a platform thread for each download would be more than 1000
+        assertTrue("Peak platform threads " + result.peakPlatformThreads, result.peakPlatformThreads < 250);
+    }
+
+    @Test(timeout = 120000)
+    public void downloadsOnPlatformThreads() throws Exception {
+        assertEquals(0, Benchmark.run(100, false, 4 * 1024).errors);
+    }
+
+    private static boolean hasVirtualThreads() {
+        try {
+            Utils.virtualThreadFactory("test-");
+            return true;
+        } catch (UnsupportedOperationException e) {
+            return false;
+        }
+    }
+}
@@ -0,0 +1,59 @@
+package com.lcjian.lib.download;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class BufferPoolTest {
+
+    @Test
+    public void allocatesNothingOnceWarm() {
+        BufferPool bufferPool = new BufferPool(1024, 4 * 1024);
+        // more transfers at once than the cap has direct buffers for
+        for (int round = 0; round < 10; round++) {
+            List<ByteBuffer> borrowed = new ArrayList<>();
+            for (int i = 0; i < 6; i++) {
+                borrowed.add(bufferPool.acquire());
+            }
+            for (ByteBuffer buffer : borrowed) {
+                bufferPool.release(buffer);
+            }
+            assertEquals(4, bufferPool.getAllocationCount());
+            assertEquals(2, bufferPool.getOverflowCount());
+        }
+        assertEquals(4 * 1024, bufferPool.getPooledBytes());
+    }
+
+    @Test
+    public void handsOutDirectBuffersFirst() {
+        BufferPool bufferPool = new BufferPool(1024, 1024);
+        ByteBuffer direct = bufferPool.acquire();
+        ByteBuffer heap = bufferPool.acquire();
+        assertTrue(direct.isDirect());
+        assertFalse(heap.isDirect());
+        bufferPool.release(heap);
+        bufferPool.release(direct);
+
+        assertTrue(bufferPool.acquire().isDirect());
+        assertFalse(bufferPool.acquire().isDirect());
+        assertEquals(1, bufferPool.getOverflowCount());
+    }
+
+    @Test
+    public void handsOutClearedBuffers() {
+        BufferPool bufferPool = new BufferPool(1024, 1024);
+        ByteBuffer buffer = bufferPool.acquire();
+        buffer.put(new byte[100]).limit(200);
+        bufferPool.release(buffer);
+
+        buffer = bufferPool.acquire();
+        assertEquals(0, buffer.position());
+        assertEquals(1024, buffer.limit());
+    }
+}
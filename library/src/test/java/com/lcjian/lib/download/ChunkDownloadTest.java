@@ -0,0 +1,127 @@
+package com.lcjian.lib.download;
+
+import com.lcjian.lib.download.exception.ConnectException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ChunkDownloadTest {
+
+    private static final int LENGTH = 100 * 1024;
+
+    private File directory;
+    private DownloadManager downloadManager;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("chunk").toFile();
+    }
+
+    @After
+    public void tearDown() {
+        downloadManager.shutdown();
+    }
+
+    @Test(timeout = 30000)
+    public void failsBodyCutShortOfTheRangeInSingleFile() throws Exception {
+        DownloadStatus status = download(true);
+        assertEquals(DownloadStatus.ERROR, status.getStatus());
+        assertTrue(status.getThrowable() instanceof EOFException);
+    }
+
+    @Test(timeout = 30000)
+    public void failsBodyCutShortOfTheRangeInParts() throws Exception {
+        DownloadStatus status = download(false);
+        assertEquals(DownloadStatus.ERROR, status.getStatus());
+        assertTrue(status.getThrowable() instanceof EOFException);
+    }
+
+    private DownloadStatus download(boolean singleFile) throws InterruptedException {
+        downloadManager = new DownloadManager.Builder()
+                .defaultDestination(directory.getAbsolutePath())
+                .downloadAPI(new ShortBodyDownloadAPI())
+                .retryPolicyFactory(SimpleRetryPolicy.Factory.create(0))
+                .metadataTtl(0, TimeUnit.SECONDS)
+                .singleFile(singleFile)
+                .build();
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<DownloadStatus> result = new AtomicReference<>();
+        downloadManager.addListener(new DownloadManager.Listener() {
+            @Override
+            public void onDownloadCreate(Download download) {
+                download.addDownloadListener(new DownloadListener.SimpleDownloadListener() {
+                    @Override
+                    public void onDownloadStatusChanged(Download download, DownloadStatus downloadStatus) {
+                        int status = downloadStatus.getStatus();
+                        if (status == DownloadStatus.COMPLETE || status == DownloadStatus.ERROR
+                                || status == DownloadStatus.MERGE_ERROR) {
+                            result.set(downloadStatus);
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onDownloadDestroy(Download download) {
+            }
+        });
+        downloadManager.enqueue(new Request.Builder().url("http://localhost/file").build());
+        latch.await();
+        return result.get();
+    }
+
+    /**
+     * Serves a file of {@link #LENGTH} bytes in ranges, every body ends half way through the range.
+     */
+    private static final class ShortBodyDownloadAPI implements DownloadAPI {
+
+        @Override
+        public DownloadInfo.InitInfo getDownloadInitInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.InitInfo.Builder().fileName("file").contentLength(LENGTH).build();
+        }
+
+        @Override
+        public DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.RangeInfo.Builder().rangeSupportable(true).build();
+        }
+
+        @Override
+        public Probe probe(String url, Map<String, String> headers, boolean keepBody) {
+            return new Probe(new DownloadInfo.Builder()
+                    .initInfo(getDownloadInitInfo(url, headers))
+                    .rangeInfo(getDownloadRangeInfo(url, headers))
+                    .build(), null);
+        }
+
+        @Override
+        public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) {
+            return false;
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+            return new ByteArrayInputStream(new byte[(int) (end - start + 1) / 2]);
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers) throws ConnectException {
+            return new ByteArrayInputStream(new byte[LENGTH / 2]);
+        }
+    }
+}
@@ -0,0 +1,76 @@
+package com.lcjian.lib.download;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.util.Random;
+import java.util.zip.Checksum;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assume.assumeTrue;
+
+public class Crc32cTest {
+
+    private static final byte[] DATA = new byte[100000];
+
+    static {
+        new Random(42).nextBytes(DATA);
+    }
+
+    @Test
+    public void matchesCheckValue() {
+        byte[] bytes = "123456789".getBytes(StandardCharsets.US_ASCII);
+        assertEquals(0xe3069283, Crc32c.update(0, bytes, 0, bytes.length));
+    }
+
+    @Test
+    public void matchesJavaCrc32c() throws Exception {
+        Checksum expected = javaCrc32c();
+        assumeTrue("java.util.zip.CRC32C needs Java 9 or later.", expected != null);
+        for (int length : new int[]{0, 1, 7, 8, 9, 63, 1000, DATA.length}) {
+            expected.reset();
+            expected.update(DATA, 0, length);
+            ByteBuffer direct = ByteBuffer.allocateDirect(length);
+            direct.put(DATA, 0, length);
+            direct.flip();
+            assertEquals((int) expected.getValue(), Crc32c.update(0, DATA, 0, length));
+            assertEquals((int) expected.getValue(), Crc32c.update(0, ByteBuffer.wrap(DATA, 0, length)));
+            assertEquals((int) expected.getValue(), Crc32c.update(0, direct));
+        }
+    }
+
+    @Test
+    public void goesOnFromSavedValue() {
+        int crc = Crc32c.update(0, DATA, 0, 3333);
+        assertEquals(Crc32c.update(0, DATA, 0, DATA.length), Crc32c.update(crc, DATA, 3333, DATA.length - 3333));
+    }
+
+    @Test
+    public void combinesTwoParts() {
+        int whole = Crc32c.update(0, DATA, 0, DATA.length);
+        for (int split : new int[]{0, 1, 4096, 33333, DATA.length - 1, DATA.length}) {
+            int crc1 = Crc32c.update(0, DATA, 0, split);
+            int crc2 = Crc32c.update(0, DATA, split, DATA.length - split);
+            assertEquals(whole, Crc32c.combine(crc1, crc2, DATA.length - split));
+        }
+    }
+
+    @Test
+    public void combinesChunksInFileOrder() {
+        int crc = 0;
+        for (int start = 0; start < DATA.length; start += 7777) {
+            int length = Math.min(7777, DATA.length - start);
+            crc = Crc32c.combine(crc, Crc32c.update(0, DATA, start, length), length);
+        }
+        assertEquals(Crc32c.update(0, DATA, 0, DATA.length), crc);
+    }
+
+    private static Checksum javaCrc32c() throws Exception {
+        try {
+            return (Checksum) Class.forName("java.util.zip.CRC32C").getConstructor().newInstance();
+        } catch (ClassNotFoundException e) {
+            return null;
+        }
+    }
+}
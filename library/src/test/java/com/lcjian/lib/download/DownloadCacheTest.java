@@ -0,0 +1,250 @@
+package com.lcjian.lib.download;
+
+import com.lcjian.lib.download.exception.ConnectException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class DownloadCacheTest {
+
+    private static final byte[] CONTENT = "the content of the file".getBytes(StandardCharsets.US_ASCII);
+
+    private File directory;
+    private DownloadCache downloadCache;
+    private DownloadManager downloadManager;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("cache").toFile();
+        downloadCache = new DownloadCache(new File(directory, "cache").getAbsolutePath(), 1024, 1, TimeUnit.MINUTES);
+    }
+
+    @After
+    public void tearDown() {
+        if (downloadManager != null) {
+            downloadManager.shutdown();
+        }
+    }
+
+    @Test
+    public void findsFileOnlyByTheSameHeaders() throws IOException {
+        Map<String, String> alice = new HashMap<>();
+        alice.put("Authorization", "Bearer alice");
+        alice.put("Accept", "*/*");
+        downloadCache.put(request(alice), downloadInfo(), file("alice"));
+
+        Map<String, String> reordered = new LinkedHashMap<>();
+        reordered.put("Accept", "*/*");
+        reordered.put("Authorization", "Bearer alice");
+        assertNotNull(downloadCache.get(request(reordered)));
+
+        Map<String, String> bob = new HashMap<>(alice);
+        bob.put("Authorization", "Bearer bob");
+        assertNull(downloadCache.get(request(bob)));
+        assertNull(downloadCache.get(request(null)));
+    }
+
+    @Test
+    public void keepsCopyNotSharedWithTheDownloadFile() throws IOException {
+        File file = file("download");
+        downloadCache.put(request(null), downloadInfo(), file);
+        DownloadCache.Entry entry = downloadCache.get(request(null));
+        assertNotNull(entry);
+        File cached = downloadCache.getFile(entry);
+        assertFalse(Files.isSameFile(file.toPath(), cached.toPath()));
+
+        // the user changes the download file in place
+        byte[] changed = CONTENT.clone();
+        changed[0] = 'T';
+        Files.write(file.toPath(), changed);
+        assertArrayEquals(CONTENT, Files.readAllBytes(cached.toPath()));
+    }
+
+    @Test
+    public void evictsLeastRecentlyUsedOverMaxBytes() throws IOException {
+        downloadCache = new DownloadCache(new File(directory, "small").getAbsolutePath(), 2 * CONTENT.length, 1, TimeUnit.MINUTES);
+        downloadCache.put(requestOf("http://localhost/a"), downloadInfo(), file("a"));
+        downloadCache.put(requestOf("http://localhost/b"), downloadInfo(), file("b"));
+        // a is used after b, b goes first
+        assertNotNull(downloadCache.get(requestOf("http://localhost/a")));
+        downloadCache.put(requestOf("http://localhost/c"), downloadInfo(), file("c"));
+
+        assertNotNull(downloadCache.get(requestOf("http://localhost/a")));
+        assertNull(downloadCache.get(requestOf("http://localhost/b")));
+        assertNotNull(downloadCache.get(requestOf("http://localhost/c")));
+        assertEquals(2, downloadCache.getEntryCount());
+        assertEquals(2 * CONTENT.length, downloadCache.getSize());
+    }
+
+    @Test
+    public void keepsNothingBiggerThanMaxBytes() throws IOException {
+        downloadCache = new DownloadCache(new File(directory, "small").getAbsolutePath(), CONTENT.length - 1, 1, TimeUnit.MINUTES);
+        downloadCache.put(request(null), downloadInfo(), file("big"));
+        assertNull(downloadCache.get(request(null)));
+        assertEquals(0, downloadCache.getSize());
+    }
+
+    @Test(timeout = 30000)
+    public void countsHitsMissesAndSavedBytes() throws Exception {
+        buildDownloadManager();
+        Request first = new Request.Builder().id("first").url("http://localhost/file")
+                .destination(new File(directory, "first").getAbsolutePath()).build();
+        assertEquals(DownloadStatus.COMPLETE, download(first).getStatus());
+        assertEquals(0, downloadCache.getHitCount());
+        assertEquals(1, downloadCache.getMissCount());
+
+        Request second = new Request.Builder().id("second").url("http://localhost/file")
+                .destination(new File(directory, "second").getAbsolutePath()).build();
+        assertEquals(DownloadStatus.COMPLETE, download(second).getStatus());
+        assertEquals(1, downloadCache.getHitCount());
+        assertEquals(1, downloadCache.getMissCount());
+        assertEquals(CONTENT.length, downloadCache.getSavedBytes());
+        assertArrayEquals(CONTENT, Files.readAllBytes(new File(directory, "second/file").toPath()));
+    }
+
+    @Test(timeout = 30000)
+    public void completesWithTheFileInPlaceOfTheSameDigest() throws Exception {
+        buildDownloadManager();
+        File destination = new File(directory, "destination");
+        assertTrue(destination.mkdirs());
+        File file = new File(destination, "file");
+        Files.write(file.toPath(), CONTENT);
+        Request request = new Request.Builder().url("http://localhost/file")
+                .destination(destination.getAbsolutePath())
+                .digest(Request.SHA_256, Utils.digest(file, Request.SHA_256))
+                .build();
+
+        DownloadStatus status = download(request);
+        assertEquals(DownloadStatus.COMPLETE, status.getStatus());
+        assertEquals(1, downloadCache.getHitCount());
+        assertEquals(CONTENT.length, downloadCache.getSavedBytes());
+        assertArrayEquals(CONTENT, Files.readAllBytes(file.toPath()));
+    }
+
+    private void buildDownloadManager() {
+        downloadManager = new DownloadManager.Builder()
+                .defaultDestination(directory.getAbsolutePath())
+                .downloadAPI(new ContentDownloadAPI())
+                .retryPolicyFactory(SimpleRetryPolicy.Factory.create(0))
+                .metadataTtl(0, TimeUnit.SECONDS)
+                .singleFlight(false)
+                .downloadCache(downloadCache)
+                .build();
+    }
+
+    private DownloadStatus download(Request request) throws InterruptedException {
+        final CountDownLatch latch = new CountDownLatch(1);
+        final AtomicReference<DownloadStatus> result = new AtomicReference<>();
+        final String id = request.id();
+        DownloadManager.Listener listener = new DownloadManager.Listener() {
+            @Override
+            public void onDownloadCreate(Download download) {
+                if (!download.getRequest().id().equals(id)) {
+                    return;
+                }
+                download.addDownloadListener(new DownloadListener.SimpleDownloadListener() {
+                    @Override
+                    public void onDownloadStatusChanged(Download download, DownloadStatus downloadStatus) {
+                        int status = downloadStatus.getStatus();
+                        if (status == DownloadStatus.COMPLETE || status == DownloadStatus.ERROR
+                                || status == DownloadStatus.MERGE_ERROR || status == DownloadStatus.VERIFY_ERROR) {
+                            result.set(downloadStatus);
+                            latch.countDown();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onDownloadDestroy(Download download) {
+            }
+        };
+        downloadManager.addListener(listener);
+        downloadManager.enqueue(request);
+        latch.await();
+        downloadManager.removeListener(listener);
+        return result.get();
+    }
+
+    private File file(String name) throws IOException {
+        File file = new File(directory, name);
+        Files.write(file.toPath(), CONTENT);
+        return file;
+    }
+
+    private static Request requestOf(String url) {
+        return new Request.Builder().url(url).build();
+    }
+
+    private static Request request(Map<String, String> headers) {
+        return new Request.Builder().url("http://localhost/file").headers(headers).build();
+    }
+
+    private static DownloadInfo downloadInfo() {
+        return new DownloadInfo.Builder()
+                .initInfo(new DownloadInfo.InitInfo.Builder().fileName("file").contentLength(CONTENT.length).eTag("\"v1\"").build())
+                .rangeInfo(new DownloadInfo.RangeInfo.Builder().rangeSupportable(true).build())
+                .build();
+    }
+
+    /**
+     * Serves {@link #CONTENT} in ranges.
+     */
+    private static final class ContentDownloadAPI implements DownloadAPI {
+
+        @Override
+        public DownloadInfo.InitInfo getDownloadInitInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.InitInfo.Builder().fileName("file").contentLength(CONTENT.length).eTag("\"v1\"").build();
+        }
+
+        @Override
+        public DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.RangeInfo.Builder().rangeSupportable(true).build();
+        }
+
+        @Override
+        public Probe probe(String url, Map<String, String> headers, boolean keepBody) {
+            return new Probe(new DownloadInfo.Builder()
+                    .initInfo(getDownloadInitInfo(url, headers))
+                    .rangeInfo(getDownloadRangeInfo(url, headers))
+                    .build(), null);
+        }
+
+        @Override
+        public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) {
+            return false;
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+            return new ByteArrayInputStream(Arrays.copyOfRange(CONTENT, (int) start, (int) end + 1));
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers) throws ConnectException {
+            return new ByteArrayInputStream(CONTENT);
+        }
+    }
+}
@@ -0,0 +1,53 @@
+package com.lcjian.lib.download;
+
+import org.junit.Test;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+public class HostSchedulerTest {
+
+    @Test
+    public void startedSlotCountsAgainstTheHostLimit() {
+        HostScheduler hostScheduler = new HostScheduler(2, 0);
+        AtomicInteger started = new AtomicInteger();
+        HostScheduler.Slot open = hostScheduler.newSlot("http://example.com/a", counting(started));
+        HostScheduler.Slot first = hostScheduler.newSlot("http://example.com/b", counting(started));
+        HostScheduler.Slot second = hostScheduler.newSlot("http://example.com/c", counting(started));
+
+        assertTrue(hostScheduler.start(open));
+        hostScheduler.submit(first);
+        hostScheduler.submit(second);
+        assertEquals(2, started.get());
+        assertEquals(2, hostScheduler.getConnectionCount("example.com"));
+        assertEquals(1, hostScheduler.getWaitingCount());
+
+        hostScheduler.release(open);
+        assertEquals(3, started.get());
+        assertEquals(0, hostScheduler.getWaitingCount());
+    }
+
+    @Test
+    public void doesNotStartSlotOfHostAtItsLimit() {
+        HostScheduler hostScheduler = new HostScheduler(1, 0);
+        AtomicInteger started = new AtomicInteger();
+        hostScheduler.submit(hostScheduler.newSlot("http://example.com/a", counting(started)));
+
+        assertFalse(hostScheduler.start(hostScheduler.newSlot("http://example.com/b", counting(started))));
+        assertTrue(hostScheduler.start(hostScheduler.newSlot("http://other.com/b", counting(started))));
+        assertEquals(2, started.get());
+        assertEquals(0, hostScheduler.getWaitingCount());
+    }
+
+    private static Runnable counting(final AtomicInteger started) {
+        return new Runnable() {
+            @Override
+            public void run() {
+                started.incrementAndGet();
+            }
+        };
+    }
+}
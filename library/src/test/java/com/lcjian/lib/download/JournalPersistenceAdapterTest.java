@@ -0,0 +1,222 @@
+package com.lcjian.lib.download;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.file.Files;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class JournalPersistenceAdapterTest {
+
+    private File directory;
+    private JournalPersistenceAdapter adapter;
+
+    @Before
+    public void setUp() throws IOException {
+        directory = Files.createTempDirectory("journal").toFile();
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 60000, Long.MAX_VALUE);
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        adapter.close();
+    }
+
+    @Test
+    public void replaysJournalAfterRestart() throws IOException {
+        Request request = request("a");
+        Chunk chunk = chunk("a", 0, 99);
+        adapter.saveRequest(request);
+        adapter.saveRequest(request("b"));
+        adapter.saveDownloadInfo(request, downloadInfo(), Collections.singletonList(chunk));
+        adapter.saveDownloadStatus(request, new DownloadStatus(DownloadStatus.DOWNLOADING));
+        adapter.saveChunkDownloadStatus(request, chunk, chunkDownloadStatus(ChunkDownloadStatus.DOWNLOADING, 10));
+        adapter.saveChunkDownloadStatus(request, chunk, chunkDownloadStatus(ChunkDownloadStatus.IDLE, 42));
+        adapter.deleteRequest(request("b"));
+
+        List<DownloadRecord> downloadRecords = restart();
+        assertEquals(1, downloadRecords.size());
+        DownloadRecord downloadRecord = downloadRecords.get(0);
+        assertEquals("a", downloadRecord.getRequest().id());
+        assertEquals(100L, downloadRecord.getDownloadInfo().initInfo().contentLength());
+        assertEquals(DownloadStatus.DOWNLOADING, downloadRecord.getDownloadStatus().getStatus());
+        assertEquals(1, downloadRecord.getChunkRecords().size());
+        DownloadRecord.ChunkRecord chunkRecord = downloadRecord.getChunkRecords().get(0);
+        assertEquals(chunk.file(), chunkRecord.getChunk().file());
+        assertEquals(ChunkDownloadStatus.IDLE, chunkRecord.getChunkDownloadStatus().getStatus());
+        assertEquals(42L, chunkRecord.getChunkDownloadStatus().getDownloadedBytes());
+    }
+
+    @Test
+    public void keepsChecksumOfChunkStatus() throws IOException {
+        Request request = request("a");
+        Chunk chunk = chunk("a", 0, 99);
+        adapter.saveRequest(request);
+        adapter.saveDownloadInfo(request, downloadInfo(), Collections.singletonList(chunk));
+        ChunkDownloadStatus chunkDownloadStatus = chunkDownloadStatus(ChunkDownloadStatus.IDLE, 42);
+        chunkDownloadStatus.setChecksum(0xcafebabe, 40);
+        chunkDownloadStatus.setSyncedBytes(32);
+        adapter.saveChunkDownloadStatus(request, chunk, chunkDownloadStatus);
+
+        ChunkDownloadStatus replayed = restart().get(0).getChunkRecords().get(0).getChunkDownloadStatus();
+        assertEquals(42L, replayed.getDownloadedBytes());
+        assertEquals(0xcafebabe, replayed.getChecksum());
+        assertEquals(40L, replayed.getChecksumBytes());
+        assertEquals(32L, replayed.getSyncedBytes());
+    }
+
+    @Test
+    public void readsChunkStatusWithoutVersion() throws IOException {
+        Request request = request("a");
+        Chunk chunk = chunk("a", 0, 99);
+        adapter.saveRequest(request);
+        adapter.saveDownloadInfo(request, downloadInfo(), Collections.singletonList(chunk));
+        adapter.close();
+        // a record as written before the chunk status records had a version
+        ByteArrayOutputStream payload = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(payload);
+        out.writeByte(6);
+        out.writeUTF("a");
+        out.writeUTF(chunk.file());
+        out.writeLong(chunk.start());
+        out.writeInt(ChunkDownloadStatus.IDLE);
+        out.writeLong(42);
+        out.writeInt(-1);
+        out.flush();
+        appendRecord(payload.toByteArray());
+
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 60000, Long.MAX_VALUE);
+        ChunkDownloadStatus replayed = adapter.getDownloadRecords().get(0).getChunkRecords().get(0).getChunkDownloadStatus();
+        assertEquals(ChunkDownloadStatus.IDLE, replayed.getStatus());
+        assertEquals(42L, replayed.getDownloadedBytes());
+        assertEquals(0L, replayed.getChecksumBytes());
+    }
+
+    @Test
+    public void dropsTornRecordAtTheTail() throws IOException {
+        Request request = request("a");
+        adapter.saveRequest(request);
+        adapter.saveDownloadStatus(request, new DownloadStatus(DownloadStatus.DOWNLOADING));
+        adapter.saveDownloadStatus(request, new DownloadStatus(DownloadStatus.COMPLETE));
+        adapter.close();
+        // the last record is cut short by a crash
+        truncateJournal(3);
+
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 60000, Long.MAX_VALUE);
+        List<DownloadRecord> downloadRecords = adapter.getDownloadRecords();
+        assertEquals(1, downloadRecords.size());
+        assertEquals(DownloadStatus.DOWNLOADING, downloadRecords.get(0).getDownloadStatus().getStatus());
+
+        // the journal goes on after the dropped record
+        adapter.saveDownloadStatus(request, new DownloadStatus(DownloadStatus.COMPLETE));
+        assertEquals(DownloadStatus.COMPLETE, restart().get(0).getDownloadStatus().getStatus());
+    }
+
+    @Test
+    public void dropsRecordWithWrongChecksum() throws IOException {
+        Request request = request("a");
+        adapter.saveRequest(request);
+        adapter.saveDownloadStatus(request, new DownloadStatus(DownloadStatus.DOWNLOADING));
+        adapter.close();
+        File journal = new File(directory, "download.journal");
+        RandomAccessFile file = new RandomAccessFile(journal, "rw");
+        try {
+            // a byte of the last record's payload, before its checksum
+            file.seek(journal.length() - 5);
+            int b = file.read();
+            file.seek(journal.length() - 5);
+            file.write(b ^ 0xff);
+        } finally {
+            file.close();
+        }
+
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 60000, Long.MAX_VALUE);
+        List<DownloadRecord> downloadRecords = adapter.getDownloadRecords();
+        assertEquals(1, downloadRecords.size());
+        assertNull(downloadRecords.get(0).getDownloadStatus());
+    }
+
+    @Test
+    public void keepsEveryRecordWhileCompacting() throws Exception {
+        adapter.close();
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 1, 256);
+        Request request = request("a");
+        Chunk chunk = chunk("a", 0, 99);
+        adapter.saveRequest(request);
+        adapter.saveDownloadInfo(request, downloadInfo(), Collections.singletonList(chunk));
+        // compacted in the background over and over while the records keep coming
+        for (int i = 1; i <= 20000; i++) {
+            adapter.saveChunkDownloadStatus(request, chunk, chunkDownloadStatus(ChunkDownloadStatus.DOWNLOADING, i));
+        }
+        File journal = new File(directory, "download.journal");
+        for (int i = 0; i < 500 && journal.length() > 256; i++) {
+            Thread.sleep(10);
+        }
+        assertTrue(journal.length() <= 256);
+
+        List<DownloadRecord> downloadRecords = restart();
+        assertEquals(20000L, downloadRecords.get(0).getChunkRecords().get(0).getChunkDownloadStatus().getDownloadedBytes());
+    }
+
+    private List<DownloadRecord> restart() throws IOException {
+        adapter.close();
+        adapter = new JournalPersistenceAdapter(directory.getAbsolutePath(), 60000, Long.MAX_VALUE);
+        return adapter.getDownloadRecords();
+    }
+
+    private void appendRecord(byte[] payload) throws IOException {
+        CRC32 crc32 = new CRC32();
+        crc32.update(payload, 0, payload.length);
+        DataOutputStream out = new DataOutputStream(new FileOutputStream(new File(directory, "download.journal"), true));
+        try {
+            out.writeInt(payload.length);
+            out.write(payload);
+            out.writeInt((int) crc32.getValue());
+        } finally {
+            out.close();
+        }
+    }
+
+    private void truncateJournal(int bytes) throws IOException {
+        RandomAccessFile file = new RandomAccessFile(new File(directory, "download.journal"), "rw");
+        try {
+            file.setLength(file.length() - bytes);
+        } finally {
+            file.close();
+        }
+    }
+
+    private static Request request(String id) {
+        return new Request.Builder().id(id).url("http://localhost/" + id).build();
+    }
+
+    private static Chunk chunk(String id, long start, long end) {
+        return new Chunk.Builder().file(id + ".download.part1").start(start).end(end).build();
+    }
+
+    private static DownloadInfo downloadInfo() {
+        return new DownloadInfo.Builder()
+                .initInfo(new DownloadInfo.InitInfo.Builder().fileName("a").contentLength(100).build())
+                .rangeInfo(new DownloadInfo.RangeInfo.Builder().rangeSupportable(true).build())
+                .build();
+    }
+
+    private static ChunkDownloadStatus chunkDownloadStatus(int status, long downloadedBytes) {
+        ChunkDownloadStatus chunkDownloadStatus = new ChunkDownloadStatus(status);
+        chunkDownloadStatus.setDownloadedBytes(downloadedBytes);
+        return chunkDownloadStatus;
+    }
+}
@@ -0,0 +1,292 @@
+package com.lcjian.lib.download;
+
+import com.lcjian.lib.download.exception.ConnectException;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.ByteArrayOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class SelectorDownloadEngineTest {
+
+    private static final byte[] DATA = new byte[100 * 1024];
+
+    static {
+        new Random(42).nextBytes(DATA);
+    }
+
+    /**
+     * The raw responses by path, each written as it is in pieces with a pause between them.
+     */
+    private final Map<String, List<byte[]>> responses = new ConcurrentHashMap<>();
+    private final Map<String, DownloadStatus> statuses = new ConcurrentHashMap<>();
+    private final Map<String, CountDownLatch> latches = new ConcurrentHashMap<>();
+    private ServerSocket serverSocket;
+    private File directory;
+    private SelectorDownloadEngine engine;
+    private DownloadManager downloadManager;
+
+    @Before
+    public void setUp() throws IOException {
+        serverSocket = new ServerSocket(0, 50, InetAddress.getByName("127.0.0.1"));
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                while (!serverSocket.isClosed()) {
+                    try {
+                        serve(serverSocket.accept());
+                    } catch (IOException e) {
+                        // closed
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        directory = Files.createTempDirectory("selector").toFile();
+        engine = new SelectorDownloadEngine(1, 5, 5, TimeUnit.SECONDS);
+        downloadManager = new DownloadManager.Builder()
+                .defaultDestination(directory.getAbsolutePath())
+                .selectorDownloadEngine(engine)
+                .downloadAPI(new FixedLengthDownloadAPI())
+                .retryPolicyFactory(SimpleRetryPolicy.Factory.create(0))
+                .metadataTtl(0, TimeUnit.SECONDS)
+                .build();
+        downloadManager.addListener(new DownloadManager.Listener() {
+            @Override
+            public void onDownloadCreate(Download download) {
+                download.addDownloadListener(new DownloadListener.SimpleDownloadListener() {
+                    @Override
+                    public void onDownloadStatusChanged(Download download, DownloadStatus downloadStatus) {
+                        int status = downloadStatus.getStatus();
+                        if (status == DownloadStatus.COMPLETE || status == DownloadStatus.ERROR
+                                || status == DownloadStatus.MERGE_ERROR) {
+                            String path = download.getRequest().url().substring(download.getRequest().url().lastIndexOf('/'));
+                            statuses.put(path, downloadStatus);
+                            latches.get(path).countDown();
+                        }
+                    }
+                });
+            }
+
+            @Override
+            public void onDownloadDestroy(Download download) {
+            }
+        });
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloadManager.shutdown();
+        engine.shutdown();
+        serverSocket.close();
+    }
+
+    @Test(timeout = 30000)
+    public void readsBodyOfContentLength() throws Exception {
+        respond("/length", head("200 OK", "Content-Length: " + DATA.length), DATA);
+
+        assertEquals(DownloadStatus.COMPLETE, download("/length").getStatus());
+        assertArrayEquals(DATA, Files.readAllBytes(new File(directory, "length").toPath()));
+    }
+
+    @Test(timeout = 30000)
+    public void readsHeaderSplitAcrossReads() throws Exception {
+        byte[] head = head("200 OK", "Content-Length: " + DATA.length);
+        respond("/split", Arrays.copyOfRange(head, 0, 10), Arrays.copyOfRange(head, 10, head.length - 1),
+                concat(Arrays.copyOfRange(head, head.length - 1, head.length), Arrays.copyOfRange(DATA, 0, 10)),
+                Arrays.copyOfRange(DATA, 10, DATA.length));
+
+        assertEquals(DownloadStatus.COMPLETE, download("/split").getStatus());
+        assertArrayEquals(DATA, Files.readAllBytes(new File(directory, "split").toPath()));
+    }
+
+    @Test(timeout = 30000)
+    public void decodesChunkedBody() throws Exception {
+        byte[] first = Arrays.copyOfRange(DATA, 0, 1000);
+        byte[] second = Arrays.copyOfRange(DATA, 1000, DATA.length);
+        respond("/chunked", head("200 OK", "Transfer-Encoding: chunked"),
+                ascii(Integer.toHexString(first.length) + ";name=value\r\n"), first, ascii("\r\n"),
+                ascii(Integer.toHexString(second.length) + "\r\n"), second, ascii("\r\n0\r\nTrailer: x\r\n\r\n"));
+
+        assertEquals(DownloadStatus.COMPLETE, download("/chunked").getStatus());
+        assertArrayEquals(DATA, Files.readAllBytes(new File(directory, "chunked").toPath()));
+    }
+
+    @Test(timeout = 30000)
+    public void followsRedirect() throws Exception {
+        respond("/moved", head("302 Found", "Location: /target", "Content-Length: 0"));
+        respond("/target", head("200 OK", "Content-Length: " + DATA.length), DATA);
+
+        assertEquals(DownloadStatus.COMPLETE, download("/moved").getStatus());
+        assertArrayEquals(DATA, Files.readAllBytes(new File(directory, "moved").toPath()));
+    }
+
+    @Test(timeout = 30000)
+    public void failsBodyCutShortOfContentLength() throws Exception {
+        respond("/short", head("200 OK", "Content-Length: " + DATA.length), Arrays.copyOfRange(DATA, 0, DATA.length / 2));
+
+        DownloadStatus status = download("/short");
+        assertEquals(DownloadStatus.ERROR, status.getStatus());
+        assertTrue(status.getThrowable() instanceof EOFException);
+    }
+
+    @Test(timeout = 30000)
+    public void failsChunkedBodyWithoutLastChunk() throws Exception {
+        respond("/cut", head("200 OK", "Transfer-Encoding: chunked"),
+                ascii(Integer.toHexString(1000) + "\r\n"), Arrays.copyOfRange(DATA, 0, 1000), ascii("\r\n"));
+
+        DownloadStatus status = download("/cut");
+        assertEquals(DownloadStatus.ERROR, status.getStatus());
+        assertTrue(status.getThrowable() instanceof EOFException);
+    }
+
+    @Test(timeout = 30000)
+    public void failsMalformedResponsesAndGoesOn() throws Exception {
+        respond("/status", ascii("HTTP/1.1 abc OK\r\n\r\n"));
+        respond("/length", head("200 OK", "Content-Length: many"), DATA);
+        respond("/after", head("200 OK", "Content-Length: " + DATA.length), DATA);
+
+        assertEquals(DownloadStatus.ERROR, download("/status").getStatus());
+        assertEquals(DownloadStatus.ERROR, download("/length").getStatus());
+        // the selector thread survived both
+        assertEquals(DownloadStatus.COMPLETE, download("/after").getStatus());
+    }
+
+    private DownloadStatus download(String path) throws InterruptedException {
+        latches.put(path, new CountDownLatch(1));
+        downloadManager.enqueue(new Request.Builder()
+                .url("http://127.0.0.1:" + serverSocket.getLocalPort() + path)
+                .build());
+        latches.get(path).await();
+        return statuses.get(path);
+    }
+
+    private void respond(String path, byte[]... pieces) {
+        responses.put(path, Arrays.asList(pieces));
+    }
+
+    private void serve(final Socket socket) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    InputStream in = socket.getInputStream();
+                    ByteArrayOutputStream head = new ByteArrayOutputStream();
+                    int b;
+                    while ((b = in.read()) != -1) {
+                        head.write(b);
+                        if (head.toString("US-ASCII").endsWith("\r\n\r\n")) {
+                            break;
+                        }
+                    }
+                    String path = head.toString("US-ASCII").split(" ", 3)[1];
+                    List<byte[]> pieces = responses.get(path);
+                    OutputStream out = socket.getOutputStream();
+                    if (pieces == null) {
+                        out.write(head("404 Not Found", "Content-Length: 0"));
+                    } else {
+                        for (byte[] piece : pieces) {
+                            out.write(piece);
+                            out.flush();
+                            Thread.sleep(20);
+                        }
+                    }
+                } catch (IOException | InterruptedException e) {
+                    // the client went away
+                } finally {
+                    try {
+                        socket.close();
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    }
+                }
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private static byte[] head(String status, String... headers) {
+        StringBuilder builder = new StringBuilder("HTTP/1.1 ").append(status).append("\r\n");
+        for (String header : headers) {
+            builder.append(header).append("\r\n");
+        }
+        return ascii(builder.append("Connection: close\r\n\r\n").toString());
+    }
+
+    private static byte[] ascii(String s) {
+        return s.getBytes(StandardCharsets.US_ASCII);
+    }
+
+    private static byte[] concat(byte[] a, byte[] b) {
+        byte[] result = Arrays.copyOf(a, a.length + b.length);
+        System.arraycopy(b, 0, result, a.length, b.length);
+        return result;
+    }
+
+    /**
+     * Probes every url as a file of {@link #DATA}'s length without ranges, so that the engine reads all of it.
+     */
+    private static final class FixedLengthDownloadAPI implements DownloadAPI {
+
+        @Override
+        public DownloadInfo.InitInfo getDownloadInitInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.InitInfo.Builder()
+                    .fileName(url.substring(url.lastIndexOf('/') + 1))
+                    .contentLength(DATA.length)
+                    .build();
+        }
+
+        @Override
+        public DownloadInfo.RangeInfo getDownloadRangeInfo(String url, Map<String, String> headers) {
+            return new DownloadInfo.RangeInfo.Builder().rangeSupportable(false).build();
+        }
+
+        @Override
+        public Probe probe(String url, Map<String, String> headers, boolean keepBody) {
+            return new Probe(new DownloadInfo.Builder()
+                    .initInfo(getDownloadInitInfo(url, headers))
+                    .rangeInfo(getDownloadRangeInfo(url, headers))
+                    .build(), null);
+        }
+
+        @Override
+        public boolean serverFileChanged(String url, Map<String, String> headers, String lastModified) {
+            return false;
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers, long start, long end) throws ConnectException {
+            throw new ConnectException("Only the engine reads.");
+        }
+
+        @Override
+        public InputStream getInputStream(String url, Map<String, String> headers) throws ConnectException {
+            throw new ConnectException("Only the engine reads.");
+        }
+    }
+}
@@ -0,0 +1,19 @@
+package com.lcjian.lib.download;
+
+import java.util.logging.Logger;
+
+/**
+ * Downloads that are only used for their request and priority, without anything to download with.
+ */
+final class TestDownloads {
+
+    private TestDownloads() {
+    }
+
+    static Download download(String id, int priority, AdmissionQueue admissionQueue) {
+        Request request = new Request.Builder().id(id).url("http://localhost/" + id).priority(priority).build();
+        return new Download(request, null, null, null, System.getProperty("java.io.tmpdir"), null, null, null, null,
+                null, null, null, null, admissionQueue, null, null, false, null, null, 0, 0,
+                Logger.getLogger(TestDownloads.class.getName()));
+    }
+}